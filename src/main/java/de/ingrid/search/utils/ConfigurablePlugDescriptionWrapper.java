@@ -25,6 +25,8 @@
  */
 package de.ingrid.search.utils;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import org.apache.log4j.Logger;
 
 import de.ingrid.utils.IConfigurable;
@@ -42,6 +44,11 @@ public class ConfigurablePlugDescriptionWrapper implements IConfigurable {
 
     PlugDescription plugDescription = null;
 
+    /**
+     * components that are configured with the plugdescription of this wrapper
+     */
+    private CopyOnWriteArrayList<IConfigurable> configurables = new CopyOnWriteArrayList<IConfigurable>();
+
     private static Logger LOG = Logger.getLogger(ConfigurablePlugDescriptionWrapper.class);
 
     public ConfigurablePlugDescriptionWrapper() {
@@ -63,7 +70,7 @@ public class ConfigurablePlugDescriptionWrapper implements IConfigurable {
      */
     @Override
     public void configure(PlugDescription plugDescription) {
-        this.plugDescription = plugDescription;
+        setPlugDescription(plugDescription);
     }
 
     public PlugDescription getPlugDescription() {
@@ -72,6 +79,30 @@ public class ConfigurablePlugDescriptionWrapper implements IConfigurable {
 
     public void setPlugDescription(PlugDescription plugDescription) {
         this.plugDescription = plugDescription;
+        for (IConfigurable configurable : configurables) {
+            configurable.configure(plugDescription);
+        }
+    }
+
+    /**
+     * Adds a component that is configured whenever the plugdescription of this
+     * wrapper changes, e.g. to precompute data from the plugdescription.
+     * Adding a component twice has no effect.
+     * 
+     * @param configurable
+     */
+    public void addConfigurable(IConfigurable configurable) {
+        configurables.addIfAbsent(configurable);
+    }
+
+    /**
+     * Removes a component, so it is not configured any more, e.g. because it
+     * uses another wrapper.
+     * 
+     * @param configurable
+     */
+    public void removeConfigurable(IConfigurable configurable) {
+        configurables.remove(configurable);
     }
 
 }
@@ -25,9 +25,19 @@
  */
 package de.ingrid.search.utils;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.lucene.index.IndexReader;
 
 /**
+ * Wraps one or more lucene index readers.
+ * <p/>
+ * Optionally an executor service can be set. It is shared by all components
+ * using this wrapper to evaluate queries on all index readers in parallel.
+ * 
  * @author joachim
  * 
  */
@@ -35,6 +45,14 @@ import org.apache.lucene.index.IndexReader;
 public class LuceneIndexReaderWrapper {
 
     private volatile IndexReader[] indexReader;
+
+    private volatile ExecutorService executorService = null;
+
+    /**
+     * true if the executor service was created by this wrapper and must be
+     * shut down when it is replaced
+     */
+    private boolean ownsExecutorService = false;
     
     public LuceneIndexReaderWrapper() {
         
@@ -52,4 +70,56 @@ public class LuceneIndexReaderWrapper {
         this.indexReader = indexReader;
     }
 
+    /**
+     * Returns the executor service used to process the index readers in
+     * parallel or null if the index readers are processed sequentially.
+     * 
+     * @return
+     */
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    public synchronized void setExecutorService(ExecutorService executorService) {
+        shutdownOwnedExecutorService();
+        this.executorService = executorService;
+    }
+
+    /**
+     * Creates a fixed size executor service with daemon threads to process the
+     * index readers in parallel. Values &lt;= 1 process the index readers
+     * sequentially.
+     * 
+     * @param numThreads
+     */
+    public synchronized void setParallelism(int numThreads) {
+        shutdownOwnedExecutorService();
+        if (numThreads > 1) {
+            final AtomicInteger threadNumber = new AtomicInteger(1);
+            this.executorService = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "index-reader-" + threadNumber.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            this.ownsExecutorService = true;
+        } else {
+            this.executorService = null;
+        }
+    }
+
+    /**
+     * Shuts down the executor service if it was created by this wrapper.
+     * Executor services set from outside are left to their owner. Running
+     * tasks are finished.
+     */
+    private void shutdownOwnedExecutorService() {
+        if (ownsExecutorService && executorService != null) {
+            executorService.shutdown();
+        }
+        ownsExecutorService = false;
+    }
+
 }
@@ -23,16 +23,24 @@
 package de.ingrid.search.utils.facet;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.util.OpenBitSet;
 
+import de.ingrid.search.utils.ConfigurablePlugDescriptionWrapper;
 import de.ingrid.search.utils.IFacetDefinitionProcessor;
 import de.ingrid.search.utils.IQueryParsers;
+import de.ingrid.search.utils.facet.counter.IContextFacetCounter;
 import de.ingrid.search.utils.facet.counter.IFacetCounter;
+import de.ingrid.utils.IConfigurable;
 import de.ingrid.utils.IngridDocument;
 import de.ingrid.utils.IngridHits;
+import de.ingrid.utils.PlugDescription;
 import de.ingrid.utils.query.IngridQuery;
 
 /**
@@ -41,7 +49,21 @@ import de.ingrid.utils.query.IngridQuery;
  * </p>
  * 
  */
-public abstract class AbstractFacetManager implements IFacetManager {
+public abstract class AbstractFacetManager implements IFacetManager, IConfigurable {
+
+    /**
+     * Key of the hits that is set to true if not all facets were counted,
+     * because the time budget expired.
+     */
+    public static final String FACETS_INCOMPLETE = "FACETS_INCOMPLETE";
+
+    /**
+     * Key of the hits that is set if hit counts of facet classes were
+     * estimated. The value is a document with the facet class names as keys
+     * and the half width of the 95% confidence interval of the hit count as
+     * values.
+     */
+    public static final String FACETS_APPROXIMATE = "FACETS_APPROXIMATE";
 
     private static Logger LOG = Logger.getLogger(AbstractFacetManager.class);
 
@@ -51,6 +73,26 @@ public abstract class AbstractFacetManager implements IFacetManager {
     
     protected List<IFacetDefinitionProcessor> facetDefinitionProcessors = new ArrayList<IFacetDefinitionProcessor>();
 
+    /**
+     * optional cache of the facet counts of requests
+     */
+    protected FacetCountCache facetCountCache = null;
+
+    /**
+     * time in ms facets of a request are counted, a value &lt;= 0 means no
+     * limit
+     */
+    protected long timeBudget = 0;
+
+    /**
+     * identifies the configuration the facets are counted with, replaced
+     * whenever the plugdescription changes, so cached facet counts of the
+     * previous configuration are not used
+     */
+    private volatile Object configurationGeneration = new Object();
+
+    private ConfigurablePlugDescriptionWrapper plugDescriptionWrapper = null;
+
 
     public AbstractFacetManager() {
     }
@@ -64,12 +106,42 @@ public abstract class AbstractFacetManager implements IFacetManager {
      * @see de.ingrid.search.utils.facet.IFacetManager#addFacets(de.ingrid.utils.IngridHits, de.ingrid.utils.query.IngridQuery)
      */
     public void addFacets(IngridHits hits, IngridQuery query) {
+        addFacets(hits, query, null);
+    }
+
+    /* (non-Javadoc)
+     * @see de.ingrid.search.utils.facet.IFacetManager#addFacets(de.ingrid.utils.IngridHits, de.ingrid.utils.query.IngridQuery, org.apache.lucene.search.DocIdSet[])
+     */
+    public void addFacets(IngridHits hits, IngridQuery query, DocIdSet[] resultDocIdSets) {
         if (query.containsKey("FACETS")) {
-            long start = 0;
-            if (LOG.isDebugEnabled()) {
-                start = System.currentTimeMillis();
+            long start = System.currentTimeMillis();
+            long deadline = getDeadline(start);
+            IngridDocument facets = null;
+            Object cacheKey = null;
+            Object indexGeneration = null;
+            // all parts of the request use the same index readers, even if
+            // the index readers are changed concurrently
+            IndexReader[] indexReaders = getIndexReaders();
+            if (facetCountCache != null) {
+                cacheKey = getFacetCountCacheKey(hits, query);
+                indexGeneration = getIndexGeneration(indexReaders);
+                facets = facetCountCache.get(cacheKey, indexGeneration);
+            }
+            if (facets == null) {
+                OpenBitSet[] resultBitSets;
+                if (resultDocIdSets == null) {
+                    resultBitSets = getResultBitsets(hits, query, indexReaders);
+                } else {
+                    resultBitSets = getResultBitsets(hits, query, indexReaders, resultDocIdSets);
+                }
+                FacetCountContext context = new FacetCountContext(resultBitSets, deadline, indexReaders);
+                facets = getFacetClassCounts(query, context);
+                if (markHits(hits, context) && facetCountCache != null) {
+                    facetCountCache.put(cacheKey, indexGeneration, facets);
+                }
+            } else if (LOG.isDebugEnabled()) {
+                LOG.debug("Use cached facet counts.");
             }
-            IngridDocument facets = getFacetClassCounts(query, getResultBitsets(hits, query));
             hits.put("FACETS", facets);
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Add facet classes to hits in " + (System.currentTimeMillis() - start) + " ms.");
@@ -85,6 +157,18 @@ public abstract class AbstractFacetManager implements IFacetManager {
      *         null, if no facets were specified
      */
     protected IngridDocument getFacetClassCounts(IngridQuery query, OpenBitSet[] bitset) {
+        return getFacetClassCounts(query, new FacetCountContext(bitset));
+    }
+
+    /**
+     * 
+     * @param query
+     * @param context
+     *            the result bitsets and the deadline of the request
+     * @return a map, with each facet class and its hits-count on the query or
+     *         null, if no facets were specified
+     */
+    protected IngridDocument getFacetClassCounts(IngridQuery query, FacetCountContext context) {
         // get all FacetDefinitions from the Query
         List<FacetDefinition> defs = FacetUtils.getFacetDefinitions(query);
         
@@ -92,13 +176,81 @@ public abstract class AbstractFacetManager implements IFacetManager {
         filterFacetDefinitions(defs);
 
         IngridDocument result = new IngridDocument();
+        countFacets(result, query, context, defs);
+        return result;
+    }
+
+    /**
+     * Counts the facets of the definitions on the result bitsets and adds them
+     * to the result. Stops counting if the deadline of the context expires.
+     * 
+     * @param result
+     * @param query
+     * @param context
+     * @param defs
+     */
+    protected void countFacets(IngridDocument result, IngridQuery query, FacetCountContext context,
+            List<FacetDefinition> defs) {
         // calculate the Facets from the results of the base query
         // use different counters as configured
         for (IFacetCounter fc : facetCounters) {
-            fc.count(result, query, bitset, defs);
+            if (context.isExpired()) {
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Facet time budget of " + timeBudget + " ms expired, return " + result.size()
+                            + " facet classes counted so far.");
+                }
+                break;
+            }
+            countFacets(fc, result, query, context, defs);
         }
+    }
 
-        return result;
+    /**
+     * Counts the facets with a facet counter. Facet counters that do not
+     * implement {@link IContextFacetCounter} get the result bitsets only.
+     * 
+     * @param fc
+     * @param result
+     * @param query
+     * @param context
+     * @param defs
+     */
+    protected void countFacets(IFacetCounter fc, IngridDocument result, IngridQuery query,
+            FacetCountContext context, List<FacetDefinition> defs) {
+        if (fc instanceof IContextFacetCounter) {
+            ((IContextFacetCounter) fc).count(result, query, context, defs);
+        } else {
+            fc.count(result, query, context.getBitSets(), defs);
+        }
+    }
+
+    /**
+     * Marks the hits if the facet counts are incomplete or estimated.
+     * 
+     * @param hits
+     * @param context
+     * @return true if the facet counts are complete and exact
+     */
+    protected boolean markHits(IngridHits hits, FacetCountContext context) {
+        if (context.isIncomplete()) {
+            hits.put(FACETS_INCOMPLETE, Boolean.TRUE);
+        }
+        if (context.isApproximate()) {
+            IngridDocument errorBounds = new IngridDocument();
+            errorBounds.putAll(context.getErrorBounds());
+            hits.put(FACETS_APPROXIMATE, errorBounds);
+        }
+        return !context.isIncomplete() && !context.isApproximate();
+    }
+
+    /**
+     * Returns the deadline of a request started at the given time.
+     * 
+     * @param start
+     * @return
+     */
+    protected long getDeadline(long start) {
+        return (timeBudget > 0) ? start + timeBudget : FacetCountContext.NO_DEADLINE;
     }
     
     protected void filterFacetDefinitions(List<FacetDefinition> facetDefs) {
@@ -110,6 +262,133 @@ public abstract class AbstractFacetManager implements IFacetManager {
 
     protected abstract OpenBitSet[] getResultBitsets(IngridHits hits, IngridQuery query);
 
+    /**
+     * Returns the result bitsets of the query on the given index readers.
+     * Defaults to {@link #getResultBitsets(IngridHits, IngridQuery)} for
+     * facet managers that do not search an index.
+     * 
+     * @param hits
+     * @param query
+     * @param indexReaders
+     *            the index readers of the request, see
+     *            {@link #getIndexReaders()}
+     * @return
+     */
+    protected OpenBitSet[] getResultBitsets(IngridHits hits, IngridQuery query, IndexReader[] indexReaders) {
+        return getResultBitsets(hits, query);
+    }
+
+    /**
+     * Returns the result bitsets from the result doc id sets supplied by the
+     * caller. Defaults to {@link #getResultBitsets(IngridHits, IngridQuery)}
+     * for facet managers that do not search an index.
+     * 
+     * @param hits
+     * @param query
+     * @param indexReaders
+     *            the index readers of the request, see
+     *            {@link #getIndexReaders()}
+     * @param resultDocIdSets
+     * @return
+     */
+    protected OpenBitSet[] getResultBitsets(IngridHits hits, IngridQuery query, IndexReader[] indexReaders,
+            DocIdSet[] resultDocIdSets) {
+        return getResultBitsets(hits, query);
+    }
+
+    /**
+     * Returns the index readers searched by a request. The index readers are
+     * read once at the start of a request, the result bitsets, the facet
+     * classes and the cached facet counts of the request all belong to them.
+     * 
+     * @return the index readers, null for facet managers that do not search
+     *         an index
+     */
+    protected IndexReader[] getIndexReaders() {
+        return null;
+    }
+
+    /**
+     * Returns the state of the searched index and the configuration. Cached
+     * facet counts are only valid for the same index generation. Defaults to
+     * the identity of the index readers and the configuration generation,
+     * which changes whenever the plugdescription changes (see
+     * {@link #configure(PlugDescription)}).
+     * 
+     * @param indexReaders
+     *            the index readers of the request, see
+     *            {@link #getIndexReaders()}
+     * @return the index generation
+     */
+    protected Object getIndexGeneration(IndexReader[] indexReaders) {
+        // index readers do not override equals, so the list compares the
+        // identity of the readers
+        return Arrays.asList(new Object[] { configurationGeneration,
+                (indexReaders == null) ? null : Arrays.asList(indexReaders) });
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * de.ingrid.utils.IConfigurable#configure(de.ingrid.utils.PlugDescription)
+     */
+    @Override
+    public void configure(PlugDescription plugDescription) {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Configure called, invalidate cached facet counts.");
+        }
+        configurationGeneration = new Object();
+    }
+
+    /**
+     * Sets the wrapper of the plugdescription the facet counters are
+     * configured with. Cached facet counts are invalidated whenever the
+     * plugdescription of the wrapper changes. The facet manager is removed
+     * from a replaced wrapper.
+     * 
+     * @param plugDescriptionWrapper
+     */
+    public synchronized void setPlugDescriptionWrapper(ConfigurablePlugDescriptionWrapper plugDescriptionWrapper) {
+        if (this.plugDescriptionWrapper != null && this.plugDescriptionWrapper != plugDescriptionWrapper) {
+            this.plugDescriptionWrapper.removeConfigurable(this);
+        }
+        this.plugDescriptionWrapper = plugDescriptionWrapper;
+        if (plugDescriptionWrapper != null) {
+            plugDescriptionWrapper.addConfigurable(this);
+        }
+    }
+
+    public ConfigurablePlugDescriptionWrapper getPlugDescriptionWrapper() {
+        return plugDescriptionWrapper;
+    }
+
+    /**
+     * Returns the key of the facet counts of a request. The key contains the
+     * parsed lucene query and the facet definitions in a canonical order, so
+     * requests differing only in paging, ranking or the order of the facets
+     * share the same key.
+     * 
+     * @param hits
+     * @param query
+     * @return
+     */
+    protected Object getFacetCountCacheKey(IngridHits hits, IngridQuery query) {
+        List<String> facetDefs = new ArrayList<String>();
+        for (FacetDefinition def : FacetUtils.getFacetDefinitions(query)) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(def.getName()).append('|').append(def.getField()).append('|').append(def.getQueryFragment());
+            if (def.getClasses() != null) {
+                for (FacetClassDefinition classDef : def.getClasses()) {
+                    sb.append('|').append(classDef.getName()).append('=').append(classDef.getFragment());
+                }
+            }
+            facetDefs.add(sb.toString());
+        }
+        Collections.sort(facetDefs);
+        return Arrays.asList(new Object[] { queryParsers.parse(query), facetDefs });
+    }
+
     public IQueryParsers getQueryParsers() {
         return queryParsers;
     }
@@ -126,6 +405,38 @@ public abstract class AbstractFacetManager implements IFacetManager {
         this.facetCounters = facetCounters;
     }
 
+    public long getTimeBudget() {
+        return timeBudget;
+    }
+
+    /**
+     * Sets the time in ms the facets of a request may take. If the time
+     * expires, the facet counters stop, the facet classes counted so far are
+     * returned and the hits are marked with {@link #FACETS_INCOMPLETE}. Facet
+     * classes that are still produced when the time expires are missing,
+     * their production continues in the background for later requests.
+     * Values &lt;= 0 disable the time budget, which is the default.
+     * 
+     * @param timeBudget
+     */
+    public void setTimeBudget(long timeBudget) {
+        this.timeBudget = timeBudget;
+    }
+
+    public FacetCountCache getFacetCountCache() {
+        return facetCountCache;
+    }
+
+    /**
+     * Sets a cache for the facet counts of requests, so identical requests do
+     * not count the facets again.
+     * 
+     * @param facetCountCache
+     */
+    public void setFacetCountCache(FacetCountCache facetCountCache) {
+        this.facetCountCache = facetCountCache;
+    }
+
     public void setFacetDefinitionProcessors(List<IFacetDefinitionProcessor> facetDefinitionProcessors) {
         this.facetDefinitionProcessors = facetDefinitionProcessors;
     }
@@ -25,6 +25,7 @@
  */
 package de.ingrid.search.utils.facet;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -36,27 +37,38 @@ import de.ingrid.search.utils.IFacetDefinitionProcessor;
  */
 public class ConfigurableFacetClassProcessor implements IFacetDefinitionProcessor {
 
+    /**
+     * separates the class id and the query fragment in the keys of the
+     * substitutions, must not occur in class ids
+     */
+    private static final char KEY_SEPARATOR = '\u0000';
+
     /**
      * Holds the filter definitions: {<class_id>, {<query_fragment>, <query_fragment_substitution}}
      * 
      */
     private Map<String, Map<String, String>> facetFilterDefinitions = null;
+
+    /**
+     * The filter definitions compiled to {<class_id><separator><query_fragment>, <query_fragment_substitution>}
+     */
+    private Map<String, String> substitutions = new HashMap<String, String>();
     
     /* (non-Javadoc)
      * @see de.ingrid.search.utils.IFacetDefinitionProcessor#process(java.util.List)
      */
     @Override
     public void process(List<FacetDefinition> facetDefinitions) {
+        if (substitutions.isEmpty()) {
+            return;
+        }
         for (FacetDefinition facetDef : facetDefinitions) {
             if (facetDef.getClasses() != null) { 
                 for (FacetClassDefinition facetClass : facetDef.getClasses()) {
-                    for (String filterFacetClass : facetFilterDefinitions.keySet()) {
-                        if (facetClass.getName().equals(filterFacetClass)) {
-                            for (String facetClassQueryFragment : facetFilterDefinitions.get(filterFacetClass).keySet()) {
-                                if (facetClass.getFragment() != null && facetClass.getFragment().equals(facetClassQueryFragment)) {
-                                    facetClass.setQueryFragment(facetFilterDefinitions.get(filterFacetClass).get(facetClassQueryFragment));
-                                }
-                            }
+                    if (facetClass.getFragment() != null) {
+                        String substitution = substitutions.get(getKey(facetClass.getName(), facetClass.getFragment()));
+                        if (substitution != null) {
+                            facetClass.setQueryFragment(substitution);
                         }
                     }
                 }
@@ -64,8 +76,31 @@ public class ConfigurableFacetClassProcessor implements IFacetDefinitionProcesso
         }
     }
 
+    private static String getKey(String facetClassName, String queryFragment) {
+        return facetClassName + KEY_SEPARATOR + queryFragment;
+    }
+
+    public Map<String, Map<String, String>> getFacetFilterDefinitions() {
+        return facetFilterDefinitions;
+    }
+
+    /**
+     * Sets the filter definitions and compiles them into a lookup of the
+     * substitution by class id and query fragment.
+     * 
+     * @param facetFilterDefinitions
+     */
     public void setFacetFilterDefinitions(Map<String, Map<String, String>> facetFilterDefinitions) {
+        Map<String, String> compiled = new HashMap<String, String>();
+        if (facetFilterDefinitions != null) {
+            for (Map.Entry<String, Map<String, String>> filter : facetFilterDefinitions.entrySet()) {
+                for (Map.Entry<String, String> substitution : filter.getValue().entrySet()) {
+                    compiled.put(getKey(filter.getKey(), substitution.getKey()), substitution.getValue());
+                }
+            }
+        }
         this.facetFilterDefinitions = facetFilterDefinitions;
+        this.substitutions = compiled;
     }
 
 }
@@ -0,0 +1,106 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+import java.io.Serializable;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+
+/**
+ * Stores the facet classes on the heap in an ehcache, overflowing to disk.
+ * 
+ */
+public class EhcacheFacetClassStore implements IFacetClassStore {
+
+    private static String FACET_CACHE_NAME = "facetClassCache";
+
+    private CacheManager _cacheManager;
+
+    private Cache _cache;
+
+    public EhcacheFacetClassStore() {
+        _cacheManager = new CacheManager();
+
+        if (_cacheManager.cacheExists(FACET_CACHE_NAME)) {
+            _cache = _cacheManager.getCache(FACET_CACHE_NAME);
+        } else {
+            _cache = setupDefaultCache();
+            _cacheManager.addCache(_cache);
+        }
+    }
+
+    /**
+     * Set up a cache for storing the created bitsets.
+     * 
+     * @return a configured Cache
+     */
+    private Cache setupDefaultCache() {
+        /*
+         * CacheConfiguration cc = new CacheConfiguration();
+         * cc.setMemoryStoreEvictionPolicyFromObject
+         * (MemoryStoreEvictionPolicy.LFU); cc.setOverflowToDisk(true);
+         * cc.setEternal(false); cc.setTimeToLiveSeconds(60);
+         * cc.setTimeToIdleSeconds(30); cc.setDiskPersistent(false);
+         * cc.setDiskExpiryThreadIntervalSeconds(0);
+         */
+        return new Cache(FACET_CACHE_NAME, 500, // max elements in cache
+                true, // overflow to disk
+                true, // eternal, if yes then it never expires (overrides
+                // timeToLive and timeToIdle!)
+                0, // time to live in seconds
+                0 // time to idle in seconds
+        );
+
+    }
+
+    @Override
+    public FacetClass get(String key) {
+        Element element = _cache.get(key);
+        if (element == null) {
+            return null;
+        } else {
+            return (FacetClass) element.getValue();
+        }
+    }
+
+    @Override
+    public void put(String key, FacetClass facetClass) {
+        _cache.put(new Element(key, (Serializable) facetClass));
+        // System.out.println("Disk store size: " + _cache.getDiskStoreSize() +
+        // " and memory store size: " + _cache.getMemoryStoreSize());
+        // System.out.println("Memory size: " + _cache.calculateInMemorySize());
+    }
+
+    @Override
+    public void remove(String key) {
+        _cache.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        _cache.removeAll();
+    }
+
+}
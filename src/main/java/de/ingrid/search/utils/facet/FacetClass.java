@@ -26,20 +26,35 @@ import java.io.Serializable;
 
 import org.apache.lucene.util.OpenBitSet;
 
+import de.ingrid.search.utils.facet.bitset.CompressedFacetBitSet;
+import de.ingrid.search.utils.facet.bitset.DenseFacetBitSet;
+import de.ingrid.search.utils.facet.bitset.IFacetBitSet;
+import de.ingrid.search.utils.facet.bitset.SegmentedFacetBitSet;
+
+/**
+ * A facet class with the documents that belong to it, one facet bitset per
+ * index reader. The facet bitsets can be stored uncompressed or compressed,
+ * see {@link #compressBitSets(double)}.
+ */
 public class FacetClass implements Serializable {
 
     /**
      * The serialization ID for storing objects.
      */
-    private static final long serialVersionUID = 7282020135406385812L;
+    private static final long serialVersionUID = 4519783312071659235L;
 
     private String facetClassName;
 
-    private OpenBitSet[] bitSets;
+    private IFacetBitSet[] bitSets;
 
     public FacetClass(String facetClassname, OpenBitSet[] filterBitSet) {
         this.facetClassName = facetClassname;
-        this.bitSets = filterBitSet;
+        setBitSets(filterBitSet);
+    }
+
+    public FacetClass(String facetClassname, IFacetBitSet[] facetBitSets) {
+        this.facetClassName = facetClassname;
+        this.bitSets = facetBitSets;
     }
 
     public void setFacetClassName(String facetName) {
@@ -51,13 +66,84 @@ public class FacetClass implements Serializable {
     }
 
     public void setBitSets(OpenBitSet[] bitSet) {
-        this.bitSets = bitSet;
+        if (bitSet == null) {
+            this.bitSets = null;
+            return;
+        }
+        this.bitSets = new IFacetBitSet[bitSet.length];
+        for (int i = 0; i < bitSet.length; i++) {
+            if (bitSet[i] != null) {
+                this.bitSets[i] = new DenseFacetBitSet(bitSet[i]);
+            }
+        }
     }
 
+    /**
+     * Returns the documents of this facet class as OpenBitSets. Compressed
+     * facet bitsets are uncompressed into new OpenBitSets, use
+     * {@link #getFacetBitSets()} for counting.
+     * 
+     * @return
+     */
     public OpenBitSet[] getBitSets() {
+        if (bitSets == null) {
+            return null;
+        }
+        OpenBitSet[] result = new OpenBitSet[bitSets.length];
+        for (int i = 0; i < bitSets.length; i++) {
+            if (bitSets[i] != null) {
+                result[i] = bitSets[i].toOpenBitSet();
+            }
+        }
+        return result;
+    }
+
+    public void setFacetBitSets(IFacetBitSet[] facetBitSets) {
+        this.bitSets = facetBitSets;
+    }
+
+    public IFacetBitSet[] getFacetBitSets() {
         return bitSets;
     }
 
+    /**
+     * Replaces all uncompressed facet bitsets with a density not above
+     * <code>maxDensity</code> by compressed ones, if that saves memory.
+     * Segmented bitsets are copied, so the facet class does not keep the
+     * cached segment bitsets.
+     * 
+     * @param maxDensity
+     *            fraction of documents of an index reader up to which a
+     *            bitset is compressed
+     */
+    public void compressBitSets(double maxDensity) {
+        if (bitSets == null) {
+            return;
+        }
+        for (int i = 0; i < bitSets.length; i++) {
+            if (bitSets[i] instanceof DenseFacetBitSet || bitSets[i] instanceof SegmentedFacetBitSet) {
+                bitSets[i] = CompressedFacetBitSet.compress(bitSets[i].toOpenBitSet(), maxDensity);
+            }
+        }
+    }
+
+    /**
+     * Returns the approximate memory used by the facet bitsets.
+     * 
+     * @return
+     */
+    public long getSizeInBytes() {
+        long result = 0;
+        if (bitSets != null) {
+            for (IFacetBitSet bitSet : bitSets) {
+                if (bitSet != null) {
+                    result += bitSet.getSizeInBytes();
+                }
+            }
+        }
+        return result;
+    }
+
     public String toString() {
         String result = facetClassName + " with bitsets:";
         for (int i = 0; i < bitSets.length; i++) {
@@ -27,8 +27,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.IndexReader;
@@ -43,6 +55,7 @@ import org.apache.lucene.util.OpenBitSet;
 
 import de.ingrid.search.utils.IQueryParsers;
 import de.ingrid.search.utils.LuceneIndexReaderWrapper;
+import de.ingrid.search.utils.facet.bitset.IFacetBitSet;
 import de.ingrid.utils.query.FieldQuery;
 import de.ingrid.utils.query.IngridQuery;
 import de.ingrid.utils.queryparser.ParseException;
@@ -55,8 +68,10 @@ import de.ingrid.utils.queryparser.QueryStringParser;
  */
 public class FacetClassProducer {
 
-    // the maximum number of values for an index field
-    private static final int MAX_NUM = 300;
+    // the default maximum number of values for an index field
+    private static final int DEFAULT_MAX_CLASSES = 300;
+
+    private static final int DEFAULT_QUERY_CACHE_SIZE = 1000;
 
     private static Logger LOG = Logger.getLogger(FacetClassProducer.class);
 
@@ -64,9 +79,91 @@ public class FacetClassProducer {
 
     private IQueryParsers _queryParsers;
 
+    private SegmentFacetBitSetCache segmentBitSetCache = null;
+
+    /**
+     * executor service the facet classes of a facet are produced with in
+     * parallel, or null to produce them sequentially
+     */
+    private ExecutorService productionExecutor = null;
+
+    /**
+     * produce the facet classes of field facets from the postings of the
+     * terms instead of evaluating a query per term
+     */
+    private boolean directTermProduction = false;
+
+    /**
+     * the maximum number of facet classes of a facet without classes
+     */
+    private int maxClasses = DEFAULT_MAX_CLASSES;
+
+    /**
+     * the maximum number of facet classes by facet name, overriding
+     * maxClasses
+     */
+    private Map<String, Integer> maxClassesPerFacet = null;
+
+    /**
+     * the maximum number of compiled queries in the query cache
+     */
+    private int queryCacheSize = DEFAULT_QUERY_CACHE_SIZE;
+
+    /**
+     * compiled lucene queries by normalized query string, least recently used
+     * queries are removed first, guarded by itself, shared with the producers
+     * created by {@link #forIndexReaders(IndexReader[])}
+     */
+    private Map<String, Query> queryCache = new LinkedHashMap<String, Query>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = -3329387620151387215L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+            return size() > queryCacheSize;
+        }
+    };
+
+    private AtomicLong queryCacheHits = new AtomicLong();
+
+    private AtomicLong queryCacheMisses = new AtomicLong();
+
+    /**
+     * the number of distinct values found when producing a facet, by facet
+     * name
+     */
+    private final Map<String, Integer> distinctValueCounts = new ConcurrentHashMap<String, Integer>();
+
     public FacetClassProducer() {
     }
 
+    /**
+     * Returns a producer with the same configuration, that produces the facet
+     * classes for the given index readers.
+     * 
+     * @param indexReaders
+     * @return
+     */
+    public FacetClassProducer forIndexReaders(IndexReader[] indexReaders) {
+        LuceneIndexReaderWrapper wrapper = new LuceneIndexReaderWrapper(indexReaders);
+        if (indexReaderWrapper != null) {
+            wrapper.setExecutorService(indexReaderWrapper.getExecutorService());
+        }
+        FacetClassProducer producer = new FacetClassProducer();
+        producer.setIndexReaderWrapper(wrapper);
+        producer.setQueryParsers(_queryParsers);
+        producer.setSegmentBitSetCache(segmentBitSetCache);
+        producer.setProductionExecutor(productionExecutor);
+        producer.setDirectTermProduction(directTermProduction);
+        producer.setMaxClasses(maxClasses);
+        producer.setMaxClassesPerFacet(maxClassesPerFacet);
+        producer.queryCacheSize = queryCacheSize;
+        producer.queryCache = queryCache;
+        producer.queryCacheHits = queryCacheHits;
+        producer.queryCacheMisses = queryCacheMisses;
+        return producer;
+    }
+
     public FacetClass produceClass(FacetClassDefinition facetClassDef) {
         FacetClass fc = null;
         try {
@@ -99,138 +196,378 @@ public class FacetClassProducer {
     }
 
     public List<FacetClass> produceClasses(FacetDefinition facetDef) {
+        return produceClasses(facetDef, null);
+    }
+
+    /**
+     * Produces the facet classes of a facet. The facet classes of a query
+     * fragment facet are produced from the postings of the values restricted
+     * to the documents of the fragment. If a production executor is set, the
+     * facet classes of a field facet are produced in parallel.
+     * 
+     * @param facetDef
+     * @param listener
+     *            optional listener, that is notified about every facet class
+     *            as soon as it is produced, may be called from different
+     *            threads
+     * @return the facet classes
+     */
+    public List<FacetClass> produceClasses(FacetDefinition facetDef, IFacetClassListener listener) {
         List<FacetClass> fClasses = new ArrayList<FacetClass>();
         try {
+            // name and query string of every facet class to produce
+            List<String[]> classQueries = new ArrayList<String[]>();
             if (facetDef.getQueryFragment() == null) {
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("Create classes from index field '" + facetDef.getField() + "'.");
                 }
                 // presume we have a single field definition
-                TermInfo[] tis = getHighFreqTerms(MAX_NUM, facetDef.getField());
+                TermInfo[] tis = getTopTerms(facetDef, null);
+                if (directTermProduction) {
+                    return produceClassesFromPostings(facetDef.getField(), tis, null, listener);
+                }
                 for (TermInfo ti : tis) {
-                    long start = 0;
-                    if (LOG.isInfoEnabled()) {
-                        start = System.currentTimeMillis();
-                    }
-                    fClasses.add(produceClassFromQuery(ti.term.field() + ":" + ti.term.text(), getLuceneQuery(ti.term
-                            .field()
-                            + ":" + ti.term.text())));
-                    if (LOG.isInfoEnabled()) {
-                        LOG.info("Create facet class: " + fClasses.get(fClasses.size() - 1) + " in "
-                                + (System.currentTimeMillis() - start) + " ms.");
-                    }
+                    classQueries.add(new String[] { ti.term.field() + ":" + ti.term.text(),
+                            ti.term.field() + ":" + ti.term.text() });
                 }
             } else {
 
                 // we have a query fragment
                 Query query = getLuceneQuery(facetDef.getQueryFragment());
-                OpenBitSet[] bitSets = FacetUtils.getBitSetsFromQuery(query, indexReaderWrapper);
-                Map<Term, Integer> tiq = new HashMap<Term, Integer>();
-                for (int i = 0; i < bitSets.length; i++) {
-                    IndexReader indexReader = indexReaderWrapper.getIndexReader()[i];
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug("Read terms from field '" + facetDef.getField() + "' for bitset " + i);
+                OpenBitSet[] bitSets;
+                if (segmentBitSetCache != null) {
+                    IFacetBitSet[] fragmentBitSets = segmentBitSetCache.getFacetBitSets(getFragmentKey(query),
+                            query, indexReaderWrapper.getIndexReader());
+                    bitSets = new OpenBitSet[fragmentBitSets.length];
+                    for (int i = 0; i < fragmentBitSets.length; i++) {
+                        bitSets[i] = fragmentBitSets[i].toOpenBitSet();
                     }
-                    TermEnum termEnum = indexReader.terms(new Term(facetDef.getField(), ""));
-                    // iterate through all the values of this facet and see look
-                    // at number of hits per term
-                    try {
-                        TermDocs termDocs = indexReader.termDocs();
-                        // open termDocs only once, and use seek: this is more
-                        // efficient
-                        try {
-                            do {
-                                Term term = termEnum.term();
-                                if (LOG.isDebugEnabled()) {
-                                    LOG.debug("Term found: '" + term.toString() + "' [term-field: "+term.field()+", facet-field:"+facetDef.getField()+"].");
-                                }
-                                int count = 0;
-                                int minFreq = 0;
-                                if (term != null && term.field().equals(facetDef.getField())) {
-                                    termDocs.seek(term);
-                                    while (termDocs.next()) {
-                                        if (bitSets[i].get(termDocs.doc())) {
-                                            count++;
-                                        }
-                                    }
-                                    if (LOG.isDebugEnabled()) {
-                                        LOG.debug("Occurence found:" + count);
-                                    }
-                                    if (count > 0) {
-                                        if (!"".equals(term.text())) {
-                                            if (count > minFreq) {
-                                                tiq.put(term, count);
-                                                if (tiq.size() > MAX_NUM) // if
-                                                // tiq
-                                                // overfull
-                                                {
-                                                    // find and remove minimal
-                                                    // term to ensure capacity
-                                                    // of
-                                                    Term minTerm = null;
-                                                    for (Term t : tiq.keySet()) {
-                                                        if (minTerm == null) {
-                                                            minFreq = tiq.get(t);
-                                                            minTerm = t;
-                                                        }
-                                                        if (minFreq > tiq.get(t)) {
-                                                            minFreq = tiq.get(t);
-                                                            minTerm = t;
-                                                        }
-                                                    }
-                                                    tiq.remove(minTerm);
-                                                }
-                                            }
-                                        }
-                                    }
-
-                                } else {
-                                    break;
-                                }
-                            } while (termEnum.next());
-                        } finally {
-                            termDocs.close();
+                } else {
+                    bitSets = FacetUtils.getBitSetsFromQuery(query, indexReaderWrapper);
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Read terms from field '" + facetDef.getField() + "' for query fragment '"
+                            + facetDef.getQueryFragment() + "'.");
+                }
+                // the documents of the query fragment with a value are the
+                // postings of the value restricted to the fragment bitsets
+                TermInfo[] tis = getTopTerms(facetDef, bitSets);
+                if (segmentBitSetCache != null) {
+                    return produceClassesFromSegmentPostings(facetDef.getField(), tis, query, listener);
+                }
+                return produceClassesFromPostings(facetDef.getField(), tis, bitSets, listener);
+            }
+            fClasses = produceClassesFromQueries(classQueries, listener);
+
+        } catch (ParseException e) {
+            LOG.error("Error producing facet classes from facet '" + facetDef.getName() + "'.", e);
+        } catch (CancellationException e) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Production of facet classes from facet '" + facetDef.getName() + "' cancelled: "
+                        + e.getMessage());
+            }
+        } catch (Exception e) {
+            LOG.error("Error producing facet classes from facet '" + facetDef.getName() + "'.", e);
+        }
+        return fClasses;
+    }
+
+    /**
+     * Produces the facet classes from their query strings, in parallel if a
+     * production executor is set.
+     * 
+     * @param classQueries
+     *            name and query string of every facet class
+     * @param listener
+     *            may be null
+     * @return the facet classes in the order of the query strings
+     * @throws Exception
+     */
+    private List<FacetClass> produceClassesFromQueries(List<String[]> classQueries,
+            final IFacetClassListener listener) throws Exception {
+        List<FacetClass> fClasses = new ArrayList<FacetClass>(classQueries.size());
+        if (productionExecutor == null || classQueries.size() < 2) {
+            for (String[] classQuery : classQueries) {
+                FacetClass fc = produceClassFromQueryString(classQuery[0], classQuery[1], indexReaderWrapper);
+                if (listener != null) {
+                    listener.facetClassProduced(fc);
+                }
+                fClasses.add(fc);
+            }
+            return fClasses;
+        }
+        // the production threads evaluate the index readers sequentially, so
+        // they do not occupy the threads of the index reader wrapper
+        final LuceneIndexReaderWrapper sequentialWrapper = new LuceneIndexReaderWrapper(indexReaderWrapper
+                .getIndexReader());
+        List<Future<FacetClass>> futures = new ArrayList<Future<FacetClass>>(classQueries.size());
+        try {
+            for (final String[] classQuery : classQueries) {
+                futures.add(productionExecutor.submit(new Callable<FacetClass>() {
+                    @Override
+                    public FacetClass call() throws Exception {
+                        FacetClass fc = produceClassFromQueryString(classQuery[0], classQuery[1], sequentialWrapper);
+                        if (listener != null) {
+                            listener.facetClassProduced(fc);
                         }
-                    } finally {
-                        termEnum.close();
+                        return fc;
                     }
+                }));
+            }
+            for (Future<FacetClass> future : futures) {
+                fClasses.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            cancel(futures);
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            cancel(futures);
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+        return fClasses;
+    }
 
-                    TermInfo[] res = new TermInfo[tiq.size()];
-                    int cnt = 0;
-                    for (Term t : tiq.keySet()) {
-                        res[cnt] = new TermInfo(t, tiq.get(t));
-                        cnt++;
+    /**
+     * Produces the facet classes of the terms of a field directly from the
+     * postings of the terms. The terms of the field are read in one pass per
+     * index reader, no queries are parsed or evaluated. With a segment bitset
+     * cache the postings are read per segment, see
+     * {@link #produceClassesFromSegmentPostings(String, TermInfo[], Query, IFacetClassListener)}.
+     * 
+     * @param field
+     * @param tis
+     *            the terms to produce facet classes for
+     * @param filterBitSets
+     *            if not null, only documents set in the bitset of the index
+     *            reader are added to the facet classes
+     * @param listener
+     *            may be null
+     * @return the facet classes in the order of the terms
+     * @throws IOException
+     */
+    private List<FacetClass> produceClassesFromPostings(String field, TermInfo[] tis, OpenBitSet[] filterBitSets,
+            IFacetClassListener listener) throws IOException {
+        if (segmentBitSetCache != null && filterBitSets == null) {
+            return produceClassesFromSegmentPostings(field, tis, null, listener);
+        }
+        long start = 0;
+        if (LOG.isInfoEnabled()) {
+            start = System.currentTimeMillis();
+        }
+        if (tis.length == 0) {
+            return new ArrayList<FacetClass>();
+        }
+        IndexReader[] indexReaders = indexReaderWrapper.getIndexReader();
+        Map<String, Integer> termIndexes = getTermIndexes(tis);
+        OpenBitSet[][] bitSets = new OpenBitSet[tis.length][indexReaders.length];
+        for (int r = 0; r < indexReaders.length; r++) {
+            OpenBitSet[] readerBitSets = new OpenBitSet[tis.length];
+            for (int i = 0; i < tis.length; i++) {
+                readerBitSets[i] = new OpenBitSet(indexReaders[r].maxDoc());
+                bitSets[i][r] = readerBitSets[i];
+            }
+            readPostings(indexReaders[r], field, termIndexes, readerBitSets, tis.length,
+                    (filterBitSets == null) ? null : filterBitSets[r]);
+        }
+        List<FacetClass> fClasses = new ArrayList<FacetClass>(tis.length);
+        for (int i = 0; i < tis.length; i++) {
+            FacetClass fc = new FacetClass(tis[i].term.field() + ":" + tis[i].term.text(), bitSets[i]);
+            if (listener != null) {
+                listener.facetClassProduced(fc);
+            }
+            fClasses.add(fc);
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Create " + fClasses.size() + " facet classes of field '" + field + "' from postings in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }
+        return fClasses;
+    }
+
+    /**
+     * Produces the facet classes of the terms of a field from the postings of
+     * the terms per segment. The segment bitsets are taken from the segment
+     * bitset cache, only the postings of segments without cached bitsets are
+     * read.
+     * 
+     * @param field
+     * @param tis
+     *            the terms to produce facet classes for
+     * @param filterQuery
+     *            if not null, only documents matching the query are added to
+     *            the facet classes
+     * @param listener
+     *            may be null
+     * @return the facet classes in the order of the terms
+     * @throws IOException
+     */
+    private List<FacetClass> produceClassesFromSegmentPostings(String field, TermInfo[] tis, Query filterQuery,
+            IFacetClassListener listener) throws IOException {
+        long start = 0;
+        if (LOG.isInfoEnabled()) {
+            start = System.currentTimeMillis();
+        }
+        if (tis.length == 0) {
+            return new ArrayList<FacetClass>();
+        }
+        IndexReader[] indexReaders = indexReaderWrapper.getIndexReader();
+        Map<String, Integer> termIndexes = getTermIndexes(tis);
+        String[] keys = new String[tis.length];
+        for (int i = 0; i < tis.length; i++) {
+            keys[i] = tis[i].term.field() + ":" + tis[i].term.text() + "|postings"
+                    + (filterQuery == null ? "" : "|" + filterQuery);
+        }
+        IFacetBitSet[][] bitSets = new IFacetBitSet[tis.length][indexReaders.length];
+        for (int r = 0; r < indexReaders.length; r++) {
+            List<IndexReader> segments = SegmentFacetBitSetCache.getSegments(indexReaders[r]);
+            OpenBitSet[][] segmentBitSets = new OpenBitSet[tis.length][segments.size()];
+            for (int s = 0; s < segments.size(); s++) {
+                IndexReader segment = segments.get(s);
+                // the bitsets of the terms, that are not cached for the
+                // segment
+                OpenBitSet[] missing = new OpenBitSet[tis.length];
+                int numMissing = 0;
+                for (int i = 0; i < tis.length; i++) {
+                    segmentBitSets[i][s] = segmentBitSetCache.get(keys[i], segment);
+                    if (segmentBitSets[i][s] == null) {
+                        missing[i] = new OpenBitSet(segment.maxDoc());
+                        numMissing++;
                     }
-                    Arrays.sort(res, new TermInfoComparator());
+                }
+                if (numMissing > 0) {
+                    OpenBitSet filter = (filterQuery == null) ? null : segmentBitSetCache.getSegmentBitSet(
+                            getFragmentKey(filterQuery), filterQuery, segment);
+                    readPostings(segment, field, termIndexes, missing, numMissing, filter);
+                    for (int i = 0; i < tis.length; i++) {
+                        if (missing[i] != null) {
+                            segmentBitSetCache.put(keys[i], segment, missing[i]);
+                            segmentBitSets[i][s] = missing[i];
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < tis.length; i++) {
+                bitSets[i][r] = SegmentFacetBitSetCache.createFacetBitSet(indexReaders[r], segments,
+                        segmentBitSets[i]);
+            }
+        }
+        List<FacetClass> fClasses = new ArrayList<FacetClass>(tis.length);
+        for (int i = 0; i < tis.length; i++) {
+            FacetClass fc = new FacetClass(tis[i].term.field() + ":" + tis[i].term.text(), bitSets[i]);
+            if (listener != null) {
+                listener.facetClassProduced(fc);
+            }
+            fClasses.add(fc);
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Create " + fClasses.size() + " facet classes of field '" + field
+                    + "' from segment postings in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+        return fClasses;
+    }
+
+    private static Map<String, Integer> getTermIndexes(TermInfo[] tis) {
+        Map<String, Integer> termIndexes = new HashMap<String, Integer>();
+        for (int i = 0; i < tis.length; i++) {
+            termIndexes.put(tis[i].term.text(), i);
+        }
+        return termIndexes;
+    }
 
-                    for (TermInfo ti : res) {
-                        long start = 0;
-                        if (LOG.isInfoEnabled()) {
-                            start = System.currentTimeMillis();
+    /**
+     * Sets the documents of the terms of a field in the bitsets of the terms.
+     * 
+     * @param indexReader
+     * @param field
+     * @param termIndexes
+     *            the index of the bitset by term text
+     * @param bitSets
+     *            the bitsets by term index, terms with a null bitset are
+     *            skipped
+     * @param numTerms
+     *            the number of bitsets that are not null
+     * @param filter
+     *            if not null, only documents set in the filter are set
+     * @throws IOException
+     */
+    private static void readPostings(IndexReader indexReader, String field, Map<String, Integer> termIndexes,
+            OpenBitSet[] bitSets, int numTerms, OpenBitSet filter) throws IOException {
+        int[] docs = new int[128];
+        int[] freqs = new int[128];
+        TermEnum termEnum = indexReader.terms(new Term(field, ""));
+        try {
+            TermDocs termDocs = indexReader.termDocs();
+            try {
+                int found = 0;
+                do {
+                    Term term = termEnum.term();
+                    if (term == null || !term.field().equals(field)) {
+                        break;
+                    }
+                    Integer i = termIndexes.get(term.text());
+                    if (i != null && bitSets[i] != null) {
+                        OpenBitSet bitSet = bitSets[i];
+                        termDocs.seek(termEnum);
+                        int n;
+                        while ((n = termDocs.read(docs, freqs)) > 0) {
+                            for (int j = 0; j < n; j++) {
+                                if (filter == null || filter.get(docs[j])) {
+                                    bitSet.fastSet(docs[j]);
+                                }
+                            }
                         }
-                        fClasses.add(produceClassFromQuery(ti.term.field() + ":" + ti.term.text(),
-                                getLuceneQuery(facetDef.getQueryFragment() + " " + ti.term.field() + ":"
-                                        + ti.term.text())));
-                        if (LOG.isInfoEnabled()) {
-                            LOG.info("Create facet class: " + fClasses.get(fClasses.size() - 1) + " in "
-                                    + (System.currentTimeMillis() - start) + " ms.");
+                        // all terms found, skip the remaining terms
+                        if (++found == numTerms) {
+                            break;
                         }
                     }
+                } while (termEnum.next());
+            } finally {
+                termDocs.close();
+            }
+        } finally {
+            termEnum.close();
+        }
+    }
 
-                }
+    private static String getFragmentKey(Query query) {
+        return "fragment|" + query;
+    }
 
-            }
+    private FacetClass produceClassFromQueryString(String name, String queryString,
+            LuceneIndexReaderWrapper wrapper) throws ParseException, IOException {
+        long start = 0;
+        if (LOG.isInfoEnabled()) {
+            start = System.currentTimeMillis();
+        }
+        FacetClass fc = produceClassFromQuery(name, getLuceneQuery(queryString), wrapper);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Create facet class: " + fc + " in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+        return fc;
+    }
 
-        } catch (ParseException e) {
-            LOG.error("Error producing facet classes from facet '" + facetDef.getName() + "'.", e);
-        } catch (Exception e) {
-            LOG.error("Error producing facet classes from facet '" + facetDef.getName() + "'.", e);
+    private static void cancel(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
         }
-        return fClasses;
     }
 
     public FacetClass produceClassFromQuery(String name, Query query) throws IOException {
-        return new FacetClass(name, FacetUtils.getBitSetsFromQuery(query, indexReaderWrapper));
+        return produceClassFromQuery(name, query, indexReaderWrapper);
+    }
+
+    private FacetClass produceClassFromQuery(String name, Query query, LuceneIndexReaderWrapper wrapper)
+            throws IOException {
+        if (segmentBitSetCache != null) {
+            return new FacetClass(name, segmentBitSetCache.getFacetBitSets(name + "|" + query, query, wrapper
+                    .getIndexReader()));
+        }
+        return new FacetClass(name, FacetUtils.getBitSetsFromQuery(query, wrapper));
     }
 
     public OpenBitSet[] getBitSetFromQuery(IngridQuery ingridQuery) {
@@ -245,15 +582,190 @@ public class FacetClassProducer {
         this.indexReaderWrapper = indexReaderWrapper;
     }
 
+    public SegmentFacetBitSetCache getSegmentBitSetCache() {
+        return segmentBitSetCache;
+    }
+
+    /**
+     * Sets a cache for the bitsets of the facet classes per index segment.
+     * With the cache, producing facet classes after reopening the index only
+     * queries new or changed segments.
+     * 
+     * @param segmentBitSetCache
+     */
+    public void setSegmentBitSetCache(SegmentFacetBitSetCache segmentBitSetCache) {
+        this.segmentBitSetCache = segmentBitSetCache;
+    }
+
+    public ExecutorService getProductionExecutor() {
+        return productionExecutor;
+    }
+
+    /**
+     * Sets the executor service the facet classes of a facet are produced
+     * with in parallel. Null produces the facet classes sequentially.
+     * 
+     * @param productionExecutor
+     */
+    public void setProductionExecutor(ExecutorService productionExecutor) {
+        this.productionExecutor = productionExecutor;
+    }
+
+    /**
+     * Creates a fixed size executor service with daemon threads to produce
+     * the facet classes of a facet in parallel. The threads are not shared
+     * with the request threads, so the number of threads limits the load of
+     * the production. Values &lt;= 1 produce the facet classes sequentially.
+     * 
+     * @param numThreads
+     */
+    public void setProductionParallelism(int numThreads) {
+        if (numThreads > 1) {
+            final AtomicInteger threadNumber = new AtomicInteger(1);
+            this.productionExecutor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "facet-class-producer-" + threadNumber.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else {
+            this.productionExecutor = null;
+        }
+    }
+
+    public boolean isDirectTermProduction() {
+        return directTermProduction;
+    }
+
+    /**
+     * If true, the facet classes of a field facet (no query fragment) are
+     * produced directly from the postings of the terms of the field. This
+     * skips the query parsers, so it must only be enabled if a query
+     * <code>field:term</code> matches exactly the documents containing the
+     * indexed term.
+     * 
+     * @param directTermProduction
+     */
+    public void setDirectTermProduction(boolean directTermProduction) {
+        this.directTermProduction = directTermProduction;
+    }
+
+    public int getMaxClasses() {
+        return maxClasses;
+    }
+
+    /**
+     * Sets the maximum number of facet classes produced for a facet without
+     * facet classes, the most frequent values are used. Defaults to 300.
+     * 
+     * @param maxClasses
+     *            at least 1
+     */
+    public void setMaxClasses(int maxClasses) {
+        if (maxClasses < 1) {
+            throw new IllegalArgumentException("Maximum number of facet classes must be at least 1: " + maxClasses);
+        }
+        this.maxClasses = maxClasses;
+    }
+
+    public Map<String, Integer> getMaxClassesPerFacet() {
+        return maxClassesPerFacet;
+    }
+
+    /**
+     * Sets the maximum number of facet classes of single facets by facet
+     * name. Facets not contained use <code>maxClasses</code>.
+     * 
+     * @param maxClassesPerFacet
+     *            values of at least 1
+     */
+    public void setMaxClassesPerFacet(Map<String, Integer> maxClassesPerFacet) {
+        if (maxClassesPerFacet != null) {
+            for (Map.Entry<String, Integer> entry : maxClassesPerFacet.entrySet()) {
+                if (entry.getValue() == null || entry.getValue() < 1) {
+                    throw new IllegalArgumentException("Maximum number of facet classes of facet '"
+                            + entry.getKey() + "' must be at least 1: " + entry.getValue());
+                }
+            }
+        }
+        this.maxClassesPerFacet = maxClassesPerFacet;
+    }
+
+    /**
+     * Returns the number of distinct values found in the index, when the
+     * facet classes of a facet were produced the last time.
+     * 
+     * @param facetName
+     * @return the number of values or -1 if the facet was not produced yet
+     */
+    public int getDistinctValueCount(String facetName) {
+        Integer count = distinctValueCounts.get(facetName == null ? "" : facetName);
+        return count == null ? -1 : count;
+    }
+
+    public int getQueryCacheSize() {
+        return queryCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of compiled queries, that are cached by their
+     * query string. Values &lt;= 0 disable the cache. Defaults to 1000.
+     * 
+     * @param queryCacheSize
+     */
+    public void setQueryCacheSize(int queryCacheSize) {
+        this.queryCacheSize = queryCacheSize;
+        synchronized (queryCache) {
+            queryCache.clear();
+        }
+    }
+
+    /**
+     * Returns the number of query strings whose compiled query was taken from
+     * the query cache.
+     * 
+     * @return
+     */
+    public long getQueryCacheHits() {
+        return queryCacheHits.get();
+    }
+
+    /**
+     * Returns the number of query strings that had to be parsed.
+     * 
+     * @return
+     */
+    public long getQueryCacheMisses() {
+        return queryCacheMisses.get();
+    }
+
     public IQueryParsers get_queryParsers() {
         return _queryParsers;
     }
 
     public void setQueryParsers(IQueryParsers queryParsers) {
         _queryParsers = queryParsers;
+        // compiled queries depend on the query parsers
+        synchronized (queryCache) {
+            queryCache.clear();
+        }
     }
 
     private Query getLuceneQuery(String definition) throws ParseException {
+        String key = definition.trim().replaceAll("\\s+", " ");
+        if (queryCacheSize > 0) {
+            Query q;
+            synchronized (queryCache) {
+                q = queryCache.get(key);
+            }
+            if (q != null) {
+                queryCacheHits.incrementAndGet();
+                return q;
+            }
+            queryCacheMisses.incrementAndGet();
+        }
         if (LOG.isDebugEnabled()) {
             LOG.debug("Start getting LuceneQuery from IngridQuery String: " + definition);
         }
@@ -264,6 +776,11 @@ public class FacetClassProducer {
             LOG.debug("Resulting lucene query after parsing: " + q);
         }
         q = addSpecialFields(q, iq);
+        if (queryCacheSize > 0) {
+            synchronized (queryCache) {
+                queryCache.put(key, q);
+            }
+        }
         return q;
     }
 
@@ -307,66 +824,160 @@ public class FacetClassProducer {
 
     }
 
-    private TermInfo[] getHighFreqTerms(int numTerms, String field) throws Exception {
+    /**
+     * Returns the terms of a field with the most documents. The term
+     * enumerations of all index readers are merged, so the documents of a
+     * term are summed up over all index readers. The terms with the most
+     * documents are selected with a bounded heap.
+     * 
+     * @param facetDef
+     *            the facet, its field contains the terms
+     * @param bitSets
+     *            if not null, only documents set in the bitset of the index
+     *            reader are counted, otherwise the document frequency of the
+     *            terms is used
+     * @return the terms sorted by ascending number of documents
+     * @throws IOException
+     */
+    private TermInfo[] getTopTerms(FacetDefinition facetDef, OpenBitSet[] bitSets) throws IOException {
+        String field = facetDef.getField();
+        if (indexReaderWrapper == null || field == null) {
+            return new TermInfo[0];
+        }
+        int numTerms = getMaxClasses(facetDef);
+        if (numTerms <= 0) {
+            return new TermInfo[0];
+        }
+        IndexReader[] indexReaders = indexReaderWrapper.getIndexReader();
+        PriorityQueue<ReaderTerms> readerTerms = new PriorityQueue<ReaderTerms>(Math.max(1, indexReaders.length));
+        PriorityQueue<TermInfo> topTerms = new PriorityQueue<TermInfo>(numTerms + 1, new TermInfoComparator());
+        int numDistinctTerms = 0;
+        int[] docs = new int[128];
+        int[] freqs = new int[128];
+        try {
+            for (int i = 0; i < indexReaders.length; i++) {
+                ReaderTerms terms = new ReaderTerms(i, indexReaders[i], field, bitSets != null);
+                if (terms.term != null) {
+                    readerTerms.add(terms);
+                } else {
+                    terms.close();
+                }
+            }
+            while (!readerTerms.isEmpty()) {
+                Term term = readerTerms.peek().term;
+                int count = 0;
+                // sum up the term of all index readers
+                while (!readerTerms.isEmpty() && readerTerms.peek().term.equals(term)) {
+                    ReaderTerms terms = readerTerms.poll();
+                    if (bitSets == null) {
+                        count += terms.termEnum.docFreq();
+                    } else {
+                        count += terms.countDocs(bitSets[terms.reader], docs, freqs);
+                    }
+                    if (terms.next(field)) {
+                        readerTerms.add(terms);
+                    } else {
+                        terms.close();
+                    }
+                }
+                if (count == 0 || (bitSets != null && "".equals(term.text()))) {
+                    continue;
+                }
+                numDistinctTerms++;
+                if (topTerms.size() < numTerms) {
+                    topTerms.add(new TermInfo(term, count));
+                } else if (count > topTerms.peek().docFreq) {
+                    topTerms.poll();
+                    topTerms.add(new TermInfo(term, count));
+                }
+            }
+        } finally {
+            for (ReaderTerms terms : readerTerms) {
+                terms.close();
+            }
+        }
+        distinctValueCounts.put(getKey(facetDef), numDistinctTerms);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Found " + numDistinctTerms + " distinct values in field '" + field + "' for facet '"
+                    + facetDef.getName() + "', use the " + topTerms.size() + " most frequent values.");
+        }
+        TermInfo[] res = topTerms.toArray(new TermInfo[topTerms.size()]);
+        Arrays.sort(res, new TermInfoComparator());
+        return res;
+    }
 
-        if (indexReaderWrapper == null || field == null)
-            return null;
-        Map<Term, Integer> tiq = new HashMap<Term, Integer>();
+    private int getMaxClasses(FacetDefinition facetDef) {
+        if (maxClassesPerFacet != null) {
+            Integer max = maxClassesPerFacet.get(facetDef.getName());
+            if (max != null) {
+                return max;
+            }
+        }
+        return maxClasses;
+    }
+
+    private static String getKey(FacetDefinition facetDef) {
+        return facetDef.getName() == null ? "" : facetDef.getName();
+    }
+
+    /**
+     * The position in the term enumeration of a field of one index reader.
+     */
+    private static class ReaderTerms implements Comparable<ReaderTerms> {
+
+        private final int reader;
+
+        private final TermEnum termEnum;
 
-        for (IndexReader indexReader : indexReaderWrapper.getIndexReader()) {
+        private final TermDocs termDocs;
 
-            TermEnum terms = indexReader.terms(new Term(field, ""));
+        private Term term;
 
-            if (terms == null || terms.term() == null || !terms.term().field().equals(field)) {
-                continue;
+        public ReaderTerms(int reader, IndexReader indexReader, String field, boolean readDocs) throws IOException {
+            this.reader = reader;
+            this.termEnum = indexReader.terms(new Term(field, ""));
+            this.termDocs = readDocs ? indexReader.termDocs() : null;
+            Term t = termEnum.term();
+            this.term = (t != null && t.field().equals(field)) ? t : null;
+        }
+
+        public boolean next(String field) throws IOException {
+            if (termEnum.next() && termEnum.term().field().equals(field)) {
+                term = termEnum.term();
+                return true;
             }
+            term = null;
+            return false;
+        }
 
-            int minFreq = 0;
-            boolean skip = false;
-            while (skip == false) {
-                int docFreq = terms.docFreq();
-                if (tiq.containsKey(terms.term())) {
-                    docFreq += tiq.get(terms.term());
-                }
-                if (docFreq > minFreq) {
-                    tiq.put(terms.term(), docFreq);
-                    if (tiq.size() > numTerms) // if tiq overfull
-                    {
-                        // find and remove minimal term to ensure capacity of
-                        Term minTerm = null;
-                        for (Term t : tiq.keySet()) {
-                            if (minTerm == null) {
-                                minFreq = tiq.get(t);
-                                minTerm = t;
-                            }
-                            if (minFreq > tiq.get(t)) {
-                                minFreq = tiq.get(t);
-                                minTerm = t;
-                            }
-                        }
-                        tiq.remove(minTerm);
+        public int countDocs(OpenBitSet bitSet, int[] docs, int[] freqs) throws IOException {
+            int count = 0;
+            termDocs.seek(termEnum);
+            int n;
+            while ((n = termDocs.read(docs, freqs)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (bitSet.get(docs[i])) {
+                        count++;
                     }
                 }
-                if (terms.next()) {
-                    String fld = terms.term().field();
-                    // skip if another field is reached, we only want the terms
-                    // of one field
-                    if (!fld.equals(field)) {
-                        skip = true;
-                    }
-                } else {
-                    skip = true;
+            }
+            return count;
+        }
+
+        public void close() throws IOException {
+            try {
+                termEnum.close();
+            } finally {
+                if (termDocs != null) {
+                    termDocs.close();
                 }
             }
         }
-        TermInfo[] res = new TermInfo[tiq.size()];
-        int cnt = 0;
-        for (Term t : tiq.keySet()) {
-            res[cnt] = new TermInfo(t, tiq.get(t));
-            cnt++;
+
+        @Override
+        public int compareTo(ReaderTerms other) {
+            return term.compareTo(other.term);
         }
-        Arrays.sort(res, new TermInfoComparator());
-        return res;
     }
 
     private class TermInfoComparator implements Comparator<TermInfo> {
@@ -377,7 +988,9 @@ public class FacetClassProducer {
                 return -1;
             if (ti1.docFreq > ti2.docFreq)
                 return 1;
-            return 0;
+            // terms with the same number of documents in reverse term order,
+            // so that the first terms are kept in the heap
+            return ti2.term.compareTo(ti1.term);
         }
 
     }
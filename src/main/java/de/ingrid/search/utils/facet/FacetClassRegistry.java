@@ -22,87 +22,134 @@
  */
 package de.ingrid.search.utils.facet;
 
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
 
 /**
  * The FacetRegistry manages all FacetClasses inside a Cache, in case the number
  * gets so big, that parts of the cached objects can be stored on the disk
- * instead of in-memory.
+ * instead of in-memory. The cache is an {@link IFacetClassStore}, by default
+ * an ehcache, alternatively an {@link OffHeapFacetClassStore}.
+ * <p/>
+ * The facet classes belong to a generation of the registry. After the index
+ * changed, {@link #rebuild(IndexReader[])} produces all known facets for the
+ * new index readers in the background, while the current generation is still
+ * used. When the new generation is complete, the index readers of the
+ * producer and the generation are swapped together.
+ * <p/>
+ * The registry is thread safe. Concurrent requests for the same facet or
+ * facet class, that is not cached yet, wait for a single production.
  */
 public class FacetClassRegistry {
 
-    private static String FACET_CACHE_NAME = "facetClassCache";
-
     private static Logger LOG = Logger.getLogger(FacetClassRegistry.class);
 
+    private static final long DEFAULT_RETIRE_DELAY = 60000;
+
+    private IFacetClassStore _facetClassStore;
+
     /**
-     * Contains all FacetClass-names (used in cache) for those facets, which
-     * were queried without any FacetClasses.
+     * @element-type FacetClass
      */
-    private Map<String, List<String>> _facetClassMap;
+    private FacetClassProducer _facetClassProducer;
 
-    // private Map<String, FacetClass> _facetClasses;
+    /**
+     * Facet bitsets with a density (fraction of documents of an index reader)
+     * up to this value are stored compressed. A value &lt;= 0 stores all facet
+     * bitsets uncompressed.
+     */
+    private double compressionDensityThreshold = 0;
 
-    private CacheManager _cacheManager;
+    /**
+     * optional snapshot of the produced facet classes on disk
+     */
+    private FacetClassSnapshot _snapshot = null;
 
-    private Cache _cache;
+    /**
+     * Maximum memory in bytes of the facet classes of two generations (the
+     * current and the rebuilt or the replaced one), each generation may use
+     * half of it. A value &lt;= 0 does not limit the memory.
+     */
+    private long memoryBudget = 0;
+
+    private final AtomicLong generationIds = new AtomicLong();
 
     /**
-     * @element-type FacetClass
+     * the generation used for all requests
      */
-    private FacetClassProducer _facetClassProducer;
+    private volatile Generation _generation;
 
-    public FacetClassRegistry() {
-        // _facetClasses = new HashMap<String, FacetClass>();
-        _facetClassMap = new HashMap<String, List<String>>();
+    /**
+     * the generation replaced by the last rebuild, used by requests that
+     * still search its index readers until the retire delay expires
+     */
+    private volatile Generation _previousGeneration = null;
 
-        _cacheManager = new CacheManager();
+    /**
+     * the generation that is rebuilt at the moment, null if no rebuild is
+     * running
+     */
+    private volatile Generation _rebuiltGeneration = null;
 
-        if (_cacheManager.cacheExists(FACET_CACHE_NAME)) {
-            _cache = _cacheManager.getCache(FACET_CACHE_NAME);
-        } else {
-            _cache = setupDefaultCache();
-            _cacheManager.addCache(_cache);
-        }
-    }
+    /**
+     * the time in ms the previous generation was replaced at
+     */
+    private volatile long previousReplaceTime = 0;
 
     /**
-     * Set up a cache for storing the created bitsets.
-     * 
-     * @return a configured Cache
-     */
-    private Cache setupDefaultCache() {
-        /*
-         * CacheConfiguration cc = new CacheConfiguration();
-         * cc.setMemoryStoreEvictionPolicyFromObject
-         * (MemoryStoreEvictionPolicy.LFU); cc.setOverflowToDisk(true);
-         * cc.setEternal(false); cc.setTimeToLiveSeconds(60);
-         * cc.setTimeToIdleSeconds(30); cc.setDiskPersistent(false);
-         * cc.setDiskExpiryThreadIntervalSeconds(0);
-         */
-        return new Cache(FACET_CACHE_NAME, 500, // max elements in cache
-                true, // overflow to disk
-                true, // eternal, if yes then it never expires (overrides
-                // timeToLive and timeToIdle!)
-                0, // time to live in seconds
-                0 // time to idle in seconds
-        );
+     * time in ms the replaced generation is kept after a rebuild
+     */
+    private long retireDelay = DEFAULT_RETIRE_DELAY;
 
+    private volatile ExecutorService rebuildExecutor = null;
+
+    private volatile ExecutorService productionExecutor = null;
+
+    public FacetClassRegistry() {
+        _generation = new Generation(generationIds.incrementAndGet(), null);
+
+        _facetClassStore = new EhcacheFacetClassStore();
     }
 
     public void clear() {
-        _facetClassMap.clear();
-        _cache.removeAll();
+        Generation old;
+        Generation previous;
+        Generation generation;
+        synchronized (this) {
+            old = _generation;
+            previous = _previousGeneration;
+            generation = new Generation(generationIds.incrementAndGet(), null);
+            _previousGeneration = null;
+            _generation = generation;
+        }
+        old.retired = true;
+        if (previous != null) {
+            previous.retired = true;
+        }
+        _facetClassStore.clear();
+        pruneSnapshot(generation);
     }
 
     /**
@@ -111,89 +158,601 @@ public class FacetClassRegistry {
      * class was given, then all classes will be queried from the index.
      */
     public List<FacetClass> getFacetClasses(FacetDefinition facDef) {
+        return getFacetClasses(facDef, null);
+    }
+
+    /**
+     * Returns the facet classes of a facet definition for the given index
+     * readers. Requests pass the index readers their result bitsets were
+     * created from, so the facet classes belong to the same index readers,
+     * even if a rebuild replaces the generation concurrently. The facet
+     * classes of the index readers replaced by the last rebuild are
+     * available until the retire delay expires, after that and for unknown
+     * index readers the facet classes of the current generation are
+     * returned.
+     * 
+     * @param facDef
+     * @param indexReaders
+     *            the index readers of the request or null for the current
+     *            generation
+     * @return
+     */
+    public List<FacetClass> getFacetClasses(FacetDefinition facDef, IndexReader[] indexReaders) {
+        return getFacetClasses(facDef, indexReaders, FacetCountContext.NO_DEADLINE);
+    }
+
+    /**
+     * Returns the facet classes of a facet definition for the given index
+     * readers, see {@link #getFacetClasses(FacetDefinition, IndexReader[])}.
+     * Stops waiting for facet classes that are not produced when the deadline
+     * expires. Their production keeps running in the background, so later
+     * requests find them in the cache. The facet classes produced in time are
+     * returned.
+     * 
+     * @param facDef
+     * @param indexReaders
+     *            the index readers of the request or null for the current
+     *            generation
+     * @param deadline
+     *            the time in ms (see {@link System#currentTimeMillis()}) to
+     *            stop waiting, {@link FacetCountContext#NO_DEADLINE} to wait
+     *            for the production
+     * @return
+     */
+    public List<FacetClass> getFacetClasses(FacetDefinition facDef, IndexReader[] indexReaders, long deadline) {
+        retireExpiredGeneration();
+        Generation generation = getGeneration(indexReaders);
         List<FacetClass> fClasses = new ArrayList<FacetClass>();
 
         // if no classes have been specified then check the cache or
         // find all values to this facet and put them into the cache
         if (facDef.getClasses() == null) {
-            fClasses.addAll(getFacetClassesFromCacheOrCreate(facDef));
+            fClasses.addAll(getFacetClassesFromCacheOrCreate(generation, facDef, deadline));
         } else {
             for (FacetClassDefinition fcDef : facDef.getClasses()) {
-                fClasses.add(getFacetClassFromCacheOrCreate(fcDef));
+                FacetClass fc = getFacetClassFromCacheOrCreate(generation, fcDef, deadline);
+                // facet classes that failed or were not produced in time are
+                // missing
+                if (fc != null) {
+                    fClasses.add(fc);
+                }
             }
         }
         return fClasses;
     }
 
-    private List<FacetClass> getFacetClassesFromCacheOrCreate(FacetDefinition facDef) {
-        List<FacetClass> facetClasses = null;
-        List<String> clazzes = _facetClassMap.get(facDef.getName());
-        // if classes must have been produced already
-        if (clazzes != null) {
-            facetClasses = new ArrayList<FacetClass>();
-            for (String facetClassName : clazzes) {
-                long start = 0;
-                if (LOG.isDebugEnabled()) {
-                    start = System.currentTimeMillis();
-                }
-                facetClasses.add(getFromCache(facetClassName));
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Get facet class from cache: " + facetClasses.get(facetClasses.size() - 1) + " in "
-                            + (System.currentTimeMillis() - start) + " ms.");
-                }
+    /**
+     * Produces all facets and facet classes that were requested from the
+     * current generation for the given index readers in the background. The
+     * current generation is used until the new generation is complete. Then
+     * the index readers of the producer are set to the given index readers
+     * and the new generation replaces the current one.
+     * <p/>
+     * If the memory budget of the new generation is exceeded while producing,
+     * the facets produced so far are kept and the remaining facets are
+     * produced on request.
+     * <p/>
+     * The replaced generation is kept for requests that still search its
+     * index readers until the retire delay expires (see
+     * {@link #setRetireDelay(long)}) or the next rebuild starts. Its index
+     * readers should not be closed before.
+     * 
+     * @param indexReaders
+     *            the new index readers
+     * @return true if the new generation was completely produced, false if it
+     *         was produced only partially or replaced by a concurrent rebuild
+     *         or clear
+     */
+    public Future<Boolean> rebuild(final IndexReader[] indexReaders) {
+        return getRebuildExecutor().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return rebuildGeneration(indexReaders);
             }
-        } else {
+        });
+    }
+
+    private boolean rebuildGeneration(IndexReader[] indexReaders) {
+        long start = System.currentTimeMillis();
+        // only the current and the rebuilt generation share the memory
+        retirePreviousGeneration();
+        Generation current = _generation;
+        Generation next = new Generation(generationIds.incrementAndGet(), _facetClassProducer
+                .forIndexReaders(indexReaders));
+        // the memory budget is checked for every produced facet class
+        next.rebuiltFrom = current;
+        _rebuiltGeneration = next;
+        List<FacetDefinition> facetDefs;
+        List<FacetClassDefinition> classDefs;
+        facetDefs = new ArrayList<FacetDefinition>(current.facetDefinitions.values());
+        classDefs = new ArrayList<FacetClassDefinition>(current.classDefinitions.values());
+        for (int i = 0; !next.budgetExceeded && i < facetDefs.size(); i++) {
+            getFacetClassesFromCacheOrCreate(next, facetDefs.get(i), FacetCountContext.NO_DEADLINE);
+        }
+        for (int i = 0; !next.budgetExceeded && i < classDefs.size(); i++) {
+            getFacetClassFromCacheOrCreate(next, classDefs.get(i), FacetCountContext.NO_DEADLINE);
+        }
+        boolean complete = !next.budgetExceeded;
+        next.rebuiltFrom = null;
+        next.budgetExceeded = false;
+        if (!complete) {
+            LOG.warn("Memory budget of " + memoryBudget + " bytes exceeded while rebuilding facet classes, "
+                    + "produce the remaining facet classes on request.");
+        }
+        synchronized (this) {
+            _rebuiltGeneration = null;
+            if (_generation != current) {
+                LOG.warn("Facet classes changed while rebuilding, discard rebuilt facet classes.");
+                retire(next);
+                return false;
+            }
+            // keep the replaced generation for requests that still search
+            // its index readers, the generation is published before the
+            // index readers, so requests find the generation of the index
+            // readers they read
+            if (current.producer == null) {
+                current.producer = _facetClassProducer.forIndexReaders(getIndexReaders(current));
+            }
+            _previousGeneration = current;
+            previousReplaceTime = System.currentTimeMillis();
+            _generation = next;
+            _facetClassProducer.getIndexReaderWrapper().setIndexReader(indexReaders);
+        }
+        pruneSnapshot(next, current);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Rebuild " + (complete ? "complete" : "partial") + " facet class generation with "
+                    + next.keys.size() + " facet classes (" + next.sizeInBytes + " bytes) within: "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }
+        return complete;
+    }
+
+    /**
+     * Returns the generation of the index readers.
+     * 
+     * @param indexReaders
+     * @return the current generation if the index readers are null or do not
+     *         belong to the current or previous generation
+     */
+    private Generation getGeneration(IndexReader[] indexReaders) {
+        if (indexReaders == null) {
+            return _generation;
+        }
+        Generation generation = findGeneration(indexReaders);
+        if (generation == null) {
+            // wait for a swap of generations in progress
+            synchronized (this) {
+                generation = findGeneration(indexReaders);
+            }
+        }
+        if (generation == null) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("No facet class generation for the index readers of the request, use the current one.");
+            }
+            generation = _generation;
+        }
+        return generation;
+    }
+
+    private Generation findGeneration(IndexReader[] indexReaders) {
+        Generation generation = _generation;
+        if (isSameIndexReaders(getIndexReaders(generation), indexReaders)) {
+            return generation;
+        }
+        generation = _previousGeneration;
+        if (generation != null && isSameIndexReaders(getIndexReaders(generation), indexReaders)) {
+            return generation;
+        }
+        return null;
+    }
+
+    private static boolean isSameIndexReaders(IndexReader[] indexReaders, IndexReader[] other) {
+        if (indexReaders == other) {
+            return true;
+        }
+        if (indexReaders == null || other == null || indexReaders.length != other.length) {
+            return false;
+        }
+        for (int i = 0; i < other.length; i++) {
+            if (indexReaders[i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Retires the previous generation, if its retire delay expired.
+     */
+    private void retireExpiredGeneration() {
+        if (_previousGeneration != null && System.currentTimeMillis() >= previousReplaceTime + retireDelay) {
+            retirePreviousGeneration();
+        }
+    }
+
+    private void retirePreviousGeneration() {
+        Generation previous;
+        Generation current;
+        synchronized (this) {
+            previous = _previousGeneration;
+            current = _generation;
+            _previousGeneration = null;
+        }
+        if (previous != null) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Retire facet classes of the replaced index readers.");
+            }
+            retire(previous);
+            pruneSnapshot(current);
+        }
+    }
+
+    /**
+     * Returns the memory used by the facet classes of all generations kept in
+     * the store: the current one and the one replaced by the last rebuild or
+     * the one that is rebuilt.
+     * 
+     * @return
+     */
+    public long getStoredSizeInBytes() {
+        long result = 0;
+        Set<Generation> generations = new HashSet<Generation>();
+        synchronized (this) {
+            generations.add(_generation);
+            if (_previousGeneration != null) {
+                generations.add(_previousGeneration);
+            }
+            if (_rebuiltGeneration != null) {
+                generations.add(_rebuiltGeneration);
+            }
+        }
+        for (Generation generation : generations) {
+            result += generation.sizeInBytes;
+        }
+        return result;
+    }
+
+    /**
+     * Removes the facet classes of a generation, that is not used any more.
+     */
+    private void retire(Generation generation) {
+        List<String> keys;
+        synchronized (generation) {
+            generation.retired = true;
+            keys = new ArrayList<String>(generation.keys.keySet());
+            generation.keys.clear();
+            generation.sizeInBytes = 0;
+        }
+        for (String key : keys) {
+            _facetClassStore.remove(key);
+        }
+    }
+
+    private List<FacetClass> getFacetClassesFromCacheOrCreate(final Generation generation,
+            final FacetDefinition facDef, long deadline) {
+        generation.facetDefinitions.put(getKey(facDef.getName()), facDef);
+        // if classes must have been produced already
+        List<FacetClass> facetClasses = getFacetClassesFromCache(generation, facDef);
+        if (facetClasses != null) {
+            return facetClasses;
+        }
+        // otherwise produce them now, only once for all concurrent requests
+        facetClasses = produceOnce(generation.facetProductions, getKey(facDef.getName()),
+                new Callable<List<FacetClass>>() {
+                    @Override
+                    public List<FacetClass> call() {
+                        return createFacetClasses(generation, facDef);
+                    }
+                }, deadline);
+        return facetClasses == null ? new ArrayList<FacetClass>() : facetClasses;
+    }
+
+    /**
+     * Returns the cached facet classes of a facet or null if the facet was not
+     * produced yet or one of its classes was removed from the cache.
+     */
+    private List<FacetClass> getFacetClassesFromCache(Generation generation, FacetDefinition facDef) {
+        List<String> clazzes = generation.facetClassMap.get(getKey(facDef.getName()));
+        if (clazzes == null) {
+            return null;
+        }
+        List<FacetClass> facetClasses = new ArrayList<FacetClass>();
+        for (String facetClassName : clazzes) {
             long start = 0;
-            if (LOG.isInfoEnabled()) {
+            if (LOG.isDebugEnabled()) {
                 start = System.currentTimeMillis();
             }
-            // otherwise produce them now
-            facetClasses = _facetClassProducer.produceClasses(facDef);
-            // add new dynamically created classes to map so we can remember all
-            // classes belonging to a generic facet
-            addClassesToCacheAndMap(facDef.getName(), facetClasses);
-            if (LOG.isInfoEnabled()) {
-                LOG.info("Produce " + facetClasses.size() + " facet classes for facet '" + facDef.getName()
-                        + "' and place them into cache within: " + (System.currentTimeMillis() - start) + " ms.");
+            FacetClass fc = getFromCache(generation, facetClassName);
+            if (fc == null) {
+                // the store removed the facet class, produce the facet again
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Facet class '" + facetClassName + "' not found in cache, produce facet '"
+                            + facDef.getName() + "' again.");
+                }
+                return null;
+            }
+            facetClasses.add(fc);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Get facet class from cache: " + fc + " in " + (System.currentTimeMillis() - start)
+                        + " ms.");
             }
+        }
+        return facetClasses;
+    }
 
+    private List<FacetClass> createFacetClasses(final Generation generation, FacetDefinition facDef) {
+        // the facet may have been produced while waiting for the production
+        List<FacetClass> facetClasses = getFacetClassesFromCache(generation, facDef);
+        if (facetClasses != null) {
+            return facetClasses;
+        }
+        if (_snapshot != null) {
+            facetClasses = _snapshot.loadFacet(getIndexReaders(generation), facDef.getName());
+            if (facetClasses != null) {
+                addClassesToCacheAndMap(generation, getKey(facDef.getName()), facetClasses);
+                return facetClasses;
+            }
+        }
+        long start = 0;
+        if (LOG.isInfoEnabled()) {
+            start = System.currentTimeMillis();
+        }
+        // put every facet class into cache as soon as it is produced, stop
+        // producing if the memory budget of a rebuild is exceeded
+        final boolean[] stored = new boolean[] { true };
+        facetClasses = getProducer(generation).produceClasses(facDef, new IFacetClassListener() {
+            @Override
+            public void facetClassProduced(FacetClass facetClass) {
+                stored[0] &= addToCache(generation, facetClass.getFacetClassName(), facetClass);
+                if (generation.budgetExceeded) {
+                    throw new CancellationException("Memory budget of " + memoryBudget + " bytes exceeded.");
+                }
+            }
+        });
+        if (generation.budgetExceeded) {
+            // the facet classes are incomplete
+            return facetClasses;
+        }
+        // add new dynamically created classes to map so we can remember all
+        // classes belonging to a generic facet, facets whose classes exceed
+        // the memory budget are produced again on the next request
+        if (stored[0]) {
+            addClassesToMap(generation, getKey(facDef.getName()), facetClasses);
+        }
+        storeFacetSnapshot(generation, facDef.getName(), facetClasses);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Produce " + facetClasses.size() + " facet classes for facet '" + facDef.getName()
+                    + "' and place them into cache within: " + (System.currentTimeMillis() - start) + " ms.");
         }
         return facetClasses;
     }
 
-    private void addClassesToCacheAndMap(String facetName, List<FacetClass> clazzes) {
-        List<String> classNames = new ArrayList<String>();
+    private void addClassesToCacheAndMap(Generation generation, String facetName, List<FacetClass> clazzes) {
+        boolean stored = true;
         for (FacetClass facetClass : clazzes) {
             // put facet class into cache
-            addToCache(facetClass.getFacetClassName(), facetClass);
+            stored &= addToCache(generation, facetClass.getFacetClassName(), facetClass);
+        }
+        if (stored) {
+            addClassesToMap(generation, facetName, clazzes);
+        }
+    }
 
+    private void addClassesToMap(Generation generation, String facetName, List<FacetClass> clazzes) {
+        List<String> classNames = new ArrayList<String>();
+        for (FacetClass facetClass : clazzes) {
             // remember name of facet class
             classNames.add(facetClass.getFacetClassName());
         }
 
         // remember all facet classes names to a facet for later caching
-        _facetClassMap.put(facetName, classNames);
+        generation.facetClassMap.put(facetName, classNames);
     }
 
-    private FacetClass getFacetClassFromCacheOrCreate(FacetClassDefinition fcDef) {
+    private FacetClass getFacetClassFromCacheOrCreate(final Generation generation,
+            final FacetClassDefinition fcDef, long deadline) {
+        generation.classDefinitions.put(getKey(fcDef.getName()), fcDef);
         // check if facet class is already in cache
-        FacetClass fc = getFromCache(fcDef.getName());
-        // we have to produce the facet class
+        FacetClass fc = getFromCache(generation, fcDef.getName());
+        if (fc != null) {
+            return fc;
+        }
+        // we have to produce the facet class, only once for all concurrent
+        // requests
+        return produceOnce(generation.classProductions, getKey(fcDef.getName()), new Callable<FacetClass>() {
+            @Override
+            public FacetClass call() {
+                return createFacetClass(generation, fcDef);
+            }
+        }, deadline);
+    }
+
+    private FacetClass createFacetClass(Generation generation, FacetClassDefinition fcDef) {
+        // the facet class may have been produced while waiting for the
+        // production
+        FacetClass fc = getFromCache(generation, fcDef.getName());
+        if (fc == null && _snapshot != null) {
+            fc = _snapshot.loadClass(getIndexReaders(generation), fcDef.getName());
+            if (fc != null) {
+                addToCache(generation, fcDef.getName(), fc);
+            }
+        }
         if (fc == null) {
-            fc = _facetClassProducer.produceClass(fcDef);
+            fc = getProducer(generation).produceClass(fcDef);
             // remember facet class in cache
-            addToCache(fcDef.getName(), fc);
+            addToCache(generation, fcDef.getName(), fc);
+            storeClassSnapshot(generation, fc);
         }
         return fc;
     }
 
-    private FacetClass getFromCache(String key) {
-        Element element = _cache.get(key);
-        if (element == null) {
+    /**
+     * Writes the facet classes of a facet to the snapshot in the background,
+     * so the request producing them does not wait for the disk.
+     */
+    private void storeFacetSnapshot(final Generation generation, final String facetName,
+            final List<FacetClass> facetClasses) {
+        final FacetClassSnapshot snapshot = _snapshot;
+        if (snapshot == null) {
+            return;
+        }
+        final IndexReader[] indexReaders = getIndexReaders(generation);
+        submitSnapshotWrite(new Runnable() {
+            @Override
+            public void run() {
+                // the snapshot of a replaced generation may be pruned already
+                if (!generation.retired) {
+                    snapshot.storeFacet(indexReaders, facetName, facetClasses);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes a facet class to the snapshot in the background.
+     */
+    private void storeClassSnapshot(final Generation generation, final FacetClass facetClass) {
+        final FacetClassSnapshot snapshot = _snapshot;
+        if (snapshot == null || facetClass == null) {
+            return;
+        }
+        final IndexReader[] indexReaders = getIndexReaders(generation);
+        submitSnapshotWrite(new Runnable() {
+            @Override
+            public void run() {
+                if (!generation.retired) {
+                    snapshot.storeClass(indexReaders, facetClass);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the snapshots of all index readers except the ones of the given
+     * generations on the rebuild executor.
+     */
+    private void pruneSnapshot(Generation... generations) {
+        final FacetClassSnapshot snapshot = _snapshot;
+        if (snapshot == null) {
+            return;
+        }
+        final List<IndexReader[]> indexReaders = new ArrayList<IndexReader[]>();
+        for (Generation generation : generations) {
+            indexReaders.add(getIndexReaders(generation));
+        }
+        submitSnapshotWrite(new Runnable() {
+            @Override
+            public void run() {
+                snapshot.prune(indexReaders);
+            }
+        });
+    }
+
+    private void submitSnapshotWrite(Runnable write) {
+        try {
+            getRebuildExecutor().execute(write);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Rebuild executor rejected facet class snapshot, snapshot not written.");
+        }
+    }
+
+    /**
+     * Returns the key of a facet or facet class name in the concurrent maps,
+     * which do not support null keys.
+     */
+    private static String getKey(String name) {
+        return name == null ? "" : name;
+    }
+
+    /**
+     * Runs the production of a key, if no other thread produces the key at
+     * the moment. Otherwise waits for the result of the other thread.
+     * <p/>
+     * Productions of requests with a deadline run on the production executor,
+     * so the request can stop waiting when the deadline expires, while the
+     * production continues for later requests.
+     * 
+     * @param productions
+     *            the running productions
+     * @param key
+     * @param production
+     * @param deadline
+     *            the time in ms to stop waiting or
+     *            {@link FacetCountContext#NO_DEADLINE}
+     * @return the result of the production or null if the production failed
+     *         or did not finish before the deadline
+     */
+    private <T> T produceOnce(final ConcurrentMap<String, Future<T>> productions, final String key,
+            Callable<T> production, long deadline) {
+        final FutureTask<T> task = new FutureTask<T>(production);
+        Future<T> running = productions.putIfAbsent(key, task);
+        if (running == null) {
+            Runnable run = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        productions.remove(key, task);
+                    }
+                }
+            };
+            if (deadline == FacetCountContext.NO_DEADLINE) {
+                run.run();
+            } else {
+                try {
+                    getProductionExecutor().execute(run);
+                } catch (RejectedExecutionException e) {
+                    run.run();
+                }
+            }
+            running = task;
+        } else if (LOG.isDebugEnabled()) {
+            LOG.debug("Wait for production of '" + key + "' by another request.");
+        }
+        try {
+            if (deadline == FacetCountContext.NO_DEADLINE) {
+                return running.get();
+            }
+            return running.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Deadline expired while producing '" + key + "', continue production in background.");
+            }
+        } catch (ExecutionException e) {
+            LOG.error("Error producing '" + key + "'.", e.getCause());
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted while waiting for production of '" + key + "'.", e);
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    private FacetClassProducer getProducer(Generation generation) {
+        return generation.producer == null ? _facetClassProducer : generation.producer;
+    }
+
+    private IndexReader[] getIndexReaders(Generation generation) {
+        FacetClassProducer producer = getProducer(generation);
+        if (producer == null || producer.getIndexReaderWrapper() == null) {
             return null;
-        } else {
-            return (FacetClass) element.getValue();
         }
+        return producer.getIndexReaderWrapper().getIndexReader();
+    }
+
+    private FacetClass getFromCache(Generation generation, String key) {
+        String storeKey = generation.getStoreKey(key);
+        FacetClass fc = _facetClassStore.get(storeKey);
+        if (fc == null) {
+            // the store may have evicted the facet class
+            synchronized (generation) {
+                Long size = generation.keys.remove(storeKey);
+                if (size != null) {
+                    generation.sizeInBytes -= size;
+                }
+            }
+        }
+        return fc;
     }
 
     public FacetClassProducer getFacetClassProducer() {
@@ -204,10 +763,256 @@ public class FacetClassRegistry {
         _facetClassProducer = facetClassProducer;
     }
 
-    private void addToCache(String key, FacetClass fc) {
-        _cache.put(new Element(key, (Serializable) fc));
-        // System.out.println("Disk store size: " + _cache.getDiskStoreSize() +
-        // " and memory store size: " + _cache.getMemoryStoreSize());
-        // System.out.println("Memory size: " + _cache.calculateInMemorySize());
+    public double getCompressionDensityThreshold() {
+        return compressionDensityThreshold;
+    }
+
+    /**
+     * Sets the density (fraction of documents of an index reader) up to which
+     * the bitsets of a facet class are stored compressed. Values &lt;= 0
+     * disable compression.
+     * 
+     * @param compressionDensityThreshold
+     */
+    public void setCompressionDensityThreshold(double compressionDensityThreshold) {
+        this.compressionDensityThreshold = compressionDensityThreshold;
+    }
+
+    /**
+     * Stores a facet class of a generation, if the generation stays within
+     * its half of the memory budget. Generations that are rebuilt stop
+     * producing if the budget is exceeded, other generations do not store
+     * the facet class, it is used by the producing request only.
+     * 
+     * @return true if the facet class was stored
+     */
+    private boolean addToCache(Generation generation, String key, FacetClass fc) {
+        if (fc != null && compressionDensityThreshold > 0) {
+            fc.compressBitSets(compressionDensityThreshold);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Store facet class '" + key + "' with " + fc.getSizeInBytes() + " bytes.");
+            }
+        }
+        String storeKey = generation.getStoreKey(key);
+        long size = (fc == null) ? 0 : fc.getSizeInBytes();
+        synchronized (generation) {
+            // do not store facet classes of generations that are not used any
+            // more
+            if (generation.retired || generation.budgetExceeded) {
+                return false;
+            }
+            Long oldSize = generation.keys.get(storeKey);
+            long sizeInBytes = generation.sizeInBytes - ((oldSize == null) ? 0 : oldSize) + size;
+            if (memoryBudget > 0 && sizeInBytes > memoryBudget / 2) {
+                if (generation.rebuiltFrom != null) {
+                    generation.budgetExceeded = true;
+                } else if (LOG.isDebugEnabled()) {
+                    LOG.debug("Memory budget of " + memoryBudget + " bytes exceeded, do not store facet class '"
+                            + key + "'.");
+                }
+                return false;
+            }
+            generation.keys.put(storeKey, size);
+            generation.sizeInBytes = sizeInBytes;
+        }
+        _facetClassStore.put(storeKey, fc);
+        return true;
+    }
+
+    /**
+     * Returns the memory used by the facet classes of the current generation.
+     * 
+     * @return
+     */
+    public long getSizeInBytes() {
+        return _generation.sizeInBytes;
+    }
+
+    public FacetClassSnapshot getSnapshot() {
+        return _snapshot;
+    }
+
+    /**
+     * Sets a snapshot on disk, the produced facet classes are stored in. After
+     * a restart facet classes are loaded from the snapshot, if the index did
+     * not change.
+     * 
+     * @param snapshot
+     */
+    public void setSnapshot(FacetClassSnapshot snapshot) {
+        _snapshot = snapshot;
+    }
+
+    public long getRetireDelay() {
+        return retireDelay;
+    }
+
+    /**
+     * Sets the time in ms the generation replaced by a rebuild is kept for
+     * requests that still search its index readers. Defaults to 60000 ms.
+     * 
+     * @param retireDelay
+     */
+    public void setRetireDelay(long retireDelay) {
+        this.retireDelay = retireDelay;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the maximum memory in bytes used by the facet classes of the
+     * current and a rebuilt or replaced generation together. Each generation
+     * may use half of the budget, facet classes exceeding it are not stored
+     * and produced again on request. Values &lt;= 0 do not limit the memory.
+     * 
+     * @param memoryBudget
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    private ExecutorService getRebuildExecutor() {
+        if (rebuildExecutor == null) {
+            synchronized (this) {
+                if (rebuildExecutor == null) {
+                    rebuildExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "facet-class-rebuild");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                }
+            }
+        }
+        return rebuildExecutor;
+    }
+
+    private ExecutorService getProductionExecutor() {
+        if (productionExecutor == null) {
+            synchronized (this) {
+                if (productionExecutor == null) {
+                    final AtomicInteger threadNumber = new AtomicInteger(1);
+                    // idle threads terminate, so no threads are kept after
+                    // the registry is discarded
+                    productionExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "facet-class-production-" + threadNumber.getAndIncrement());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                }
+            }
+        }
+        return productionExecutor;
+    }
+
+    /**
+     * Sets the executor service the facet classes of requests with a deadline
+     * are produced with. If not set, a pool of daemon threads, that terminate
+     * when idle, is created on first use.
+     * 
+     * @param productionExecutor
+     */
+    public void setProductionExecutor(ExecutorService productionExecutor) {
+        this.productionExecutor = productionExecutor;
+    }
+
+    /**
+     * Sets the executor service the generations are rebuilt and the snapshot
+     * is written with. If not set, a single daemon thread is created on first
+     * use.
+     * 
+     * @param rebuildExecutor
+     */
+    public void setRebuildExecutor(ExecutorService rebuildExecutor) {
+        this.rebuildExecutor = rebuildExecutor;
+    }
+
+    public IFacetClassStore getFacetClassStore() {
+        return _facetClassStore;
+    }
+
+    /**
+     * Sets the store of the facet classes. Defaults to an
+     * {@link EhcacheFacetClassStore}.
+     * 
+     * @param facetClassStore
+     */
+    public void setFacetClassStore(IFacetClassStore facetClassStore) {
+        _facetClassStore = facetClassStore;
+    }
+
+    /**
+     * The facet classes produced for one set of index readers. The facet
+     * classes of all generations share the store, their keys are prefixed
+     * with the generation id.
+     */
+    private static class Generation {
+
+        private final long id;
+
+        /**
+         * the producer for the index readers of this generation or null to
+         * use the producer of the registry, set when the generation is
+         * replaced
+         */
+        private volatile FacetClassProducer producer;
+
+        /**
+         * Contains all FacetClass-names (used in cache) for those facets,
+         * which were queried without any FacetClasses.
+         */
+        private final ConcurrentMap<String, List<String>> facetClassMap = new ConcurrentHashMap<String, List<String>>();
+
+        /**
+         * the requested definitions, to produce them again for a new
+         * generation
+         */
+        private final ConcurrentMap<String, FacetDefinition> facetDefinitions = new ConcurrentHashMap<String, FacetDefinition>();
+
+        private final ConcurrentMap<String, FacetClassDefinition> classDefinitions = new ConcurrentHashMap<String, FacetClassDefinition>();
+
+        /**
+         * running productions of facets and facet classes
+         */
+        private final ConcurrentMap<String, Future<List<FacetClass>>> facetProductions = new ConcurrentHashMap<String, Future<List<FacetClass>>>();
+
+        private final ConcurrentMap<String, Future<FacetClass>> classProductions = new ConcurrentHashMap<String, Future<FacetClass>>();
+
+        /**
+         * store key -&gt; size in bytes of the facet classes, guarded by this
+         */
+        private final Map<String, Long> keys = new HashMap<String, Long>();
+
+        private volatile long sizeInBytes = 0;
+
+        private volatile boolean retired = false;
+
+        /**
+         * the generation this generation is rebuilt from while it is rebuilt,
+         * the memory budget is shared with it
+         */
+        private volatile Generation rebuiltFrom = null;
+
+        /**
+         * true if the memory budget was exceeded while rebuilding, the
+         * rebuild stops
+         */
+        private volatile boolean budgetExceeded = false;
+
+        public Generation(long id, FacetClassProducer producer) {
+            this.id = id;
+            this.producer = producer;
+        }
+
+        public String getStoreKey(String key) {
+            return id + ":" + key;
+        }
     }
 }
@@ -0,0 +1,446 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.OpenBitSet;
+
+import de.ingrid.search.utils.facet.bitset.CompressedFacetBitSet;
+import de.ingrid.search.utils.facet.bitset.IFacetBitSet;
+import de.ingrid.search.utils.facet.bitset.OffHeapFacetBitSet;
+
+/**
+ * Snapshot of produced facet classes on disk, used to avoid producing all
+ * facet classes again after a restart.
+ * <p/>
+ * The snapshot of an index is stored in a sub directory named by a key built
+ * from the class, version and size of all index readers. Any change of the
+ * index leads to a new key, snapshots of other keys are removed by
+ * {@link #prune(List)} when the facet classes of a new index are used. Every facet
+ * class is stored in its own file ending with a CRC32 checksum of its
+ * content. Uncompressed facet bitsets are loaded by memory mapping the file,
+ * compressed facet bitsets are read from their binary format. No java
+ * serialization is used, files are replaced atomically.
+ * Files that cannot be read or do not match the checksum are removed and the
+ * facet classes must be produced again.
+ * <p/>
+ * Index readers that do not support {@link IndexReader#getVersion()} (e.g.
+ * MultiReader) cannot be identified, for those no snapshot is used.
+ * 
+ */
+public class FacetClassSnapshot {
+
+    private static Logger LOG = Logger.getLogger(FacetClassSnapshot.class);
+
+    private static final int MAGIC = 0x46435331;
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final byte TYPE_NULL = 0;
+
+    private static final byte TYPE_DENSE = 1;
+
+    private static final byte TYPE_COMPRESSED = 3;
+
+    private static final String CLASS_FILE_PREFIX = "c_";
+
+    private static final String FACET_FILE_PREFIX = "f_";
+
+    private static final String FILE_SUFFIX = ".fcs";
+
+    private File directory;
+
+    public FacetClassSnapshot(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Loads all facet classes stored for a facet.
+     * 
+     * @param indexReaders
+     * @param facetName
+     * @return the facet classes or null, if the facet or one of its facet
+     *         classes is not stored in the snapshot
+     */
+    public List<FacetClass> loadFacet(IndexReader[] indexReaders, String facetName) {
+        File dir = getSnapshotDirectory(indexReaders, false);
+        if (dir == null || facetName == null) {
+            return null;
+        }
+        File facetFile = new File(dir, FACET_FILE_PREFIX + hash(facetName) + FILE_SUFFIX);
+        if (!facetFile.exists()) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = readChecked(facetFile);
+            if (!facetName.equals(readString(buffer))) {
+                throw new IOException("Facet name does not match.");
+            }
+            int numClasses = buffer.getInt();
+            List<FacetClass> facetClasses = new ArrayList<FacetClass>(numClasses);
+            for (int i = 0; i < numClasses; i++) {
+                FacetClass fc = loadClass(indexReaders, readString(buffer));
+                if (fc == null) {
+                    return null;
+                }
+                facetClasses.add(fc);
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Load " + numClasses + " facet classes of facet '" + facetName + "' from snapshot.");
+            }
+            return facetClasses;
+        } catch (Exception e) {
+            LOG.warn("Error loading facet '" + facetName + "' from snapshot, facet will be produced again.", e);
+            facetFile.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Loads a facet class from the snapshot.
+     * 
+     * @param indexReaders
+     * @param facetClassName
+     * @return the facet class or null, if the facet class is not stored in
+     *         the snapshot
+     */
+    public FacetClass loadClass(IndexReader[] indexReaders, String facetClassName) {
+        File dir = getSnapshotDirectory(indexReaders, false);
+        if (dir == null || facetClassName == null) {
+            return null;
+        }
+        File classFile = new File(dir, CLASS_FILE_PREFIX + hash(facetClassName) + FILE_SUFFIX);
+        if (!classFile.exists()) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = readChecked(classFile);
+            if (!facetClassName.equals(readString(buffer))) {
+                throw new IOException("Facet class name does not match.");
+            }
+            int numBitSets = buffer.getInt();
+            if (numBitSets != indexReaders.length) {
+                throw new IOException("Number of bitsets does not match number of index readers.");
+            }
+            IFacetBitSet[] bitSets = new IFacetBitSet[numBitSets];
+            for (int i = 0; i < numBitSets; i++) {
+                byte type = buffer.get();
+                if (type == TYPE_DENSE) {
+                    long cardinality = buffer.getLong();
+                    int numWords = buffer.getInt();
+                    ByteBuffer words = buffer.slice();
+                    words.limit(numWords * 8);
+                    bitSets[i] = new OffHeapFacetBitSet(words.asLongBuffer(), cardinality);
+                    buffer.position(buffer.position() + numWords * 8);
+                } else if (type == TYPE_COMPRESSED) {
+                    bitSets[i] = CompressedFacetBitSet.readFrom(buffer);
+                } else if (type != TYPE_NULL) {
+                    throw new IOException("Unknown bitset type " + type + ".");
+                }
+            }
+            return new FacetClass(facetClassName, bitSets);
+        } catch (Exception e) {
+            LOG.warn("Error loading facet class '" + facetClassName
+                    + "' from snapshot, facet class will be produced again.", e);
+            classFile.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Stores all facet classes of a facet.
+     * 
+     * @param indexReaders
+     * @param facetName
+     * @param facetClasses
+     */
+    public void storeFacet(IndexReader[] indexReaders, String facetName, List<FacetClass> facetClasses) {
+        File dir = getSnapshotDirectory(indexReaders, true);
+        if (dir == null || facetName == null) {
+            return;
+        }
+        for (FacetClass fc : facetClasses) {
+            storeClass(indexReaders, fc);
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeString(out, facetName);
+            out.writeInt(facetClasses.size());
+            for (FacetClass fc : facetClasses) {
+                writeString(out, fc.getFacetClassName());
+            }
+            out.close();
+            writeChecked(new File(dir, FACET_FILE_PREFIX + hash(facetName) + FILE_SUFFIX), bytes.toByteArray());
+        } catch (IOException e) {
+            LOG.warn("Error storing facet '" + facetName + "' in snapshot.", e);
+        }
+    }
+
+    /**
+     * Stores a facet class.
+     * 
+     * @param indexReaders
+     * @param facetClass
+     */
+    public void storeClass(IndexReader[] indexReaders, FacetClass facetClass) {
+        File dir = getSnapshotDirectory(indexReaders, true);
+        if (dir == null || facetClass == null || facetClass.getFacetClassName() == null
+                || facetClass.getFacetBitSets() == null) {
+            return;
+        }
+        try {
+            IFacetBitSet[] bitSets = facetClass.getFacetBitSets();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeString(out, facetClass.getFacetClassName());
+            out.writeInt(bitSets.length);
+            for (IFacetBitSet bitSet : bitSets) {
+                if (bitSet == null) {
+                    out.writeByte(TYPE_NULL);
+                } else if (!(bitSet instanceof CompressedFacetBitSet)) {
+                    OpenBitSet openBitSet = bitSet.toOpenBitSet();
+                    long[] words = openBitSet.getBits();
+                    int numWords = openBitSet.getNumWords();
+                    out.writeByte(TYPE_DENSE);
+                    out.writeLong(bitSet.cardinality());
+                    out.writeInt(numWords);
+                    for (int i = 0; i < numWords; i++) {
+                        out.writeLong(words[i]);
+                    }
+                } else {
+                    out.writeByte(TYPE_COMPRESSED);
+                    ((CompressedFacetBitSet) bitSet).writeTo(out);
+                }
+            }
+            out.close();
+            writeChecked(new File(dir, CLASS_FILE_PREFIX + hash(facetClass.getFacetClassName()) + FILE_SUFFIX),
+                    bytes.toByteArray());
+        } catch (IOException e) {
+            LOG.warn("Error storing facet class '" + facetClass.getFacetClassName() + "' in snapshot.", e);
+        }
+    }
+
+    /**
+     * Removes the snapshots of all index readers except the given ones. Must
+     * be called when the facet classes of new index readers are used, not
+     * while the facet classes of the given index readers are produced.
+     * 
+     * @param indexReaders
+     *            the index readers whose snapshots are kept, null entries are
+     *            ignored
+     */
+    public void prune(List<IndexReader[]> indexReaders) {
+        if (directory == null) {
+            return;
+        }
+        List<String> keys = new ArrayList<String>();
+        for (IndexReader[] readers : indexReaders) {
+            String key = (readers == null) ? null : getIndexKey(readers);
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        synchronized (this) {
+            File[] snapshots = directory.listFiles();
+            if (snapshots == null) {
+                return;
+            }
+            for (File snapshot : snapshots) {
+                if (snapshot.isDirectory() && !keys.contains(snapshot.getName())
+                        && snapshot.getName().matches("[0-9a-f]{40}")) {
+                    if (LOG.isInfoEnabled()) {
+                        LOG.info("Remove outdated facet class snapshot: " + snapshot);
+                    }
+                    deleteDirectory(snapshot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the snapshot directory of the index readers.
+     * 
+     * @param indexReaders
+     * @param create
+     *            true to create the directory if it does not exist
+     * @return the directory or null if the index readers cannot be
+     *         identified or the directory cannot be created
+     */
+    private File getSnapshotDirectory(IndexReader[] indexReaders, boolean create) {
+        if (directory == null || indexReaders == null) {
+            return null;
+        }
+        String key = getIndexKey(indexReaders);
+        if (key == null) {
+            return null;
+        }
+        File dir = new File(directory, key);
+        if (create) {
+            synchronized (this) {
+                if (!dir.exists() && !dir.mkdirs()) {
+                    LOG.warn("Unable to create facet class snapshot directory: " + dir);
+                    return null;
+                }
+            }
+        }
+        return dir;
+    }
+
+    private String getIndexKey(IndexReader[] indexReaders) {
+        StringBuilder key = new StringBuilder();
+        for (IndexReader reader : indexReaders) {
+            try {
+                key.append(reader.getClass().getName()).append('|').append(reader.getVersion()).append('|').append(
+                        reader.maxDoc()).append('|').append(reader.numDocs()).append('|');
+                try {
+                    key.append(reader.directory());
+                } catch (UnsupportedOperationException e) {
+                    // the version identifies the index anyway
+                }
+                key.append(';');
+            } catch (UnsupportedOperationException e) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Index reader " + reader + " does not support versions, no facet class snapshot used.");
+                }
+                return null;
+            }
+        }
+        return hash(key.toString());
+    }
+
+    private ByteBuffer readChecked(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < 16 || length > Integer.MAX_VALUE) {
+                throw new IOException("Invalid snapshot file length " + length + ".");
+            }
+            // the mapping stays valid after closing the file
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            ByteBuffer content = mapped.duplicate();
+            content.limit((int) length - 8);
+            CRC32 crc = new CRC32();
+            crc.update(content.duplicate());
+            if (crc.getValue() != mapped.getLong((int) length - 8)) {
+                throw new IOException("Checksum mismatch.");
+            }
+            if (content.getInt() != MAGIC || content.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown snapshot file format.");
+            }
+            return content.slice();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void writeChecked(File file, byte[] content) throws IOException {
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            DataOutputStream checked = new DataOutputStream(new CheckedOutputStream(out, crc));
+            checked.writeInt(MAGIC);
+            checked.writeInt(FORMAT_VERSION);
+            checked.write(content);
+            checked.flush();
+            out.writeLong(crc.getValue());
+        } finally {
+            out.close();
+        }
+        // replace the file only if it was written completely, readers see
+        // either the old or the new file
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) throws UnsupportedEncodingException {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static String hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+            StringBuilder result = new StringBuilder();
+            for (byte b : digest) {
+                result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+}
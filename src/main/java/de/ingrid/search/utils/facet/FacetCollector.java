@@ -0,0 +1,242 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.SortedVIntList;
+
+import de.ingrid.search.utils.facet.counter.OrdinalFacetCounter.OrdinalCounts;
+
+/**
+ * Collector that records the result documents of the main search and counts
+ * the facets that are counted using ordinals while the hits are collected.
+ * The hits are passed to an optional delegate collector (e.g. the top docs
+ * collector of the search).
+ * <p/>
+ * The collector must be used to search the index readers of the facet manager
+ * that created it, either a single index reader or e.g. a MultiReader or
+ * MultiSearcher of all index readers in the same order. The result documents
+ * are recorded as sorted doc ids, so no bitset of the size of the index is
+ * allocated unless facets have to be counted with facet class bitsets.
+ * <p/>
+ * Create the collector with
+ * {@link FacetManager#createCollector(de.ingrid.utils.query.IngridQuery, Collector)}
+ * and add the facets with
+ * {@link FacetManager#addFacets(de.ingrid.utils.IngridHits, de.ingrid.utils.query.IngridQuery, FacetCollector)}
+ * after the search.
+ * 
+ */
+public class FacetCollector extends Collector {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Collector delegate;
+
+    private final IndexReader[] indexReaders;
+
+    /**
+     * the first document of each index reader in the searched doc id space
+     */
+    private final int[] starts;
+
+    private final OrdinalCounts[] ordinalCounts;
+
+    private final List<FacetDefinition> facetDefinitions;
+
+    /**
+     * index reader -&gt; collected doc ids
+     */
+    private final int[][] docIds;
+
+    private final int[] numDocIds;
+
+    private final boolean[] sorted;
+
+    /**
+     * index reader and doc id offset of the current segment
+     */
+    private int readerIdx;
+
+    private int readerDocBase;
+
+    /**
+     * @param indexReaders
+     *            the index readers of the facet manager
+     * @param delegate
+     *            the collector the hits are passed to, may be null
+     * @param ordinalCounts
+     *            the facets counted while collecting
+     * @param facetDefinitions
+     *            the facets of the request
+     */
+    FacetCollector(IndexReader[] indexReaders, Collector delegate, OrdinalCounts[] ordinalCounts,
+            List<FacetDefinition> facetDefinitions) {
+        this.indexReaders = indexReaders;
+        this.delegate = delegate;
+        this.ordinalCounts = ordinalCounts;
+        this.facetDefinitions = facetDefinitions;
+        this.starts = new int[indexReaders.length];
+        this.docIds = new int[indexReaders.length][];
+        this.numDocIds = new int[indexReaders.length];
+        this.sorted = new boolean[indexReaders.length];
+        int maxDoc = 0;
+        for (int i = 0; i < indexReaders.length; i++) {
+            starts[i] = maxDoc;
+            maxDoc += indexReaders[i].maxDoc();
+            docIds[i] = new int[INITIAL_CAPACITY];
+            sorted[i] = true;
+        }
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+        if (delegate != null) {
+            delegate.setScorer(scorer);
+        }
+    }
+
+    @Override
+    public void setNextReader(IndexReader reader, int docBase) throws IOException {
+        if (delegate != null) {
+            delegate.setNextReader(reader, docBase);
+        }
+        // a segment never spans index readers
+        readerIdx = 0;
+        for (int i = starts.length - 1; i > 0; i--) {
+            if (starts[i] <= docBase) {
+                readerIdx = i;
+                break;
+            }
+        }
+        readerDocBase = docBase - starts[readerIdx];
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        if (delegate != null) {
+            delegate.collect(doc);
+        }
+        int readerDoc = readerDocBase + doc;
+        int[] ids = docIds[readerIdx];
+        int num = numDocIds[readerIdx];
+        if (num == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+            docIds[readerIdx] = ids;
+        }
+        if (num > 0 && ids[num - 1] > readerDoc) {
+            sorted[readerIdx] = false;
+        }
+        ids[num] = readerDoc;
+        numDocIds[readerIdx] = num + 1;
+        for (OrdinalCounts counts : ordinalCounts) {
+            counts.collect(readerIdx, readerDoc);
+        }
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return delegate == null || delegate.acceptsDocsOutOfOrder();
+    }
+
+    /**
+     * Returns the counts of the facets counted while collecting.
+     * 
+     * @return
+     */
+    OrdinalCounts[] getOrdinalCounts() {
+        return ordinalCounts;
+    }
+
+    /**
+     * Returns the facets of the request.
+     * 
+     * @return
+     */
+    List<FacetDefinition> getFacetDefinitions() {
+        return facetDefinitions;
+    }
+
+    IndexReader[] getIndexReaders() {
+        return indexReaders;
+    }
+
+    /**
+     * Returns the number of collected documents.
+     * 
+     * @return
+     */
+    public long getTotalHits() {
+        long result = 0;
+        for (int num : numDocIds) {
+            result += num;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the collected documents, one doc id set per index reader.
+     * 
+     * @return
+     */
+    public DocIdSet[] getResultDocIdSets() {
+        DocIdSet[] result = new DocIdSet[indexReaders.length];
+        for (int i = 0; i < indexReaders.length; i++) {
+            result[i] = new SortedVIntList(getSortedDocIds(i), numDocIds[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the collected documents as bitsets, one per index reader.
+     * 
+     * @return
+     */
+    public OpenBitSet[] getResultBitSets() {
+        OpenBitSet[] result = new OpenBitSet[indexReaders.length];
+        for (int i = 0; i < indexReaders.length; i++) {
+            result[i] = new OpenBitSet(indexReaders[i].maxDoc());
+            int[] ids = docIds[i];
+            for (int j = 0; j < numDocIds[i]; j++) {
+                result[i].fastSet(ids[j]);
+            }
+        }
+        return result;
+    }
+
+    private int[] getSortedDocIds(int idx) {
+        if (!sorted[idx]) {
+            Arrays.sort(docIds[idx], 0, numDocIds[idx]);
+            sorted[idx] = true;
+        }
+        return docIds[idx];
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.log4j.Logger;
+
+import de.ingrid.utils.IngridDocument;
+
+/**
+ * Caches the complete facet counts (the "FACETS" document of the hits) of
+ * requests, so identical requests (e.g. of the portal home page or saved
+ * searches) do not count the facets again.
+ * <p/>
+ * All cached facet counts belong to the same index generation, if the index
+ * generation changes, the cache is cleared. Entries expire after the time to
+ * live, least recently used entries are removed if the maximum number of
+ * entries is exceeded.
+ * 
+ */
+public class FacetCountCache {
+
+    private static Logger LOG = Logger.getLogger(FacetCountCache.class);
+
+    private static final int DEFAULT_MAX_ELEMENTS = 1000;
+
+    private static final long DEFAULT_TIME_TO_LIVE = 300000;
+
+    private int maxElements = DEFAULT_MAX_ELEMENTS;
+
+    private long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+    /**
+     * the index generation of the cached facet counts, guarded by this
+     */
+    private Object indexGeneration = null;
+
+    /**
+     * access ordered, guarded by this
+     */
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private static class Entry {
+
+        private final IngridDocument facets;
+
+        private final long created;
+
+        private Entry(IngridDocument facets, long created) {
+            this.facets = facets;
+            this.created = created;
+        }
+    }
+
+    /**
+     * Returns a copy of the cached facet counts of a request.
+     * 
+     * @param key
+     *            the canonical key of the request
+     * @param indexGeneration
+     *            the current index generation
+     * @return the facet counts or null if not cached
+     */
+    public synchronized IngridDocument get(Object key, Object indexGeneration) {
+        IngridDocument facets = null;
+        if (isSameIndexGeneration(indexGeneration)) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (isExpired(entry, System.currentTimeMillis())) {
+                    entries.remove(key);
+                } else {
+                    facets = copy(entry.facets);
+                }
+            }
+        }
+        if (facets == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return facets;
+    }
+
+    /**
+     * Caches a copy of the facet counts of a request.
+     * 
+     * @param key
+     *            the canonical key of the request
+     * @param indexGeneration
+     *            the index generation the facets were counted on
+     * @param facets
+     */
+    public synchronized void put(Object key, Object indexGeneration, IngridDocument facets) {
+        if (maxElements <= 0) {
+            return;
+        }
+        if (!isSameIndexGeneration(indexGeneration)) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Index generation changed, clear " + entries.size() + " cached facet counts.");
+            }
+            clear();
+            this.indexGeneration = indexGeneration;
+        }
+        long now = System.currentTimeMillis();
+        entries.put(key, new Entry(copy(facets), now));
+        // remove least recently used entries from the head, expired entries
+        // elsewhere are removed by get
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entries.size() <= maxElements && !isExpired(entry, now)) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        indexGeneration = null;
+    }
+
+    private boolean isSameIndexGeneration(Object other) {
+        return indexGeneration == null ? other == null : indexGeneration.equals(other);
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return timeToLive > 0 && now - entry.created > timeToLive;
+    }
+
+    private static IngridDocument copy(IngridDocument facets) {
+        IngridDocument result = new IngridDocument();
+        result.putAll(facets);
+        return result;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public int getMaxElements() {
+        return maxElements;
+    }
+
+    /**
+     * Sets the maximum number of cached requests. Defaults to 1000.
+     * 
+     * @param maxElements
+     */
+    public void setMaxElements(int maxElements) {
+        this.maxElements = maxElements;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Sets the time in ms cached facet counts are valid, a value <= 0 means
+     * forever. Defaults to 5 minutes.
+     * 
+     * @param timeToLive
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+}
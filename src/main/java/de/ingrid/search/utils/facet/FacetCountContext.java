@@ -0,0 +1,311 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * The state of counting the facets of a request: the result bitsets of the
+ * query and the deadline of the request. The context is passed through all
+ * facet counters of the request, values derived from the result bitsets (like
+ * the cardinality or the document ids) are computed once on first use.
+ * <p/>
+ * Facet counters stop counting if the deadline is expired and mark the
+ * context as incomplete. The facet classes counted so far are returned.
+ * Facet counters that estimate hit counts report the confidence bounds of the
+ * estimated counts.
+ * 
+ */
+public class FacetCountContext {
+
+    /**
+     * deadline of contexts without time budget
+     */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * the result bitsets, created on first use if not passed to the
+     * constructor, guarded by this
+     */
+    private OpenBitSet[] bitSets;
+
+    private final long deadline;
+
+    /**
+     * the index readers of the result bitsets, null if unknown
+     */
+    private final IndexReader[] indexReaders;
+
+    private volatile boolean incomplete = false;
+
+    /**
+     * the number of result documents of each index reader, computed on first
+     * use, guarded by this
+     */
+    private long[] cardinalities = null;
+
+    /**
+     * the ids of the result documents of each index reader, computed on first
+     * use, guarded by this
+     */
+    private int[][] docIds = null;
+
+    /**
+     * facet class name -&gt; confidence bound of the estimated hit count,
+     * guarded by this
+     */
+    private final Map<String, Long> errorBounds = new HashMap<String, Long>();
+
+    /**
+     * Creates a context without deadline.
+     * 
+     * @param bitSets
+     *            the result bitsets of the query
+     */
+    public FacetCountContext(OpenBitSet[] bitSets) {
+        this(bitSets, NO_DEADLINE);
+    }
+
+    /**
+     * @param bitSets
+     *            the result bitsets of the query
+     * @param deadline
+     *            the time in ms (see {@link System#currentTimeMillis()}) the
+     *            counting must be finished
+     */
+    public FacetCountContext(OpenBitSet[] bitSets, long deadline) {
+        this(bitSets, deadline, null);
+    }
+
+    /**
+     * @param bitSets
+     *            the result bitsets of the query
+     * @param deadline
+     *            the time in ms (see {@link System#currentTimeMillis()}) the
+     *            counting must be finished
+     * @param indexReaders
+     *            the index readers the result bitsets were created from, null
+     *            if unknown
+     */
+    public FacetCountContext(OpenBitSet[] bitSets, long deadline, IndexReader[] indexReaders) {
+        this.bitSets = bitSets;
+        this.deadline = deadline;
+        this.indexReaders = indexReaders;
+    }
+
+    /**
+     * Creates a context whose result bitsets are created by
+     * {@link #createBitSets()} when they are used first.
+     * 
+     * @param deadline
+     *            the time in ms (see {@link System#currentTimeMillis()}) the
+     *            counting must be finished
+     * @param indexReaders
+     *            the index readers the result bitsets are created from, null
+     *            if unknown
+     */
+    protected FacetCountContext(long deadline, IndexReader[] indexReaders) {
+        this(null, deadline, indexReaders);
+    }
+
+    public synchronized OpenBitSet[] getBitSets() {
+        if (bitSets == null) {
+            bitSets = createBitSets();
+        }
+        return bitSets;
+    }
+
+    /**
+     * Creates the result bitsets of a context that was created without them.
+     * 
+     * @return
+     */
+    protected OpenBitSet[] createBitSets() {
+        return null;
+    }
+
+    /**
+     * Returns the index readers the result bitsets were created from. Facet
+     * classes must be taken from the same index readers.
+     * 
+     * @return the index readers or null if unknown
+     */
+    public IndexReader[] getIndexReaders() {
+        return indexReaders;
+    }
+
+    /**
+     * Returns the number of result documents of an index reader.
+     * 
+     * @param idx
+     *            the index of the index reader
+     * @return
+     */
+    public long getCardinality(int idx) {
+        return getCardinalities()[idx];
+    }
+
+    /**
+     * Returns the number of result documents.
+     * 
+     * @return
+     */
+    public long getCardinality() {
+        long result = 0;
+        for (long cardinality : getCardinalities()) {
+            result += cardinality;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the fraction of documents of an index reader that are in the
+     * result.
+     * 
+     * @param idx
+     *            the index of the index reader
+     * @return
+     */
+    public double getDensity(int idx) {
+        OpenBitSet[] bitSets = getBitSets();
+        long size = (bitSets[idx] == null) ? 0 : bitSets[idx].size();
+        return (size == 0) ? 0 : ((double) getCardinality(idx)) / size;
+    }
+
+    /**
+     * Returns the fraction of documents of all index readers that are in the
+     * result.
+     * 
+     * @return
+     */
+    public double getDensity() {
+        long size = 0;
+        for (OpenBitSet bitSet : getBitSets()) {
+            if (bitSet != null) {
+                size += bitSet.size();
+            }
+        }
+        return (size == 0) ? 0 : ((double) getCardinality()) / size;
+    }
+
+    /**
+     * Returns the ids of the result documents in ascending order. Creating
+     * the ids iterates all result documents, so they should only be used for
+     * sparse results.
+     * 
+     * @return the document ids, one array per index reader
+     */
+    public synchronized int[][] getDocIds() {
+        if (docIds == null) {
+            docIds = FacetUtils.getDocIds(getBitSets());
+        }
+        return docIds;
+    }
+
+    private synchronized long[] getCardinalities() {
+        if (cardinalities == null) {
+            OpenBitSet[] bitSets = getBitSets();
+            long[] result = new long[bitSets.length];
+            for (int i = 0; i < bitSets.length; i++) {
+                result[i] = (bitSets[i] == null) ? 0 : bitSets[i].cardinality();
+            }
+            cardinalities = result;
+        }
+        return cardinalities;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Returns the time in ms until the deadline expires.
+     * 
+     * @return the remaining time, {@link Long#MAX_VALUE} if there is no
+     *         deadline
+     */
+    public long getRemainingTime() {
+        if (deadline == NO_DEADLINE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * Returns true if the deadline is expired. Marks the context as incomplete
+     * in this case, since the caller will stop counting.
+     * 
+     * @return
+     */
+    public boolean isExpired() {
+        if (deadline != NO_DEADLINE && System.currentTimeMillis() >= deadline) {
+            incomplete = true;
+        }
+        return incomplete;
+    }
+
+    /**
+     * Returns true if counting was stopped, because the deadline expired.
+     * 
+     * @return
+     */
+    public boolean isIncomplete() {
+        return incomplete;
+    }
+
+    /**
+     * Sets the confidence bound of a facet class, whose hit count was
+     * estimated.
+     * 
+     * @param facetClassName
+     * @param errorBound
+     *            the half width of the confidence interval of the hit count
+     */
+    public synchronized void setErrorBound(String facetClassName, long errorBound) {
+        errorBounds.put(facetClassName, errorBound);
+    }
+
+    /**
+     * Returns the confidence bounds of all facet classes whose hit counts were
+     * estimated.
+     * 
+     * @return
+     */
+    public synchronized Map<String, Long> getErrorBounds() {
+        return new HashMap<String, Long>(errorBounds);
+    }
+
+    /**
+     * Returns true if hit counts were estimated.
+     * 
+     * @return
+     */
+    public synchronized boolean isApproximate() {
+        return !errorBounds.isEmpty();
+    }
+
+}
@@ -22,13 +22,20 @@
  */
 package de.ingrid.search.utils.facet;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.util.OpenBitSet;
 
 import de.ingrid.search.utils.LuceneIndexReaderWrapper;
 import de.ingrid.search.utils.facet.counter.IFacetCounter;
+import de.ingrid.search.utils.facet.counter.OrdinalFacetCounter;
+import de.ingrid.search.utils.facet.counter.OrdinalFacetCounter.OrdinalCounts;
 import de.ingrid.utils.IngridDocument;
 import de.ingrid.utils.IngridHits;
 import de.ingrid.utils.query.IngridQuery;
@@ -69,6 +76,11 @@ public class FacetManager extends AbstractFacetManager {
 
     private String initialFacetQuery;
 
+    /**
+     * optional cache of the result bitsets of queries
+     */
+    private ResultBitSetCache resultBitSetCache = null;
+
     public FacetManager() {
         super();
     }
@@ -99,7 +111,153 @@ public class FacetManager extends AbstractFacetManager {
 
     @Override
     protected OpenBitSet[] getResultBitsets(IngridHits hits, IngridQuery query) {
-        return FacetUtils.getBitSetsFromQuery(queryParsers.parse(query), indexReaderWrapper);
+        return getResultBitsets(hits, query, indexReaderWrapper.getIndexReader());
+    }
+
+    @Override
+    protected OpenBitSet[] getResultBitsets(IngridHits hits, IngridQuery query, IndexReader[] indexReaders) {
+        Query luceneQuery = queryParsers.parse(query);
+        OpenBitSet[] bitSets = null;
+        if (resultBitSetCache != null) {
+            bitSets = resultBitSetCache.get(luceneQuery, indexReaders);
+        }
+        if (bitSets == null) {
+            // search the index readers of the request, even if the index
+            // readers are changed concurrently
+            LuceneIndexReaderWrapper wrapper = new LuceneIndexReaderWrapper(indexReaders);
+            wrapper.setExecutorService(indexReaderWrapper.getExecutorService());
+            bitSets = FacetUtils.getBitSetsFromQuery(luceneQuery, wrapper);
+            if (bitSets != null && resultBitSetCache != null) {
+                resultBitSetCache.put(luceneQuery, indexReaders, bitSets);
+            }
+        } else if (LOG.isDebugEnabled()) {
+            LOG.debug("Use cached result bitsets of lucene query '" + luceneQuery + "'.");
+        }
+        return bitSets;
+    }
+
+    @Override
+    protected OpenBitSet[] getResultBitsets(IngridHits hits, IngridQuery query, IndexReader[] indexReaders,
+            DocIdSet[] resultDocIdSets) {
+        return FacetUtils.getBitSetsFromDocIdSets(resultDocIdSets, indexReaders);
+    }
+
+    @Override
+    protected IndexReader[] getIndexReaders() {
+        return indexReaderWrapper.getIndexReader();
+    }
+
+    /**
+     * Creates a collector for the main search of a query, that records the
+     * result documents and counts the facets that are counted using ordinals
+     * (see {@link OrdinalFacetCounter}) while the hits are collected.
+     * 
+     * @param query
+     * @param delegate
+     *            the collector the hits are passed to, may be null
+     * @return
+     */
+    public FacetCollector createCollector(IngridQuery query, Collector delegate) {
+        IndexReader[] indexReaders = indexReaderWrapper.getIndexReader();
+        List<FacetDefinition> defs = FacetUtils.getFacetDefinitions(query);
+        filterFacetDefinitions(defs);
+        List<OrdinalCounts> ordinalCounts = new ArrayList<OrdinalCounts>();
+        OrdinalFacetCounter ordinalFacetCounter = getOrdinalFacetCounter();
+        if (ordinalFacetCounter != null) {
+            for (FacetDefinition def : defs) {
+                OrdinalCounts counts = ordinalFacetCounter.createOrdinalCounts(def, indexReaders);
+                if (counts != null) {
+                    ordinalCounts.add(counts);
+                }
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Create collector counting " + ordinalCounts.size() + " of " + defs.size()
+                    + " facets while collecting.");
+        }
+        return new FacetCollector(indexReaders, delegate, ordinalCounts.toArray(new OrdinalCounts[ordinalCounts
+                .size()]), defs);
+    }
+
+    /**
+     * Adds the facets to the hits, using the counts and result documents of
+     * the collector of the main search.
+     * 
+     * @param hits
+     * @param query
+     * @param collector
+     *            the collector created by
+     *            {@link #createCollector(IngridQuery, Collector)} for the
+     *            query
+     */
+    public void addFacets(IngridHits hits, IngridQuery query, final FacetCollector collector) {
+        if (query.containsKey("FACETS")) {
+            long start = System.currentTimeMillis();
+            IngridDocument facets = new IngridDocument();
+            // the result bitsets are only created if a facet counter needs
+            // them
+            FacetCountContext context = new FacetCountContext(getDeadline(start), collector.getIndexReaders()) {
+                @Override
+                protected OpenBitSet[] createBitSets() {
+                    return collector.getResultBitSets();
+                }
+            };
+            countFacets(facets, query, context, collector);
+            boolean cacheable = markHits(hits, context);
+            if (cacheable && facetCountCache != null) {
+                facetCountCache.put(getFacetCountCacheKey(hits, query), getIndexGeneration(collector
+                        .getIndexReaders()), facets);
+            }
+            hits.put("FACETS", facets);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Add collected facet classes to hits in " + (System.currentTimeMillis() - start)
+                        + " ms.");
+            }
+        }
+    }
+
+    /**
+     * Counts the facets with the facet counters in their configured order.
+     * The counts collected while searching stand in for counting these facets
+     * at the position of the OrdinalFacetCounter that created them.
+     * 
+     * @param result
+     * @param query
+     * @param context
+     * @param collector
+     */
+    private void countFacets(IngridDocument result, IngridQuery query, FacetCountContext context,
+            FacetCollector collector) {
+        OrdinalFacetCounter ordinalFacetCounter = getOrdinalFacetCounter();
+        for (IFacetCounter fc : facetCounters) {
+            if (context.isExpired()) {
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Facet time budget of " + timeBudget + " ms expired, return " + result.size()
+                            + " facet classes counted so far.");
+                }
+                break;
+            }
+            if (fc == ordinalFacetCounter) {
+                ordinalFacetCounter.count(result, query, context, collector.getFacetDefinitions(), collector
+                        .getOrdinalCounts());
+            } else {
+                countFacets(fc, result, query, context, collector.getFacetDefinitions());
+            }
+        }
+    }
+
+    /**
+     * Returns the first OrdinalFacetCounter of the facet counters.
+     * 
+     * @return the counter or null if no facets are counted using ordinals
+     */
+    private OrdinalFacetCounter getOrdinalFacetCounter() {
+        for (IFacetCounter fc : facetCounters) {
+            if (fc instanceof OrdinalFacetCounter) {
+                return (OrdinalFacetCounter) fc;
+            }
+        }
+        return null;
     }
 
     public LuceneIndexReaderWrapper getIndexReaderWrapper() {
@@ -110,6 +268,20 @@ public class FacetManager extends AbstractFacetManager {
         this.indexReaderWrapper = indexReaderWrapper;
     }
 
+    public ResultBitSetCache getResultBitSetCache() {
+        return resultBitSetCache;
+    }
+
+    /**
+     * Sets a cache for the result bitsets of queries, so repeated queries
+     * (e.g. for further result pages) do not search the index again.
+     * 
+     * @param resultBitSetCache
+     */
+    public void setResultBitSetCache(ResultBitSetCache resultBitSetCache) {
+        this.resultBitSetCache = resultBitSetCache;
+    }
+
     public String getInitialFacetQuery() {
         return initialFacetQuery;
     }
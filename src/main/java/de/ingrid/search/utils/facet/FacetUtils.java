@@ -26,17 +26,24 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.CachingWrapperFilter;
 import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.QueryWrapperFilter;
 import org.apache.lucene.util.OpenBitSet;
 import org.apache.lucene.util.OpenBitSetDISI;
 
 import de.ingrid.search.utils.LuceneIndexReaderWrapper;
+import de.ingrid.search.utils.facet.bitset.IFacetBitSet;
 import de.ingrid.utils.query.IngridQuery;
 
 public class FacetUtils {
@@ -103,42 +110,305 @@ public class FacetUtils {
     }
 
     public static OpenBitSet[] getBitSetsFromQuery(Query query, LuceneIndexReaderWrapper indexReaderWrapper) {
+        return getBitSetsFromQuery(query, indexReaderWrapper, null);
+    }
+
+    /**
+     * Creates the result bitsets of a query, one for each index reader of the
+     * wrapper. If the wrapper provides an executor service, the query is
+     * evaluated on all index readers in parallel.
+     * 
+     * @param query
+     *            the lucene query
+     * @param indexReaderWrapper
+     *            the index readers to search
+     * @param readerTimings
+     *            optional array that receives the time in ms it took to create
+     *            the bitset of each index reader, may be null
+     * @return the bitsets in the order of the index readers or null if an
+     *         error occurred
+     */
+    public static OpenBitSet[] getBitSetsFromQuery(final Query query, LuceneIndexReaderWrapper indexReaderWrapper,
+            final long[] readerTimings) {
         long start = 0;
         if (LOG.isDebugEnabled()) {
             start = System.currentTimeMillis();
         }
-        CachingWrapperFilter filter = new CachingWrapperFilter(new QueryWrapperFilter(query));
+        final CachingWrapperFilter filter = new CachingWrapperFilter(new QueryWrapperFilter(query));
         try {
-            IndexReader[] indexReaders = indexReaderWrapper.getIndexReader();
+            final IndexReader[] indexReaders = indexReaderWrapper.getIndexReader();
+            ExecutorService executorService = indexReaderWrapper.getExecutorService();
             OpenBitSet[] result = new OpenBitSet[indexReaders.length];
-            for (int i = 0; i < indexReaders.length; i++) {
-                DocIdSet queryBitset = filter.getDocIdSet(indexReaders[i]);
-                OpenBitSet queryOpenBitset;
-                // check for an required OpenBitSet, create one if the docIdSet
-                // is not already a OpenBitSet instance
-                // not 100% sure when an openBitSet is returned and when not
-                // was observed if the query is no Boolean query or if the query
-                // is a single/multiple MUST_NOT query
-                if (queryBitset instanceof OpenBitSet) {
-                    queryOpenBitset = (OpenBitSet) queryBitset;
-                } else {
-                    queryOpenBitset = new OpenBitSetDISI(queryBitset.iterator(), indexReaders[i].maxDoc());
+            List<Future<OpenBitSet>> futures = null;
+            if (executorService != null && indexReaders.length > 1) {
+                futures = new ArrayList<Future<OpenBitSet>>(indexReaders.length);
+                try {
+                    for (int i = 0; i < indexReaders.length; i++) {
+                        final int idx = i;
+                        futures.add(executorService.submit(new Callable<OpenBitSet>() {
+                            @Override
+                            public OpenBitSet call() throws IOException {
+                                return getBitSetFromFilter(filter, indexReaders, idx, query, readerTimings);
+                            }
+                        }));
+                    }
+                } catch (RejectedExecutionException e) {
+                    // the executor service was shut down, e.g. because the
+                    // parallelism was changed
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Executor service rejected tasks, create bit sets sequentially.");
+                    }
+                    cancel(futures);
+                    futures = null;
                 }
-
-                result[i] = queryOpenBitset;
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Create bit set for indexreader[" + i + "] for lucene query '" + query
-                            + "' with cardinallity=" + queryOpenBitset.cardinality() + " in "
-                            + (System.currentTimeMillis() - start) + " ms.");
+            }
+            if (futures != null) {
+                try {
+                    for (int i = 0; i < indexReaders.length; i++) {
+                        result[i] = futures.get(i).get();
+                    }
+                } finally {
+                    // nobody reads the bitsets of the other index readers, if
+                    // one of them failed
+                    cancel(futures);
+                }
+            } else {
+                for (int i = 0; i < indexReaders.length; i++) {
+                    result[i] = getBitSetFromFilter(filter, indexReaders, i, query, readerTimings);
                 }
             }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Create bit sets for " + indexReaders.length + " indexreader(s) for lucene query '" + query
+                        + "' in " + (System.currentTimeMillis() - start) + " ms.");
+            }
             return result;
         } catch (IOException e) {
             LOG.error("Error producing bitset from query '" + query + "'.", e);
+        } catch (ExecutionException e) {
+            LOG.error("Error producing bitset from query '" + query + "'.", e.getCause());
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted while producing bitset from query '" + query + "'.", e);
+            Thread.currentThread().interrupt();
         }
         return null;
     }
 
+    private static void cancel(List<Future<OpenBitSet>> futures) {
+        for (Future<OpenBitSet> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private static OpenBitSet getBitSetFromFilter(CachingWrapperFilter filter, IndexReader[] indexReaders, int idx,
+            Query query, long[] readerTimings) throws IOException {
+        long start = System.currentTimeMillis();
+        DocIdSet queryBitset = filter.getDocIdSet(indexReaders[idx]);
+        // not 100% sure when an openBitSet is returned and when not
+        // was observed if the query is no Boolean query or if the query
+        // is a single/multiple MUST_NOT query
+        OpenBitSet queryOpenBitset = toOpenBitSet(queryBitset, indexReaders[idx].maxDoc());
+        long duration = System.currentTimeMillis() - start;
+        if (readerTimings != null && idx < readerTimings.length) {
+            readerTimings[idx] = duration;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Create bit set for indexreader[" + idx + "] for lucene query '" + query
+                    + "' with cardinallity=" + queryOpenBitset.cardinality() + " in " + duration + " ms.");
+        }
+        return queryOpenBitset;
+    }
+
+    /**
+     * Converts result doc id sets created by the caller (e.g. while collecting
+     * the hits of a query) into result bitsets, so the query does not need to
+     * be executed again.
+     * 
+     * @param docIdSets
+     *            the result doc id sets, one per index reader, null entries
+     *            match no document
+     * @param indexReaders
+     *            the index readers the doc id sets belong to
+     * @return the bitsets in the order of the index readers or null if an
+     *         error occurred
+     */
+    public static OpenBitSet[] getBitSetsFromDocIdSets(DocIdSet[] docIdSets, IndexReader[] indexReaders) {
+        if (docIdSets.length != indexReaders.length) {
+            throw new IllegalArgumentException("Number of doc id sets (" + docIdSets.length
+                    + ") differs from number of index readers (" + indexReaders.length + ").");
+        }
+        try {
+            OpenBitSet[] result = new OpenBitSet[docIdSets.length];
+            for (int i = 0; i < docIdSets.length; i++) {
+                if (docIdSets[i] == null) {
+                    result[i] = new OpenBitSet(indexReaders[i].maxDoc());
+                } else {
+                    result[i] = toOpenBitSet(docIdSets[i], indexReaders[i].maxDoc());
+                }
+            }
+            return result;
+        } catch (IOException e) {
+            LOG.error("Error producing bitsets from doc id sets.", e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the doc id set as OpenBitSet, creates one if the doc id set is
+     * not already an OpenBitSet instance.
+     * 
+     * @param docIdSet
+     * @param maxDoc
+     * @return
+     * @throws IOException
+     */
+    private static OpenBitSet toOpenBitSet(DocIdSet docIdSet, int maxDoc) throws IOException {
+        if (docIdSet instanceof OpenBitSet) {
+            return (OpenBitSet) docIdSet;
+        }
+        DocIdSetIterator it = docIdSet.iterator();
+        if (it == null) {
+            return new OpenBitSet(maxDoc);
+        }
+        return new OpenBitSetDISI(it, maxDoc);
+    }
+
+    /**
+     * Returns the number of documents that are set in the result bitsets and
+     * in the facet bitsets, reader by reader (array position). The facet
+     * bitsets are counted in their storage format without creating any
+     * intermediate bitsets.
+     * 
+     * @param baseBitSets
+     *            the result bitsets of the query, one per index reader
+     * @param facetBitSets
+     *            the facet bitsets of a facet class, one per index reader, may
+     *            contain null entries
+     * @return the summed up cardinality of the intersections
+     */
+    public static long intersectionCount(OpenBitSet[] baseBitSets, IFacetBitSet[] facetBitSets) {
+        if (baseBitSets.length != facetBitSets.length) {
+            LOG.warn("Different bitset array sizes detected. Results may be inaccurate.");
+        }
+
+        int minArraySize = (baseBitSets.length > facetBitSets.length) ? facetBitSets.length : baseBitSets.length;
+        long result = 0;
+
+        for (int i = 0; i < minArraySize; i++) {
+            if (facetBitSets[i] != null && baseBitSets[i] != null) {
+                result += facetBitSets[i].intersectionCount(baseBitSets[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the distance of the sampled words of
+     * {@link #getSampleDocIds(OpenBitSet[], double)}.
+     * 
+     * @param rate
+     *            the fraction of words to sample, (0, 1]
+     * @return
+     */
+    public static int getSampleStride(double rate) {
+        return Math.max(1, (int) Math.round(1 / rate));
+    }
+
+    /**
+     * Returns the ids of the set documents of a systematic sample of the words
+     * of each bitset. Every <code>1/rate</code>-th word is sampled, so the
+     * cost is proportional to the number of sampled words.
+     * 
+     * @param bitSets
+     * @param rate
+     *            the fraction of words to sample, (0, 1]
+     * @return the sampled document ids in ascending order, one array per index
+     *         reader
+     */
+    public static int[][] getSampleDocIds(OpenBitSet[] bitSets, double rate) {
+        int stride = getSampleStride(rate);
+        int[][] result = new int[bitSets.length][];
+        for (int i = 0; i < bitSets.length; i++) {
+            if (bitSets[i] == null) {
+                result[i] = new int[0];
+                continue;
+            }
+            long[] bits = bitSets[i].getBits();
+            int numWords = bitSets[i].getNumWords();
+            int cnt = 0;
+            for (int w = 0; w < numWords; w += stride) {
+                cnt += Long.bitCount(bits[w]);
+            }
+            int[] docIds = new int[cnt];
+            cnt = 0;
+            for (int w = 0; w < numWords; w += stride) {
+                long word = bits[w];
+                while (word != 0) {
+                    docIds[cnt++] = (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            result[i] = docIds;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ids of all set documents of each bitset in ascending order.
+     * 
+     * @param bitSets
+     * @return the document ids, one array per index reader
+     */
+    public static int[][] getDocIds(OpenBitSet[] bitSets) {
+        int[][] result = new int[bitSets.length][];
+        for (int i = 0; i < bitSets.length; i++) {
+            if (bitSets[i] == null) {
+                result[i] = new int[0];
+                continue;
+            }
+            int[] docIds = new int[(int) bitSets[i].cardinality()];
+            int cnt = 0;
+            for (int doc = bitSets[i].nextSetBit(0); doc >= 0 && cnt < docIds.length; doc = bitSets[i]
+                    .nextSetBit(doc + 1)) {
+                docIds[cnt++] = doc;
+            }
+            result[i] = docIds;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of documents that are set in the facet bitsets. The
+     * cost is proportional to the number of document ids, not to the size of
+     * the bitsets, which makes it the better choice for small result sets.
+     * 
+     * @param docIds
+     *            the document ids of a result, one array per index reader
+     * @param facetBitSets
+     *            the facet bitsets of a facet class, one per index reader, may
+     *            contain null entries
+     * @return the number of document ids set in the facet bitsets
+     */
+    public static long memberCount(int[][] docIds, IFacetBitSet[] facetBitSets) {
+        if (docIds.length != facetBitSets.length) {
+            LOG.warn("Different bitset array sizes detected. Results may be inaccurate.");
+        }
+
+        int minArraySize = (docIds.length > facetBitSets.length) ? facetBitSets.length : docIds.length;
+        long result = 0;
+
+        for (int i = 0; i < minArraySize; i++) {
+            IFacetBitSet facetBitSet = facetBitSets[i];
+            if (facetBitSet != null) {
+                for (int doc : docIds[i]) {
+                    if (facetBitSet.get(doc)) {
+                        result++;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * Creates an OpenBitset with a specific cardinality. 
      * 
@@ -0,0 +1,215 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+
+/**
+ * Maps every document of an index reader to the ordinal of its value in a
+ * single valued index field. The ordinals are the positions of the values in
+ * the term dictionary of the field, starting with 1. Ordinal 0 marks documents
+ * without a value.
+ * <p/>
+ * The column is stored with the smallest possible width (1, 2 or 4 bytes per
+ * document) depending on the number of distinct values. If a document has
+ * more than one value, the last value of the term dictionary wins.
+ */
+public class FieldOrdinals {
+
+    private static Logger LOG = Logger.getLogger(FieldOrdinals.class);
+
+    private final String field;
+
+    /**
+     * ordinal -&gt; value, index 0 is null
+     */
+    private final String[] values;
+
+    /**
+     * ordinal -&gt; number of documents with this value
+     */
+    private final int[] docFreqs;
+
+    private final int maxDoc;
+
+    private byte[] byteOrds = null;
+
+    private char[] charOrds = null;
+
+    private int[] intOrds = null;
+
+    private boolean multiValued = false;
+
+    private FieldOrdinals(String field, String[] values, int maxDoc) {
+        this.field = field;
+        this.values = values;
+        this.docFreqs = new int[values.length];
+        this.maxDoc = maxDoc;
+        if (values.length <= 0xFF + 1) {
+            byteOrds = new byte[maxDoc];
+        } else if (values.length <= 0xFFFF + 1) {
+            charOrds = new char[maxDoc];
+        } else {
+            intOrds = new int[maxDoc];
+        }
+    }
+
+    /**
+     * Reads the term dictionary and the postings of a field and creates the
+     * document to ordinal column.
+     * 
+     * @param indexReader
+     * @param field
+     * @return
+     * @throws IOException
+     */
+    public static FieldOrdinals create(IndexReader indexReader, String field) throws IOException {
+        long start = 0;
+        if (LOG.isDebugEnabled()) {
+            start = System.currentTimeMillis();
+        }
+        // first pass, read the values of the field to determine the width of
+        // the ordinals
+        List<String> valueList = new ArrayList<String>();
+        valueList.add(null);
+        TermEnum termEnum = indexReader.terms(new Term(field, ""));
+        try {
+            do {
+                Term term = termEnum.term();
+                if (term == null || !term.field().equals(field)) {
+                    break;
+                }
+                valueList.add(term.text());
+            } while (termEnum.next());
+        } finally {
+            termEnum.close();
+        }
+
+        FieldOrdinals result = new FieldOrdinals(field, valueList.toArray(new String[valueList.size()]), indexReader
+                .maxDoc());
+
+        // second pass, fill the ordinals from the postings
+        TermDocs termDocs = indexReader.termDocs();
+        try {
+            for (int ord = 1; ord < result.values.length; ord++) {
+                termDocs.seek(new Term(field, result.values[ord]));
+                while (termDocs.next()) {
+                    int doc = termDocs.doc();
+                    if (result.getOrdinal(doc) != 0) {
+                        result.docFreqs[result.getOrdinal(doc)]--;
+                        result.multiValued = true;
+                    }
+                    result.setOrdinal(doc, ord);
+                    result.docFreqs[ord]++;
+                }
+            }
+        } finally {
+            termDocs.close();
+        }
+        if (result.multiValued) {
+            LOG.warn("Field '" + field + "' contains documents with more than one value. Counts based on ordinals "
+                    + "contain only one value per document.");
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Create ordinals for field '" + field + "' with " + (result.values.length - 1)
+                    + " values and " + result.getSizeInBytes() + " bytes in " + (System.currentTimeMillis() - start)
+                    + " ms.");
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ordinal of the value of a document or 0 if the document has
+     * no value.
+     * 
+     * @param doc
+     * @return
+     */
+    public int getOrdinal(int doc) {
+        if (byteOrds != null) {
+            return byteOrds[doc] & 0xFF;
+        } else if (charOrds != null) {
+            return charOrds[doc];
+        }
+        return intOrds[doc];
+    }
+
+    private void setOrdinal(int doc, int ord) {
+        if (byteOrds != null) {
+            byteOrds[doc] = (byte) ord;
+        } else if (charOrds != null) {
+            charOrds[doc] = (char) ord;
+        } else {
+            intOrds[doc] = ord;
+        }
+    }
+
+    /**
+     * Returns the number of ordinals including ordinal 0 for documents without
+     * a value.
+     * 
+     * @return
+     */
+    public int getNumOrdinals() {
+        return values.length;
+    }
+
+    public String getValue(int ord) {
+        return values[ord];
+    }
+
+    public int getDocFreq(int ord) {
+        return docFreqs[ord];
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public int getMaxDoc() {
+        return maxDoc;
+    }
+
+    public boolean isMultiValued() {
+        return multiValued;
+    }
+
+    /**
+     * Returns the approximate memory used by the ordinal column.
+     * 
+     * @return
+     */
+    public long getSizeInBytes() {
+        long ordBytes = (byteOrds != null) ? maxDoc : ((charOrds != null) ? 2L * maxDoc : 4L * maxDoc);
+        return ordBytes + 4L * docFreqs.length + 8L * values.length;
+    }
+
+}
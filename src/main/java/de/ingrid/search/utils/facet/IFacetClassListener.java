@@ -0,0 +1,41 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+/**
+ * Is notified about facet classes while the classes of a facet are produced.
+ * 
+ */
+public interface IFacetClassListener {
+
+    /**
+     * Called as soon as a facet class is produced. May be called from
+     * different threads at the same time. The listener may throw a
+     * {@link java.util.concurrent.CancellationException} to stop the
+     * production of the remaining facet classes.
+     * 
+     * @param facetClass
+     */
+    public void facetClassProduced(FacetClass facetClass);
+
+}
@@ -0,0 +1,60 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+/**
+ * Storage of the facet classes of the FacetClassRegistry.
+ * 
+ */
+public interface IFacetClassStore {
+
+    /**
+     * Returns the facet class stored under the key or null if the key is not
+     * stored (any more).
+     * 
+     * @param key
+     * @return
+     */
+    public FacetClass get(String key);
+
+    /**
+     * Stores a facet class under a key.
+     * 
+     * @param key
+     * @param facetClass
+     */
+    public void put(String key, FacetClass facetClass);
+
+    /**
+     * Removes the facet class stored under the key.
+     * 
+     * @param key
+     */
+    public void remove(String key);
+
+    /**
+     * Removes all facet classes.
+     */
+    public void clear();
+
+}
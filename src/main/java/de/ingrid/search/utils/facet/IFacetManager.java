@@ -22,6 +22,8 @@
  */
 package de.ingrid.search.utils.facet;
 
+import org.apache.lucene.search.DocIdSet;
+
 import de.ingrid.utils.IngridHits;
 import de.ingrid.utils.query.IngridQuery;
 
@@ -37,4 +39,17 @@ public interface IFacetManager {
 
     public void addFacets(IngridHits hits, IngridQuery query);
 
+    /**
+     * Adds the facets to the hits, using the result doc id sets the caller
+     * already created for the query (e.g. while collecting the hits), so the
+     * query is not executed again.
+     * 
+     * @param hits
+     * @param query
+     * @param resultDocIdSets
+     *            the result doc id sets of the query, one per index reader of
+     *            the facet manager
+     */
+    public void addFacets(IngridHits hits, IngridQuery query, DocIdSet[] resultDocIdSets);
+
 }
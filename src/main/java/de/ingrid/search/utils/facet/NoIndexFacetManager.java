@@ -22,6 +22,8 @@
  */
 package de.ingrid.search.utils.facet;
 
+import java.util.Arrays;
+
 import org.apache.log4j.Logger;
 import org.apache.lucene.util.OpenBitSet;
 
@@ -67,4 +69,10 @@ public class NoIndexFacetManager extends AbstractFacetManager {
         return new OpenBitSet[] { FacetUtils.createOpenBitsetWithCardinality(hits.length()) };
     }
 
+    @Override
+    protected Object getFacetCountCacheKey(IngridHits hits, IngridQuery query) {
+        // the facet counts depend on the number of hits
+        return Arrays.asList(new Object[] { super.getFacetCountCacheKey(hits, query), hits.length() });
+    }
+
 }
@@ -0,0 +1,157 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import de.ingrid.search.utils.facet.bitset.DenseFacetBitSet;
+import de.ingrid.search.utils.facet.bitset.IFacetBitSet;
+import de.ingrid.search.utils.facet.bitset.OffHeapFacetBitSet;
+import de.ingrid.search.utils.facet.bitset.SegmentedFacetBitSet;
+
+/**
+ * Stores the facet classes with their bitset words outside of the java heap.
+ * Uncompressed facet bitsets are copied into direct buffers when they are
+ * stored, so the heap usage of the store depends on the number of facet
+ * classes and not on the size of the index. Compressed facet bitsets are
+ * kept as they are.
+ * <p/>
+ * The number of stored facet classes can be bounded, the least recently used
+ * facet classes are removed first. Note that the maximum direct memory of the
+ * JVM (-XX:MaxDirectMemorySize) must be large enough for all stored facet
+ * classes.
+ * 
+ */
+public class OffHeapFacetClassStore implements IFacetClassStore {
+
+    private static Logger LOG = Logger.getLogger(OffHeapFacetClassStore.class);
+
+    private int maxElements = 0;
+
+    private long sizeInBytes = 0;
+
+    /**
+     * access ordered, guarded by this
+     */
+    private final LinkedHashMap<String, FacetClass> facetClasses = new LinkedHashMap<String, FacetClass>(16, 0.75f,
+            true) {
+
+        private static final long serialVersionUID = 2401981736620451539L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FacetClass> eldest) {
+            if (maxElements > 0 && size() > maxElements) {
+                sizeInBytes -= eldest.getValue().getSizeInBytes();
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Remove facet class '" + eldest.getKey() + "' from off heap store.");
+                }
+                return true;
+            }
+            return false;
+        }
+    };
+
+    public OffHeapFacetClassStore() {
+    }
+
+    @Override
+    public synchronized FacetClass get(String key) {
+        return facetClasses.get(key);
+    }
+
+    @Override
+    public void put(String key, FacetClass facetClass) {
+        if (facetClass == null) {
+            return;
+        }
+        FacetClass offHeapClass = new FacetClass(facetClass.getFacetClassName(), toOffHeap(facetClass
+                .getFacetBitSets()));
+        synchronized (this) {
+            FacetClass previous = facetClasses.put(key, offHeapClass);
+            if (previous != null) {
+                sizeInBytes -= previous.getSizeInBytes();
+            }
+            sizeInBytes += offHeapClass.getSizeInBytes();
+        }
+    }
+
+    private IFacetBitSet[] toOffHeap(IFacetBitSet[] bitSets) {
+        if (bitSets == null) {
+            return null;
+        }
+        IFacetBitSet[] result = new IFacetBitSet[bitSets.length];
+        for (int i = 0; i < bitSets.length; i++) {
+            if (bitSets[i] instanceof DenseFacetBitSet || bitSets[i] instanceof SegmentedFacetBitSet) {
+                result[i] = new OffHeapFacetBitSet(bitSets[i].toOpenBitSet());
+            } else {
+                result[i] = bitSets[i];
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        FacetClass previous = facetClasses.remove(key);
+        if (previous != null) {
+            sizeInBytes -= previous.getSizeInBytes();
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        facetClasses.clear();
+        sizeInBytes = 0;
+    }
+
+    /**
+     * Returns the memory used by the bitsets of all stored facet classes.
+     * 
+     * @return
+     */
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public synchronized int size() {
+        return facetClasses.size();
+    }
+
+    public int getMaxElements() {
+        return maxElements;
+    }
+
+    /**
+     * Sets the maximum number of stored facet classes. Values &lt;= 0 do not
+     * limit the number of facet classes.
+     * 
+     * @param maxElements
+     */
+    public void setMaxElements(int maxElements) {
+        this.maxElements = maxElements;
+    }
+
+}
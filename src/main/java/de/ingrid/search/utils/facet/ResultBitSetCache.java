@@ -0,0 +1,204 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * Caches the result bitsets of queries, so repeated requests of the same
+ * query (e.g. for further result pages) do not search the index again.
+ * <p/>
+ * The bitsets are cached by the parsed lucene query, which contains only the
+ * parts of a query that determine the result documents. All cached bitsets
+ * belong to the same index readers, if the index readers change, the cache is
+ * cleared. Least recently used bitsets are removed, if the maximum number of
+ * entries or the maximum memory is exceeded.
+ * <p/>
+ * The cached bitsets are shared by all requests and must not be modified.
+ * 
+ */
+public class ResultBitSetCache {
+
+    private static Logger LOG = Logger.getLogger(ResultBitSetCache.class);
+
+    private static final long DEFAULT_MAX_SIZE_IN_BYTES = 64L * 1024 * 1024;
+
+    private static final int DEFAULT_MAX_ELEMENTS = 100;
+
+    private long maxSizeInBytes = DEFAULT_MAX_SIZE_IN_BYTES;
+
+    private int maxElements = DEFAULT_MAX_ELEMENTS;
+
+    /**
+     * the index readers of the cached bitsets, guarded by this
+     */
+    private IndexReader[] indexReaders = null;
+
+    /**
+     * access ordered, guarded by this
+     */
+    private final LinkedHashMap<Query, OpenBitSet[]> entries = new LinkedHashMap<Query, OpenBitSet[]>(16, 0.75f,
+            true);
+
+    private long sizeInBytes = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    /**
+     * Returns the cached result bitsets of a query.
+     * 
+     * @param query
+     * @param indexReaders
+     *            the current index readers
+     * @return the bitsets or null if the query is not cached for the index
+     *         readers
+     */
+    public synchronized OpenBitSet[] get(Query query, IndexReader[] indexReaders) {
+        OpenBitSet[] bitSets = null;
+        if (isSameIndexReaders(indexReaders)) {
+            bitSets = entries.get(query);
+        }
+        if (bitSets == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return bitSets;
+    }
+
+    /**
+     * Caches the result bitsets of a query.
+     * 
+     * @param query
+     * @param indexReaders
+     *            the index readers the bitsets were created from
+     * @param bitSets
+     */
+    public synchronized void put(Query query, IndexReader[] indexReaders, OpenBitSet[] bitSets) {
+        if (!isSameIndexReaders(indexReaders)) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Index readers changed, clear " + entries.size() + " cached result bitsets.");
+            }
+            clear();
+            this.indexReaders = indexReaders;
+        }
+        long size = getSizeInBytes(bitSets);
+        if (size > maxSizeInBytes) {
+            return;
+        }
+        OpenBitSet[] previous = entries.put(query, bitSets);
+        if (previous != null) {
+            sizeInBytes -= getSizeInBytes(previous);
+        }
+        sizeInBytes += size;
+        // remove least recently used entries
+        Iterator<Map.Entry<Query, OpenBitSet[]>> it = entries.entrySet().iterator();
+        while ((sizeInBytes > maxSizeInBytes || entries.size() > maxElements) && it.hasNext()) {
+            sizeInBytes -= getSizeInBytes(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        sizeInBytes = 0;
+        indexReaders = null;
+    }
+
+    private boolean isSameIndexReaders(IndexReader[] other) {
+        if (indexReaders == other) {
+            return true;
+        }
+        if (indexReaders == null || other == null || indexReaders.length != other.length) {
+            return false;
+        }
+        for (int i = 0; i < other.length; i++) {
+            if (indexReaders[i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long getSizeInBytes(OpenBitSet[] bitSets) {
+        long size = 0;
+        for (OpenBitSet bitSet : bitSets) {
+            if (bitSet != null) {
+                size += 8L * bitSet.getBits().length;
+            }
+        }
+        return size;
+    }
+
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public long getMaxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    /**
+     * Sets the maximum memory of all cached bitsets. Defaults to 64 MB.
+     * 
+     * @param maxSizeInBytes
+     */
+    public void setMaxSizeInBytes(long maxSizeInBytes) {
+        this.maxSizeInBytes = maxSizeInBytes;
+    }
+
+    public int getMaxElements() {
+        return maxElements;
+    }
+
+    /**
+     * Sets the maximum number of cached queries. Defaults to 100.
+     * 
+     * @param maxElements
+     */
+    public void setMaxElements(int maxElements) {
+        this.maxElements = maxElements;
+    }
+
+}
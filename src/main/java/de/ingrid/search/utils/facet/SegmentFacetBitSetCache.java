@@ -0,0 +1,352 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.OpenBitSetDISI;
+import org.apache.lucene.util.ReaderUtil;
+
+import de.ingrid.search.utils.facet.bitset.IFacetBitSet;
+import de.ingrid.search.utils.facet.bitset.SegmentedFacetBitSet;
+
+/**
+ * Caches the bitsets of facet classes per segment of the index readers. The
+ * segments are identified by their segment reader, which stays the same as
+ * long as the segment and its deletions do not change. After reopening the
+ * index only the bitsets of new or changed segments must be created, the
+ * bitsets of all other segments are reused.
+ * <p/>
+ * Least recently used bitsets are removed, if the maximum memory is
+ * exceeded. Entries of segment readers, that are not referenced any more, are
+ * removed after the garbage collector collected the segment reader.
+ * 
+ */
+public class SegmentFacetBitSetCache {
+
+    private static Logger LOG = Logger.getLogger(SegmentFacetBitSetCache.class);
+
+    private static final long DEFAULT_MAX_SIZE_IN_BYTES = 128L * 1024 * 1024;
+
+    private long maxSizeInBytes = DEFAULT_MAX_SIZE_IN_BYTES;
+
+    /**
+     * segment reader and facet class key -> bitset, access ordered, guarded
+     * by this
+     */
+    private final LinkedHashMap<SegmentKey, OpenBitSet> entries = new LinkedHashMap<SegmentKey, OpenBitSet>(16,
+            0.75f, true);
+
+    /**
+     * keys of collected segment readers, guarded by this
+     */
+    private final ReferenceQueue<IndexReader> collectedSegments = new ReferenceQueue<IndexReader>();
+
+    private long sizeInBytes = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    /**
+     * Returns the facet bitsets of a query, one for each index reader.
+     * 
+     * @param key
+     *            identifies the query in the cache
+     * @param query
+     * @param indexReaders
+     * @return
+     * @throws IOException
+     */
+    public IFacetBitSet[] getFacetBitSets(String key, Query query, IndexReader[] indexReaders) throws IOException {
+        Filter filter = new QueryWrapperFilter(query);
+        IFacetBitSet[] result = new IFacetBitSet[indexReaders.length];
+        for (int i = 0; i < indexReaders.length; i++) {
+            List<IndexReader> segments = getSegments(indexReaders[i]);
+            OpenBitSet[] bitSets = new OpenBitSet[segments.size()];
+            for (int j = 0; j < segments.size(); j++) {
+                bitSets[j] = getSegmentBitSet(key, filter, segments.get(j));
+            }
+            result[i] = createFacetBitSet(indexReaders[i], segments, bitSets);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the bitset of a query for one segment reader.
+     * 
+     * @param key
+     *            identifies the query in the cache
+     * @param query
+     * @param segment
+     * @return
+     * @throws IOException
+     */
+    public OpenBitSet getSegmentBitSet(String key, Query query, IndexReader segment) throws IOException {
+        return getSegmentBitSet(key, new QueryWrapperFilter(query), segment);
+    }
+
+    private OpenBitSet getSegmentBitSet(String key, Filter filter, IndexReader segment) throws IOException {
+        OpenBitSet bitSet = get(key, segment);
+        if (bitSet != null) {
+            return bitSet;
+        }
+        long start = 0;
+        if (LOG.isDebugEnabled()) {
+            start = System.currentTimeMillis();
+        }
+        DocIdSet docIdSet = filter.getDocIdSet(segment);
+        if (docIdSet instanceof OpenBitSet) {
+            bitSet = (OpenBitSet) docIdSet;
+        } else {
+            DocIdSetIterator iterator = docIdSet == null ? null : docIdSet.iterator();
+            if (iterator == null) {
+                // no matching documents in this segment
+                bitSet = new OpenBitSet(segment.maxDoc());
+            } else {
+                bitSet = new OpenBitSetDISI(iterator, segment.maxDoc());
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Create bitset of segment " + segment + " for '" + key + "' with cardinality="
+                    + bitSet.cardinality() + " in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+        put(key, segment, bitSet);
+        return bitSet;
+    }
+
+    /**
+     * Returns the cached bitset of a segment reader.
+     * 
+     * @param key
+     *            identifies the facet class in the cache
+     * @param segment
+     * @return the bitset or null if not cached
+     */
+    public synchronized OpenBitSet get(String key, IndexReader segment) {
+        removeCollectedSegments();
+        OpenBitSet bitSet = entries.get(new SegmentKey(segment, key, null));
+        if (bitSet == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return bitSet;
+    }
+
+    /**
+     * Caches the bitset of a segment reader. The bitset is shared and must
+     * not be modified afterwards.
+     * 
+     * @param key
+     *            identifies the facet class in the cache
+     * @param segment
+     * @param bitSet
+     */
+    public synchronized void put(String key, IndexReader segment, OpenBitSet bitSet) {
+        removeCollectedSegments();
+        long size = getSizeInBytes(bitSet);
+        if (size > maxSizeInBytes) {
+            return;
+        }
+        OpenBitSet previous = entries.put(new SegmentKey(segment, key, collectedSegments), bitSet);
+        if (previous != null) {
+            sizeInBytes -= getSizeInBytes(previous);
+        }
+        sizeInBytes += size;
+        // remove least recently used entries
+        Iterator<Map.Entry<SegmentKey, OpenBitSet>> it = entries.entrySet().iterator();
+        while (sizeInBytes > maxSizeInBytes && it.hasNext()) {
+            sizeInBytes -= getSizeInBytes(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    private void removeCollectedSegments() {
+        Object key;
+        while ((key = collectedSegments.poll()) != null) {
+            OpenBitSet bitSet = entries.remove(key);
+            if (bitSet != null) {
+                sizeInBytes -= getSizeInBytes(bitSet);
+            }
+        }
+    }
+
+    /**
+     * Returns the segment readers of an index reader in the order of their
+     * documents.
+     * 
+     * @param indexReader
+     * @return
+     */
+    public static List<IndexReader> getSegments(IndexReader indexReader) {
+        List<IndexReader> segments = new ArrayList<IndexReader>();
+        ReaderUtil.gatherSubReaders(segments, indexReader);
+        return segments;
+    }
+
+    /**
+     * Creates the facet bitset of an index reader from the bitsets of its
+     * segments.
+     * 
+     * @param indexReader
+     * @param segments
+     *            the segments of the index reader, see
+     *            {@link #getSegments(IndexReader)}
+     * @param bitSets
+     *            the bitsets of the segments
+     * @return
+     */
+    public static IFacetBitSet createFacetBitSet(IndexReader indexReader, List<IndexReader> segments,
+            OpenBitSet[] bitSets) {
+        int[] docBases = new int[segments.size()];
+        int docBase = 0;
+        for (int j = 0; j < segments.size(); j++) {
+            docBases[j] = docBase;
+            docBase += segments.get(j).maxDoc();
+        }
+        return new SegmentedFacetBitSet(bitSets, docBases, indexReader.maxDoc());
+    }
+
+    private static long getSizeInBytes(OpenBitSet bitSet) {
+        return 8L * bitSet.getBits().length;
+    }
+
+    /**
+     * Removes all cached bitsets.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        sizeInBytes = 0;
+    }
+
+    /**
+     * Returns the number of segments with cached bitsets.
+     * 
+     * @return
+     */
+    public synchronized int getNumSegments() {
+        removeCollectedSegments();
+        Map<IndexReader, Boolean> segments = new IdentityHashMap<IndexReader, Boolean>();
+        for (SegmentKey key : entries.keySet()) {
+            IndexReader segment = key.get();
+            if (segment != null) {
+                segments.put(segment, Boolean.TRUE);
+            }
+        }
+        return segments.size();
+    }
+
+    /**
+     * Returns the memory used by the cached bitsets.
+     * 
+     * @return
+     */
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Returns the number of segment bitsets taken from the cache.
+     * 
+     * @return
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of segment bitsets that had to be created.
+     * 
+     * @return
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public long getMaxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    /**
+     * Sets the maximum memory of all cached segment bitsets. Defaults to 128
+     * MB.
+     * 
+     * @param maxSizeInBytes
+     */
+    public synchronized void setMaxSizeInBytes(long maxSizeInBytes) {
+        this.maxSizeInBytes = maxSizeInBytes;
+    }
+
+    /**
+     * Key of a cached bitset, that does not keep the segment reader from
+     * being collected.
+     */
+    private static class SegmentKey extends WeakReference<IndexReader> {
+
+        private final String key;
+
+        private final int hash;
+
+        public SegmentKey(IndexReader segment, String key, ReferenceQueue<IndexReader> queue) {
+            super(segment, queue);
+            this.key = key;
+            this.hash = 31 * System.identityHashCode(segment) + key.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof SegmentKey)) {
+                return false;
+            }
+            SegmentKey other = (SegmentKey) obj;
+            IndexReader segment = get();
+            return segment != null && segment == other.get() && key.equals(other.key);
+        }
+    }
+
+}
@@ -0,0 +1,620 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet.bitset;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * Compressed facet bitset for sparse facet classes.
+ * <p/>
+ * The document id space is split into chunks of 65536 documents. Only chunks
+ * that contain documents are stored, each one in the smallest of three
+ * container types:
+ * <ul>
+ * <li><b>array</b> - the sorted lower 16 bits of the document ids, 2 bytes
+ * per document</li>
+ * <li><b>run</b> - start and length of runs of consecutive documents, 4 bytes
+ * per run</li>
+ * <li><b>bitmap</b> - one bit per document of the chunk, 8 kB</li>
+ * </ul>
+ * All containers count the intersection with a result bitset directly on
+ * their compressed form.
+ * <p/>
+ * {@link #writeTo(DataOutput)} and {@link #readFrom(ByteBuffer)} store the
+ * containers in a plain binary format, the content read is validated before
+ * it is used.
+ * 
+ */
+public class CompressedFacetBitSet implements IFacetBitSet {
+
+    private static final long serialVersionUID = 3172497340417263502L;
+
+    private static final int CHUNK_BITS = 16;
+
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+    private static final int CHUNK_WORDS = 1 << (CHUNK_BITS - 6);
+
+    private static final int BITMAP_CONTAINER_BYTES = CHUNK_WORDS * 8;
+
+    private static final byte ARRAY_CONTAINER = 1;
+
+    private static final byte RUN_CONTAINER = 2;
+
+    private static final byte BITMAP_CONTAINER = 3;
+
+    /**
+     * the number of bits of the original bitset
+     */
+    private final long numBits;
+
+    private final long cardinality;
+
+    /**
+     * the upper 16 bits of the document ids of each container, sorted
+     */
+    private final char[] keys;
+
+    private final Container[] containers;
+
+    public CompressedFacetBitSet(OpenBitSet bitSet) {
+        long[] bits = bitSet.getBits();
+        int numWords = bitSet.getNumWords();
+        List<Character> keyList = new ArrayList<Character>();
+        List<Container> containerList = new ArrayList<Container>();
+        long card = 0;
+        for (int chunk = 0; chunk * CHUNK_WORDS < numWords; chunk++) {
+            int from = chunk * CHUNK_WORDS;
+            int to = Math.min(from + CHUNK_WORDS, numWords);
+            int chunkCard = 0;
+            int chunkRuns = 0;
+            long prev = 0;
+            for (int w = from; w < to; w++) {
+                long word = bits[w];
+                chunkCard += Long.bitCount(word);
+                // a run starts at every set bit whose predecessor is not set
+                chunkRuns += Long.bitCount(word & ~((word << 1) | (prev >>> 63)));
+                prev = word;
+            }
+            if (chunkCard == 0) {
+                continue;
+            }
+            Container container;
+            if (chunkRuns * 4 <= Math.min(chunkCard * 2, BITMAP_CONTAINER_BYTES)) {
+                container = new RunContainer(bits, from, to, chunkRuns);
+            } else if (chunkCard * 2 < BITMAP_CONTAINER_BYTES) {
+                container = new ArrayContainer(bits, from, to, chunkCard);
+            } else {
+                container = new BitmapContainer(bits, from, to);
+            }
+            keyList.add((char) chunk);
+            containerList.add(container);
+            card += chunkCard;
+        }
+        this.numBits = bitSet.size();
+        this.cardinality = card;
+        this.keys = new char[keyList.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = keyList.get(i);
+        }
+        this.containers = containerList.toArray(new Container[containerList.size()]);
+    }
+
+    private CompressedFacetBitSet(long numBits, long cardinality, char[] keys, Container[] containers) {
+        this.numBits = numBits;
+        this.cardinality = cardinality;
+        this.keys = keys;
+        this.containers = containers;
+    }
+
+    /**
+     * Writes the bitset in the format read by {@link #readFrom(ByteBuffer)}.
+     * 
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(numBits);
+        out.writeLong(cardinality);
+        out.writeInt(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            out.writeChar(keys[i]);
+            containers[i].writeTo(out);
+        }
+    }
+
+    /**
+     * Reads a bitset written by {@link #writeTo(DataOutput)} and advances the
+     * position of the buffer behind it.
+     * 
+     * @param buffer
+     * @return the bitset
+     * @throws IOException
+     *             if the content is not a valid bitset
+     */
+    public static CompressedFacetBitSet readFrom(ByteBuffer buffer) throws IOException {
+        long numBits = buffer.getLong();
+        long cardinality = buffer.getLong();
+        int numContainers = buffer.getInt();
+        if (numBits < 0 || (numBits & 63) != 0 || numContainers < 0 || numContainers > CHUNK_MASK + 1
+                || numContainers > buffer.remaining() / 3) {
+            throw new IOException("Invalid compressed bitset header.");
+        }
+        char[] keys = new char[numContainers];
+        Container[] containers = new Container[numContainers];
+        long card = 0;
+        for (int i = 0; i < numContainers; i++) {
+            keys[i] = buffer.getChar();
+            if (i > 0 && keys[i] <= keys[i - 1]) {
+                throw new IOException("Compressed bitset containers are not sorted.");
+            }
+            byte type = buffer.get();
+            if (type == ARRAY_CONTAINER) {
+                containers[i] = ArrayContainer.readFrom(buffer);
+            } else if (type == RUN_CONTAINER) {
+                containers[i] = RunContainer.readFrom(buffer);
+            } else if (type == BITMAP_CONTAINER) {
+                containers[i] = BitmapContainer.readFrom(buffer);
+            } else {
+                throw new IOException("Unknown compressed bitset container type " + type + ".");
+            }
+            if ((((long) keys[i]) << CHUNK_BITS) + containers[i].last() >= numBits) {
+                throw new IOException("Compressed bitset container exceeds the number of bits.");
+            }
+            card += containers[i].cardinality();
+        }
+        if (card != cardinality) {
+            throw new IOException("Compressed bitset cardinality does not match its containers.");
+        }
+        return new CompressedFacetBitSet(numBits, cardinality, keys, containers);
+    }
+
+    /**
+     * Reads the number of values of a container and checks that the buffer
+     * holds them.
+     */
+    private static int readLength(ByteBuffer buffer, int maxLength, int bytesPerValue) throws IOException {
+        int length = buffer.getInt();
+        if (length < 1 || length > maxLength || length > buffer.remaining() / bytesPerValue) {
+            throw new IOException("Invalid compressed bitset container length " + length + ".");
+        }
+        return length;
+    }
+
+    /**
+     * Returns a compressed facet bitset, if the density of the bitset is not
+     * above <code>maxDensity</code> and the compressed form is smaller than
+     * the bitset. Otherwise the bitset is returned as DenseFacetBitSet.
+     * 
+     * @param bitSet
+     * @param maxDensity
+     *            fraction of set bits up to which compression is tried
+     * @return
+     */
+    public static IFacetBitSet compress(OpenBitSet bitSet, double maxDensity) {
+        DenseFacetBitSet dense = new DenseFacetBitSet(bitSet);
+        long size = bitSet.size();
+        if (size == 0 || ((double) bitSet.cardinality()) / size > maxDensity) {
+            return dense;
+        }
+        CompressedFacetBitSet compressed = new CompressedFacetBitSet(bitSet);
+        if (compressed.getSizeInBytes() < dense.getSizeInBytes()) {
+            return compressed;
+        }
+        return dense;
+    }
+
+    @Override
+    public long cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    public boolean get(int doc) {
+        int idx = Arrays.binarySearch(keys, (char) (doc >>> CHUNK_BITS));
+        if (idx < 0) {
+            return false;
+        }
+        return containers[idx].contains(doc & CHUNK_MASK);
+    }
+
+    @Override
+    public long intersectionCount(OpenBitSet bitSet) {
+        long[] bits = bitSet.getBits();
+        int numWords = bitSet.getNumWords();
+        long result = 0;
+        for (int i = 0; i < keys.length; i++) {
+            int baseWord = keys[i] * CHUNK_WORDS;
+            if (baseWord >= numWords) {
+                break;
+            }
+            result += containers[i].intersectionCount(bits, numWords, baseWord);
+        }
+        return result;
+    }
+
+    @Override
+    public OpenBitSet toOpenBitSet() {
+        OpenBitSet result = new OpenBitSet(numBits);
+        for (int i = 0; i < keys.length; i++) {
+            containers[i].addTo(result, ((long) keys[i]) << CHUNK_BITS);
+        }
+        return result;
+    }
+
+    @Override
+    public long getSizeInBytes() {
+        long result = 2L * keys.length + 8L * containers.length;
+        for (Container container : containers) {
+            result += container.getSizeInBytes();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of set bits in the range [from, to] of the words.
+     */
+    private static long rangeCount(long[] bits, int numWords, long from, long to) {
+        int startWord = (int) (from >>> 6);
+        int endWord = (int) (to >>> 6);
+        if (startWord >= numWords) {
+            return 0;
+        }
+        long startMask = -1L << from;
+        long endMask = -1L >>> (63 - (to & 63));
+        if (endWord >= numWords) {
+            endWord = numWords - 1;
+            endMask = -1L;
+        }
+        if (startWord == endWord) {
+            return Long.bitCount(bits[startWord] & startMask & endMask);
+        }
+        long result = Long.bitCount(bits[startWord] & startMask);
+        for (int w = startWord + 1; w < endWord; w++) {
+            result += Long.bitCount(bits[w]);
+        }
+        result += Long.bitCount(bits[endWord] & endMask);
+        return result;
+    }
+
+    private abstract static class Container implements Serializable {
+
+        private static final long serialVersionUID = 6125473190584617120L;
+
+        abstract boolean contains(int low);
+
+        abstract long intersectionCount(long[] bits, int numWords, int baseWord);
+
+        abstract void addTo(OpenBitSet bitSet, long base);
+
+        abstract long getSizeInBytes();
+
+        abstract long cardinality();
+
+        /**
+         * Returns the lower 16 bits of the last document id.
+         */
+        abstract int last();
+
+        abstract void writeTo(DataOutput out) throws IOException;
+    }
+
+    /**
+     * Stores the lower 16 bits of every document id.
+     */
+    private static class ArrayContainer extends Container {
+
+        private static final long serialVersionUID = -2950436121868312095L;
+
+        private final char[] values;
+
+        private ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        ArrayContainer(long[] bits, int from, int to, int cardinality) {
+            values = new char[cardinality];
+            int cnt = 0;
+            for (int w = from; w < to; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    values[cnt++] = (char) (((w - from) << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        boolean contains(int low) {
+            return Arrays.binarySearch(values, (char) low) >= 0;
+        }
+
+        @Override
+        long intersectionCount(long[] bits, int numWords, int baseWord) {
+            long result = 0;
+            for (char value : values) {
+                int w = baseWord + (value >>> 6);
+                if (w >= numWords) {
+                    break;
+                }
+                if ((bits[w] & (1L << value)) != 0) {
+                    result++;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        void addTo(OpenBitSet bitSet, long base) {
+            for (char value : values) {
+                bitSet.fastSet(base + value);
+            }
+        }
+
+        @Override
+        long getSizeInBytes() {
+            return 2L * values.length;
+        }
+
+        @Override
+        long cardinality() {
+            return values.length;
+        }
+
+        @Override
+        int last() {
+            return values[values.length - 1];
+        }
+
+        @Override
+        void writeTo(DataOutput out) throws IOException {
+            out.writeByte(ARRAY_CONTAINER);
+            out.writeInt(values.length);
+            for (char value : values) {
+                out.writeChar(value);
+            }
+        }
+
+        static ArrayContainer readFrom(ByteBuffer buffer) throws IOException {
+            char[] values = new char[readLength(buffer, CHUNK_MASK + 1, 2)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = buffer.getChar();
+                if (i > 0 && values[i] <= values[i - 1]) {
+                    throw new IOException("Array container values are not sorted.");
+                }
+            }
+            return new ArrayContainer(values);
+        }
+    }
+
+    /**
+     * Stores runs of consecutive document ids as start and length - 1.
+     */
+    private static class RunContainer extends Container {
+
+        private static final long serialVersionUID = 8394672150937186453L;
+
+        private final char[] starts;
+
+        private final char[] lengths;
+
+        private RunContainer(char[] starts, char[] lengths) {
+            this.starts = starts;
+            this.lengths = lengths;
+        }
+
+        RunContainer(long[] bits, int from, int to, int numRuns) {
+            starts = new char[numRuns];
+            lengths = new char[numRuns];
+            int run = -1;
+            int last = -2;
+            for (int w = from; w < to; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    int low = ((w - from) << 6) + Long.numberOfTrailingZeros(word);
+                    if (low == last + 1) {
+                        lengths[run]++;
+                    } else {
+                        run++;
+                        starts[run] = (char) low;
+                    }
+                    last = low;
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        boolean contains(int low) {
+            int idx = Arrays.binarySearch(starts, (char) low);
+            if (idx >= 0) {
+                return true;
+            }
+            int insertionPoint = -idx - 1;
+            return insertionPoint > 0 && low <= starts[insertionPoint - 1] + lengths[insertionPoint - 1];
+        }
+
+        @Override
+        long intersectionCount(long[] bits, int numWords, int baseWord) {
+            long base = ((long) baseWord) << 6;
+            long result = 0;
+            for (int i = 0; i < starts.length; i++) {
+                result += rangeCount(bits, numWords, base + starts[i], base + starts[i] + lengths[i]);
+            }
+            return result;
+        }
+
+        @Override
+        void addTo(OpenBitSet bitSet, long base) {
+            for (int i = 0; i < starts.length; i++) {
+                bitSet.set(base + starts[i], base + starts[i] + lengths[i] + 1);
+            }
+        }
+
+        @Override
+        long getSizeInBytes() {
+            return 4L * starts.length;
+        }
+
+        @Override
+        long cardinality() {
+            long result = starts.length;
+            for (char length : lengths) {
+                result += length;
+            }
+            return result;
+        }
+
+        @Override
+        int last() {
+            return starts[starts.length - 1] + lengths[lengths.length - 1];
+        }
+
+        @Override
+        void writeTo(DataOutput out) throws IOException {
+            out.writeByte(RUN_CONTAINER);
+            out.writeInt(starts.length);
+            for (int i = 0; i < starts.length; i++) {
+                out.writeChar(starts[i]);
+                out.writeChar(lengths[i]);
+            }
+        }
+
+        static RunContainer readFrom(ByteBuffer buffer) throws IOException {
+            int numRuns = readLength(buffer, (CHUNK_MASK + 2) / 2, 4);
+            char[] starts = new char[numRuns];
+            char[] lengths = new char[numRuns];
+            int last = -1;
+            for (int i = 0; i < numRuns; i++) {
+                starts[i] = buffer.getChar();
+                lengths[i] = buffer.getChar();
+                // runs must be sorted, must not overlap and must end within the chunk
+                if (starts[i] <= last || starts[i] + lengths[i] > CHUNK_MASK) {
+                    throw new IOException("Invalid run container run.");
+                }
+                last = starts[i] + lengths[i];
+            }
+            return new RunContainer(starts, lengths);
+        }
+    }
+
+    /**
+     * Stores one bit per document of the chunk.
+     */
+    private static class BitmapContainer extends Container {
+
+        private static final long serialVersionUID = -7407529264113960342L;
+
+        private final long[] words;
+
+        private BitmapContainer(long[] words) {
+            this.words = words;
+        }
+
+        BitmapContainer(long[] bits, int from, int to) {
+            words = new long[CHUNK_WORDS];
+            System.arraycopy(bits, from, words, 0, to - from);
+        }
+
+        @Override
+        boolean contains(int low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        long intersectionCount(long[] bits, int numWords, int baseWord) {
+            int len = Math.min(CHUNK_WORDS, numWords - baseWord);
+            long result = 0;
+            for (int i = 0; i < len; i++) {
+                result += Long.bitCount(words[i] & bits[baseWord + i]);
+            }
+            return result;
+        }
+
+        @Override
+        void addTo(OpenBitSet bitSet, long base) {
+            for (int i = 0; i < CHUNK_WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    bitSet.fastSet(base + (i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        long getSizeInBytes() {
+            return BITMAP_CONTAINER_BYTES;
+        }
+
+        @Override
+        long cardinality() {
+            long result = 0;
+            for (long word : words) {
+                result += Long.bitCount(word);
+            }
+            return result;
+        }
+
+        @Override
+        int last() {
+            for (int i = CHUNK_WORDS - 1; i >= 0; i--) {
+                if (words[i] != 0) {
+                    return (i << 6) + 63 - Long.numberOfLeadingZeros(words[i]);
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        void writeTo(DataOutput out) throws IOException {
+            out.writeByte(BITMAP_CONTAINER);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        }
+
+        static BitmapContainer readFrom(ByteBuffer buffer) throws IOException {
+            if (buffer.remaining() < BITMAP_CONTAINER_BYTES) {
+                throw new IOException("Bitmap container is truncated.");
+            }
+            long[] words = new long[CHUNK_WORDS];
+            buffer.asLongBuffer().get(words);
+            buffer.position(buffer.position() + BITMAP_CONTAINER_BYTES);
+            BitmapContainer container = new BitmapContainer(words);
+            if (container.last() < 0) {
+                throw new IOException("Bitmap container is empty.");
+            }
+            return container;
+        }
+    }
+
+}
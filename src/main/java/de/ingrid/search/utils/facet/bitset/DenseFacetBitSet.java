@@ -0,0 +1,67 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet.bitset;
+
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * Facet bitset that stores one bit per document of the index reader in an
+ * OpenBitSet.
+ * 
+ */
+public class DenseFacetBitSet implements IFacetBitSet {
+
+    private static final long serialVersionUID = -4632786402378423161L;
+
+    private final OpenBitSet bitSet;
+
+    public DenseFacetBitSet(OpenBitSet bitSet) {
+        this.bitSet = bitSet;
+    }
+
+    @Override
+    public long cardinality() {
+        return bitSet.cardinality();
+    }
+
+    @Override
+    public boolean get(int doc) {
+        return bitSet.get(doc);
+    }
+
+    @Override
+    public long intersectionCount(OpenBitSet other) {
+        return OpenBitSet.intersectionCount(bitSet, other);
+    }
+
+    @Override
+    public OpenBitSet toOpenBitSet() {
+        return bitSet;
+    }
+
+    @Override
+    public long getSizeInBytes() {
+        return 8L * bitSet.getBits().length;
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet.bitset;
+
+import java.io.Serializable;
+
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * The documents of a facet class in one index reader. Implementations differ
+ * in the way the documents are stored, but all of them can be counted against
+ * a result bitset directly in their storage format.
+ * 
+ */
+public interface IFacetBitSet extends Serializable {
+
+    /**
+     * Returns the number of documents in this set.
+     * 
+     * @return
+     */
+    public long cardinality();
+
+    /**
+     * Returns true if the document is in this set.
+     * 
+     * @param doc
+     * @return
+     */
+    public boolean get(int doc);
+
+    /**
+     * Returns the number of documents that are in this set and in the given
+     * bitset, without creating intermediate bitsets.
+     * 
+     * @param bitSet
+     * @return
+     */
+    public long intersectionCount(OpenBitSet bitSet);
+
+    /**
+     * Returns the documents as OpenBitSet. Implementations that do not store
+     * an OpenBitSet will create a new one.
+     * 
+     * @return
+     */
+    public OpenBitSet toOpenBitSet();
+
+    /**
+     * Returns the approximate memory used by this set.
+     * 
+     * @return
+     */
+    public long getSizeInBytes();
+
+}
@@ -0,0 +1,120 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet.bitset;
+
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * Facet bitset that stores the words of the bitset outside of the java heap,
+ * in a direct or memory mapped buffer. Only the buffer handle lives on the
+ * heap.
+ * <p/>
+ * The bitset is serialized as DenseFacetBitSet.
+ * 
+ */
+public class OffHeapFacetBitSet implements IFacetBitSet {
+
+    private static final long serialVersionUID = -1880640213695478830L;
+
+    private final transient LongBuffer words;
+
+    private final int numWords;
+
+    private final long cardinality;
+
+    /**
+     * Copies the words of the bitset into a new direct buffer.
+     * 
+     * @param bitSet
+     */
+    public OffHeapFacetBitSet(OpenBitSet bitSet) {
+        this.numWords = bitSet.getNumWords();
+        this.words = ByteBuffer.allocateDirect(numWords * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+        this.words.put(bitSet.getBits(), 0, numWords);
+        this.words.rewind();
+        this.cardinality = bitSet.cardinality();
+    }
+
+    /**
+     * Uses the given buffer as storage of the bitset words. The buffer can be
+     * a slice of a memory mapped file.
+     * 
+     * @param words
+     * @param cardinality
+     *            the number of set bits of the words
+     */
+    public OffHeapFacetBitSet(LongBuffer words, long cardinality) {
+        this.words = words;
+        this.numWords = words.limit();
+        this.cardinality = cardinality;
+    }
+
+    @Override
+    public long cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    public boolean get(int doc) {
+        int w = doc >>> 6;
+        return w < numWords && (words.get(w) & (1L << doc)) != 0;
+    }
+
+    @Override
+    public long intersectionCount(OpenBitSet bitSet) {
+        long[] bits = bitSet.getBits();
+        int len = Math.min(numWords, bitSet.getNumWords());
+        long result = 0;
+        for (int i = 0; i < len; i++) {
+            result += Long.bitCount(words.get(i) & bits[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public OpenBitSet toOpenBitSet() {
+        long[] bits = new long[numWords];
+        LongBuffer buffer = words.duplicate();
+        buffer.rewind();
+        buffer.get(bits, 0, numWords);
+        return new OpenBitSet(bits, numWords);
+    }
+
+    /**
+     * Returns the size of the words, which are stored outside of the heap.
+     */
+    @Override
+    public long getSizeInBytes() {
+        return 8L * numWords;
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return new DenseFacetBitSet(toOpenBitSet());
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet.bitset;
+
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.ReaderUtil;
+
+/**
+ * Facet bitset of an index reader composed of the bitsets of its segments.
+ * The segment bitsets are not copied, so they can be shared with other
+ * index readers that contain the same segments (e.g. after reopening the
+ * index).
+ * 
+ */
+public class SegmentedFacetBitSet implements IFacetBitSet {
+
+    private static final long serialVersionUID = 6112950637426150271L;
+
+    private final OpenBitSet[] segments;
+
+    private final int[] docBases;
+
+    private final int maxDoc;
+
+    private final long cardinality;
+
+    /**
+     * @param segments
+     *            the bitsets of the segments, in the order of the segments
+     * @param docBases
+     *            the first document of every segment in the index reader
+     * @param maxDoc
+     *            the number of documents of the index reader
+     */
+    public SegmentedFacetBitSet(OpenBitSet[] segments, int[] docBases, int maxDoc) {
+        this.segments = segments;
+        this.docBases = docBases;
+        this.maxDoc = maxDoc;
+        long c = 0;
+        for (OpenBitSet segment : segments) {
+            c += segment.cardinality();
+        }
+        this.cardinality = c;
+    }
+
+    @Override
+    public long cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    public boolean get(int doc) {
+        if (doc < 0 || doc >= maxDoc) {
+            return false;
+        }
+        int i = ReaderUtil.subIndex(doc, docBases);
+        return segments[i].get(doc - docBases[i]);
+    }
+
+    @Override
+    public long intersectionCount(OpenBitSet bitSet) {
+        long[] bits = bitSet.getBits();
+        int numWords = bitSet.getNumWords();
+        long result = 0;
+        for (int i = 0; i < segments.length; i++) {
+            long[] segmentBits = segments[i].getBits();
+            int segmentWords = segments[i].getNumWords();
+            int firstWord = docBases[i] >>> 6;
+            int shift = docBases[i] & 0x3f;
+            for (int j = 0; j < segmentWords; j++) {
+                int w = firstWord + j;
+                if (w >= numWords) {
+                    break;
+                }
+                // the 64 bits of the bitset starting at the document of
+                // segment word j
+                long word = bits[w] >>> shift;
+                if (shift != 0 && w + 1 < numWords) {
+                    word |= bits[w + 1] << (64 - shift);
+                }
+                result += Long.bitCount(segmentBits[j] & word);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public OpenBitSet toOpenBitSet() {
+        OpenBitSet result = new OpenBitSet(maxDoc);
+        long[] bits = result.getBits();
+        for (int i = 0; i < segments.length; i++) {
+            long[] segmentBits = segments[i].getBits();
+            int segmentWords = segments[i].getNumWords();
+            int firstWord = docBases[i] >>> 6;
+            int shift = docBases[i] & 0x3f;
+            for (int j = 0; j < segmentWords; j++) {
+                int w = firstWord + j;
+                if (w >= bits.length) {
+                    break;
+                }
+                bits[w] |= segmentBits[j] << shift;
+                if (shift != 0 && w + 1 < bits.length) {
+                    bits[w + 1] |= segmentBits[j] >>> (64 - shift);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the segment bitsets, which may be shared with other
+     * facet bitsets.
+     */
+    @Override
+    public long getSizeInBytes() {
+        long result = 0;
+        for (OpenBitSet segment : segments) {
+            result += 8L * segment.getBits().length;
+        }
+        return result;
+    }
+
+}
@@ -32,6 +32,7 @@ import org.apache.log4j.Logger;
 import org.apache.lucene.util.OpenBitSet;
 
 import de.ingrid.search.utils.facet.FacetClassDefinition;
+import de.ingrid.search.utils.facet.FacetCountContext;
 import de.ingrid.search.utils.facet.FacetDefinition;
 import de.ingrid.utils.IngridDocument;
 import de.ingrid.utils.query.IngridQuery;
@@ -61,7 +62,7 @@ import de.ingrid.utils.query.IngridQuery;
  * @author joachim@wemove.com
  * 
  */
-public class ConfigurableFacetCounter implements IFacetCounter {
+public class ConfigurableFacetCounter implements IContextFacetCounter {
 
     private Map<String, List<String>> facetDefinitions = null;
 
@@ -80,11 +81,27 @@ public class ConfigurableFacetCounter implements IFacetCounter {
     @Override
     public IngridDocument count(IngridDocument result, IngridQuery query, OpenBitSet[] bitsets,
             List<FacetDefinition> facetDefs) {
+        return count(result, query, new FacetCountContext(bitsets), facetDefs);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * de.ingrid.search.utils.facet.counter.IContextFacetCounter#count(de.ingrid.utils
+     * .IngridDocument, de.ingrid.utils.query.IngridQuery,
+     * de.ingrid.search.utils.facet.FacetCountContext, java.util.List)
+     */
+    @Override
+    public IngridDocument count(IngridDocument result, IngridQuery query, FacetCountContext context,
+            List<FacetDefinition> facetDefs) {
+        // all facet classes get the cardinality of the search result, which is
+        // computed once per request by the context
         for (FacetDefinition fd : facetDefs) {
             if (fd.getClasses() == null) {
                 if (facetDefinitions != null && facetDefinitions.containsKey(fd.getName())) {
                     for (String fcd : facetDefinitions.get(fd.getName())) {
-                        long sum = sumBitsetCardinalities(bitsets);
+                        long sum = context.getCardinality();
                         if (LOG.isDebugEnabled()) {
                             LOG.debug("Add facet '" + fcd + "' with cardinality " + sum + ".");
                         }
@@ -95,7 +112,7 @@ public class ConfigurableFacetCounter implements IFacetCounter {
                 if (facetClassDefinitions != null) {
                     for (FacetClassDefinition fcd : fd.getClasses()) {
                         if (facetClassDefinitions.contains(fcd.getName())) {
-                            long sum = sumBitsetCardinalities(bitsets);
+                            long sum = context.getCardinality();
                             if (LOG.isDebugEnabled()) {
                                 LOG.debug("Add facet '" + fcd.getName() + "' with cardinality " + sum + ".");
                             }
@@ -25,15 +25,21 @@
  */
 package de.ingrid.search.utils.facet.counter;
 
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
-import org.apache.lucene.util.OpenBitSet;
 
 import de.ingrid.search.utils.ConfigurablePlugDescriptionWrapper;
 import de.ingrid.search.utils.facet.FacetClassDefinition;
+import de.ingrid.search.utils.facet.FacetCountContext;
 import de.ingrid.search.utils.facet.FacetDefinition;
+import de.ingrid.utils.IConfigurable;
 import de.ingrid.utils.IngridDocument;
+import de.ingrid.utils.PlugDescription;
 import de.ingrid.utils.query.IngridQuery;
 
 /**
@@ -57,14 +63,24 @@ import de.ingrid.utils.query.IngridQuery;
  * <p/>
  * The results obtained from the extended ConfigurableFacetCounter are NOT
  * overwritten.
+ * <p/>
+ * The facet classes are looked up in tables, that are built whenever the
+ * plugdescription wrapper is configured. Partners or providers added to the
+ * plugdescription in place are used after {@link #configure(PlugDescription)}
+ * is called, e.g. by configuring the wrapper.
  * 
  * @author joachim@wemove.com
  * 
  */
-public class DscPlugdescriptionFacetCounter extends ConfigurableFacetCounter {
+public class DscPlugdescriptionFacetCounter extends ConfigurableFacetCounter implements IConfigurable {
 
     private ConfigurablePlugDescriptionWrapper plugDescriptionWrapper = null;
 
+    /**
+     * the facet classes of the current plugdescription
+     */
+    private volatile FacetClassLookup facetClassLookup = null;
+
     private static Logger LOG = Logger.getLogger(DscPlugdescriptionFacetCounter.class);
     
     
@@ -72,98 +88,109 @@ public class DscPlugdescriptionFacetCounter extends ConfigurableFacetCounter {
      * (non-Javadoc)
      * 
      * @see
-     * de.ingrid.search.utils.facet.counter.IFacetCounter#count(de.ingrid.utils.query
-     * .IngridQuery, org.apache.lucene.util.OpenBitSetDISI, java.util.List)
+     * de.ingrid.search.utils.facet.counter.IContextFacetCounter#count(de.ingrid.utils
+     * .IngridDocument, de.ingrid.utils.query.IngridQuery,
+     * de.ingrid.search.utils.facet.FacetCountContext, java.util.List)
      */
     @Override
-    public IngridDocument count(IngridDocument result, IngridQuery query, OpenBitSet[] bitsets,
+    public IngridDocument count(IngridDocument result, IngridQuery query, FacetCountContext context,
             List<FacetDefinition> facetDefs) {
-        super.count(result, query, bitsets, facetDefs);
+        super.count(result, query, context, facetDefs);
+        FacetClassLookup lookup = facetClassLookup;
+        if (lookup == null) {
+            return result;
+        }
+        // all facet classes get the cardinality of the search result
         for (FacetDefinition fd : facetDefs) {
-                // add partner facet classes according to the plugdescription
-                if (fd.getName().equals("partner")) {
-                    for (String partner : plugDescriptionWrapper.getPlugDescription().getPartners()) {
-                        String fcdString = fd.getName() + ":" + partner;
-                        if (fd.getClasses() != null) {
-                            for (FacetClassDefinition fcd : fd.getClasses()) {
-                                if (fcd.getName().equals(fcdString)) {
-                                    long sum = sumBitsetCardinalities(bitsets);
-                                    if (LOG.isDebugEnabled()) {
-                                        LOG.debug("Add facet '" + fcdString + "' with cardinality " + sum + ".");
-                                    }
-                                    addResult(result, fcdString, sum);
-                                }
-                            }
-                        } else {
-                            long sum = sumBitsetCardinalities(bitsets);
-                            if (LOG.isDebugEnabled()) {
-                                LOG.debug("Add facet '" + fcdString + "' with cardinality " + sum + ".");
-                            }
-                            addResult(result, fcdString, sum);
-                        }
-                    }
-                }
-                // add provider facet classes according to the plugdescription
-                if (fd.getName().equals("provider")) {
-                    for (String provider : plugDescriptionWrapper.getPlugDescription().getProviders()) {
-                        String fcdString = fd.getName() + ":" + provider;
-                        if (fd.getClasses() != null) {
-                            for (FacetClassDefinition fcd : fd.getClasses()) {
-                                if (fcd.getName().equals(fcdString)) {
-                                    long sum = sumBitsetCardinalities(bitsets);
-                                    if (LOG.isDebugEnabled()) {
-                                        LOG.debug("Add facet '" + fcdString + "' with cardinality " + sum + ".");
-                                    }
-                                    addResult(result, fcdString, sum);
-                                }
-                            }
-                        } else {
-                            long sum = sumBitsetCardinalities(bitsets);
-                            if (LOG.isDebugEnabled()) {
-                                LOG.debug("Add facet '" + fcdString + "' with cardinality " + sum + ".");
-                            }
-                            addResult(result, fcdString, sum);
+            Set<String> facetClassNames = lookup.facetClasses.get(fd.getName());
+            if (facetClassNames == null) {
+                continue;
+            }
+            long sum = context.getCardinality();
+            if (fd.getClasses() != null) {
+                for (FacetClassDefinition fcd : fd.getClasses()) {
+                    if (facetClassNames.contains(fcd.getName())) {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Add facet '" + fcd.getName() + "' with cardinality " + sum + ".");
                         }
+                        addResult(result, fcd.getName(), sum);
                     }
                 }
-                // add partner_provider facet classes according to the
-                // plugdescription
-                if (fd.getName().startsWith("provider_")) {
-                    for (String partner : plugDescriptionWrapper.getPlugDescription().getPartners()) {
-                        if (fd.getName().equals("provider_" + partner)) {
-                            for (String provider : plugDescriptionWrapper.getPlugDescription().getProviders()) {
-                                String fcdString = fd.getName() + ":" + provider;
-                                if (fd.getClasses() != null) {
-                                    for (FacetClassDefinition fcd : fd.getClasses()) {
-                                        if (fcd.getName().equals(fcdString)) {
-                                            long sum = sumBitsetCardinalities(bitsets);
-                                            if (LOG.isDebugEnabled()) {
-                                                LOG.debug("Add facet '" + fcdString + "' with cardinality " + sum + ".");
-                                            }
-                                            addResult(result, fcdString, sum);
-                                        }
-                                    }
-                                } else {
-                                    long sum = sumBitsetCardinalities(bitsets);
-                                    if (LOG.isDebugEnabled()) {
-                                        LOG.debug("Add facet '" + fcdString + "' with cardinality " + sum + ".");
-                                    }
-                                    addResult(result, fcdString, sum);
-                                }
-                            }
-                        }
+            } else {
+                for (String fcdString : facetClassNames) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Add facet '" + fcdString + "' with cardinality " + sum + ".");
                     }
+                    addResult(result, fcdString, sum);
                 }
+            }
         }
         return result;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * de.ingrid.utils.IConfigurable#configure(de.ingrid.utils.PlugDescription)
+     */
+    @Override
+    public void configure(PlugDescription plugDescription) {
+        facetClassLookup = (plugDescription == null) ? null : new FacetClassLookup(plugDescription);
+    }
+
     public ConfigurablePlugDescriptionWrapper getPlugDescriptionWrapper() {
         return plugDescriptionWrapper;
     }
 
-    public void setPlugDescriptionWrapper(ConfigurablePlugDescriptionWrapper plugDescriptionWrapper) {
+    /**
+     * Sets the wrapper of the plugdescription whose partners and providers are
+     * counted. The counter is configured whenever the wrapper is configured
+     * and is removed from a replaced wrapper. A null wrapper resets the facet
+     * classes, so no facet classes are added.
+     * 
+     * @param plugDescriptionWrapper
+     */
+    public synchronized void setPlugDescriptionWrapper(ConfigurablePlugDescriptionWrapper plugDescriptionWrapper) {
+        if (this.plugDescriptionWrapper != null && this.plugDescriptionWrapper != plugDescriptionWrapper) {
+            this.plugDescriptionWrapper.removeConfigurable(this);
+        }
         this.plugDescriptionWrapper = plugDescriptionWrapper;
+        if (plugDescriptionWrapper == null) {
+            configure(null);
+            return;
+        }
+        plugDescriptionWrapper.addConfigurable(this);
+        configure(plugDescriptionWrapper.getPlugDescription());
+    }
+
+    /**
+     * The names of the facet classes of the partners and providers of a
+     * plugdescription, by facet name (partner, provider and
+     * provider_&lt;partner id&gt;).
+     */
+    private static class FacetClassLookup {
+
+        private final Map<String, Set<String>> facetClasses = new HashMap<String, Set<String>>();
+
+        public FacetClassLookup(PlugDescription plugDescription) {
+            String[] partners = plugDescription.getPartners();
+            String[] providers = plugDescription.getProviders();
+            facetClasses.put("partner", createFacetClasses("partner", partners));
+            facetClasses.put("provider", createFacetClasses("provider", providers));
+            for (String partner : partners) {
+                String facetName = "provider_" + partner;
+                facetClasses.put(facetName, createFacetClasses(facetName, providers));
+            }
+        }
+
+        private static Set<String> createFacetClasses(String facetName, String[] values) {
+            Set<String> result = new LinkedHashSet<String>();
+            for (String value : values) {
+                result.add(facetName + ":" + value);
+            }
+            return result;
+        }
     }
 
 }
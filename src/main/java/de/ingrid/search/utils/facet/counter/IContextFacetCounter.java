@@ -0,0 +1,57 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet.counter;
+
+import java.util.List;
+
+import org.apache.lucene.util.OpenBitSet;
+
+import de.ingrid.search.utils.facet.FacetCountContext;
+import de.ingrid.search.utils.facet.FacetDefinition;
+import de.ingrid.utils.IngridDocument;
+import de.ingrid.utils.query.IngridQuery;
+
+/**
+ * Facet counter that counts with the context of the request. The facet
+ * manager passes the context to counters implementing this interface, so they
+ * share the values derived from the result bitsets and stop counting if the
+ * deadline of the request expires. All other counters get the result bitsets
+ * only.
+ * 
+ */
+public interface IContextFacetCounter extends IFacetCounter {
+
+    /**
+     * Same as {@link #count(IngridDocument, IngridQuery, OpenBitSet[], List)},
+     * but stops counting if the deadline of the context expires. Facet classes
+     * that were not counted are missing in the result.
+     * 
+     * @param result Map with facet class as key and the number of hits
+     * @param query The initial query of the request.
+     * @param context The search result bitSets and the deadline of the request.
+     * @param facetDefs The facet definition from the search request
+     * @return Map with facet class as key and the number of hits
+     */
+    public IngridDocument count(IngridDocument result, IngridQuery query, FacetCountContext context, List<FacetDefinition> facetDefs);
+
+}
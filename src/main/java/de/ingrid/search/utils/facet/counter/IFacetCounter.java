@@ -42,7 +42,7 @@ public interface IFacetCounter {
      * @return Map with facet class as key and the number of hits
      */
     public IngridDocument count(IngridDocument result, IngridQuery query, OpenBitSet[] bitsets, List<FacetDefinition> facetDefs);
-    
+
     /**
      * Initializes the facet counter. Clears all caches and stored facet classes.
      * 
@@ -23,21 +23,93 @@
 package de.ingrid.search.utils.facet.counter;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.util.OpenBitSet;
 
 import de.ingrid.search.utils.facet.FacetClass;
 import de.ingrid.search.utils.facet.FacetClassRegistry;
+import de.ingrid.search.utils.facet.FacetCountContext;
 import de.ingrid.search.utils.facet.FacetDefinition;
+import de.ingrid.search.utils.facet.FacetUtils;
+import de.ingrid.search.utils.facet.bitset.IFacetBitSet;
 import de.ingrid.utils.IngridDocument;
 import de.ingrid.utils.query.IngridQuery;
 
-public class IndexFacetCounter implements IFacetCounter {
+public class IndexFacetCounter implements IContextFacetCounter {
+
+    /**
+     * The number of tasks per thread the facet classes are split into when
+     * counting in parallel. More tasks than threads balance the different
+     * costs of the facet classes.
+     */
+    private static final int TASKS_PER_THREAD = 4;
+
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 64;
+
+    /**
+     * Testing a document against a bitset is more expensive than counting the
+     * bits of a word, so the sparse strategy pays off only if far less than
+     * one document per 64 bit word matches.
+     */
+    private static final double DEFAULT_SPARSE_DENSITY_THRESHOLD = 0.002;
+
+    private static final long DEFAULT_SAMPLING_THRESHOLD = 1000000;
+
+    /**
+     * quantile of the standard normal distribution for a 95% confidence
+     * interval
+     */
+    private static final double Z_95 = 1.96;
 
     private FacetClassRegistry _facetClassRegistry;
 
+    /**
+     * The number of threads used for counting facet classes. A value &lt;= 1
+     * counts all facet classes sequentially on the request thread.
+     */
+    private int parallelism = 1;
+
+    /**
+     * Minimum number of facet classes of a request to count in parallel.
+     * Requests with less facet classes are counted sequentially.
+     */
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    private volatile ForkJoinPool forkJoinPool = null;
+
+    /**
+     * true if the pool was created by this counter and must be shut down when
+     * it is replaced
+     */
+    private boolean ownsForkJoinPool = false;
+
+    /**
+     * Results with a density (fraction of matching documents) below this
+     * value are counted document by document. A value &lt;= 0 disables the
+     * sparse counting strategy.
+     */
+    private double sparseDensityThreshold = DEFAULT_SPARSE_DENSITY_THRESHOLD;
+
+    /**
+     * The fraction of the result words that are sampled to estimate the hit
+     * counts of huge results. Every sampled word is a cluster of up to 64
+     * result documents. Values &lt;= 0 or &gt;= 1 disable sampling.
+     */
+    private double samplingRate = 0;
+
+    /**
+     * Minimum number of result documents to estimate the hit counts from a
+     * sample. Smaller results are counted exactly.
+     */
+    private long samplingThreshold = DEFAULT_SAMPLING_THRESHOLD;
+
     private static Logger LOG = Logger.getLogger(IndexFacetCounter.class);
 
     public IndexFacetCounter() {
@@ -54,6 +126,21 @@ public class IndexFacetCounter implements IFacetCounter {
     @Override
     public IngridDocument count(IngridDocument result, IngridQuery query, OpenBitSet[] bitsets,
             List<FacetDefinition> facetDefs) {
+        return count(result, query, new FacetCountContext(bitsets), facetDefs);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * de.ingrid.search.utils.facet.counter.IContextFacetCounter#count(de.ingrid.utils
+     * .IngridDocument, de.ingrid.utils.query.IngridQuery,
+     * de.ingrid.search.utils.facet.FacetCountContext, java.util.List)
+     */
+    @Override
+    public IngridDocument count(IngridDocument result, IngridQuery query, FacetCountContext context,
+            List<FacetDefinition> facetDefs) {
+        OpenBitSet[] bitsets = context.getBitSets();
         if (LOG.isDebugEnabled()) {
             LOG.debug("Count facets with '" + this.getClass().getName() + "'");
         }
@@ -69,53 +156,251 @@ public class IndexFacetCounter implements IFacetCounter {
         // get all FacetClasses from the definitions, which contain a BitSet
         // of all the documents containing each FacetClass
         for (FacetDefinition def : facetDefs) {
+            // producing the facet classes of a facet may be expensive
+            if (context.isExpired()) {
+                break;
+            }
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Get facet '" + def.getName() + "': [field: " + def.getField() + ", query: "
                         + def.getQueryFragment() + ", classes: " + def.getClasses() + "]");
             }
-            facetClasses.addAll(_facetClassRegistry.getFacetClasses(def));
+            // the facet classes of the index readers of the result bitsets,
+            // facet classes that are not produced before the deadline are
+            // missing
+            facetClasses.addAll(_facetClassRegistry.getFacetClasses(def, context.getIndexReaders(), context
+                    .getDeadline()));
         }
 
+        // collect the facet classes that still have to be counted, if the
+        // facet class has already been set by another facet counter, ignore
+        // it
+        List<FacetClass> countClasses = new ArrayList<FacetClass>(facetClasses.size());
+        Set<String> countClassNames = new HashSet<String>();
         for (FacetClass fc : facetClasses) {
-            // if the facet class has already been set by another facet counter,
-            // ignore it
-            if (!result.containsKey(fc.getFacetClassName())) {
-                long start = 0;
+            if (!result.containsKey(fc.getFacetClassName()) && countClassNames.add(fc.getFacetClassName())) {
+                countClasses.add(fc);
+            } else {
                 if (LOG.isDebugEnabled()) {
-                    start = System.currentTimeMillis();
+                    LOG.debug("Skip creating facet class '" + fc.getFacetClassName()
+                            + "', because is was already set to: " + result.get(fc.getFacetClassName()));
+                }
+            }
+        }
+
+        long start = 0;
+        if (LOG.isDebugEnabled()) {
+            start = System.currentTimeMillis();
+        }
+        // for sparse results, iterate the result documents once instead of
+        // scanning all words of every facet class bitset
+        int[][] docIds = null;
+        // for huge results, count a sample of the result words and scale the
+        // counts up
+        long resultCardinality = 0;
+        WordSample sample = null;
+        if (!countClasses.isEmpty() && samplingRate > 0 && samplingRate < 1) {
+            resultCardinality = context.getCardinality();
+            if (resultCardinality >= samplingThreshold) {
+                docIds = FacetUtils.getSampleDocIds(bitsets, samplingRate);
+                sample = new WordSample(bitsets, docIds, FacetUtils.getSampleStride(samplingRate));
+                // testing the sampled documents must be cheaper than
+                // intersecting all words of the result
+                if (sample.numDocs == 0 || sample.numDocs >= sample.numWords) {
+                    docIds = null;
+                    sample = null;
                 }
-                result.put(fc.getFacetClassName(), getFacetHitCount(bitsets, fc.getBitSets()));
                 if (LOG.isDebugEnabled()) {
-                    LOG.debug("Create facet class '" + fc.getFacetClassName() + "', set to: "
-                            + result.getLong(fc.getFacetClassName()) + " in " + (System.currentTimeMillis() - start)
-                            + " ms.");
+                    LOG.debug("Result cardinality is " + resultCardinality + ", "
+                            + ((sample == null) ? "sample too large, count exactly." : "count a sample of "
+                                    + sample.numDocs + " documents."));
                 }
-            } else {
+            }
+        }
+        if (docIds == null && !countClasses.isEmpty() && sparseDensityThreshold > 0) {
+            double density = context.getDensity();
+            if (density < sparseDensityThreshold) {
+                docIds = context.getDocIds();
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Result density is " + density + ", use " + ((docIds == null) ? "dense" : "sparse")
+                        + " counting strategy.");
+            }
+        }
+
+        long[] hitCounts = new long[countClasses.size()];
+        long[][] sampleMoments = (sample == null) ? null : new long[countClasses.size()][3];
+        boolean counted = false;
+        if (parallelism > 1 && countClasses.size() >= parallelThreshold) {
+            try {
+                getForkJoinPool().invoke(new FacetHitCountTask(bitsets, docIds, countClasses, hitCounts,
+                        sampleMoments, 0, countClasses.size(), Math.max(1, countClasses.size()
+                                / (parallelism * TASKS_PER_THREAD)), context));
+                counted = true;
+            } catch (RejectedExecutionException e) {
                 if (LOG.isDebugEnabled()) {
-                    LOG.debug("Skip creating facet class '" + fc.getFacetClassName()
-                            + "', because is was already set to: " + result.getLong(fc.getFacetClassName()));
+                    LOG.debug("Fork join pool was shut down, count facet classes sequentially.");
                 }
             }
         }
+        if (!counted) {
+            for (int i = 0; i < hitCounts.length; i++) {
+                hitCounts[i] = getFacetHitCount(bitsets, docIds, countClasses.get(i),
+                        (sampleMoments == null) ? null : sampleMoments[i], context);
+            }
+        }
+        for (int i = 0; i < hitCounts.length; i++) {
+            if (hitCounts[i] < 0) {
+                // not counted before the deadline expired
+                continue;
+            }
+            if (sample != null) {
+                estimate(context, countClasses.get(i).getFacetClassName(), hitCounts, i, sampleMoments[i], sample,
+                        resultCardinality);
+            }
+            result.put(countClasses.get(i).getFacetClassName(), hitCounts[i]);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Create facet class '" + countClasses.get(i).getFacetClassName() + "', set to: "
+                        + hitCounts[i] + ".");
+            }
+        }
+        if (context.isIncomplete() && LOG.isInfoEnabled()) {
+            LOG.info("Deadline expired, return facet classes counted so far.");
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Count " + hitCounts.length + " facet classes "
+                    + ((parallelism > 1 && hitCounts.length >= parallelThreshold) ? "in parallel" : "sequentially")
+                    + " in " + (System.currentTimeMillis() - start) + " ms.");
+        }
         return result;
     }
 
-    private long getFacetHitCount(OpenBitSet[] baseBitSets, OpenBitSet[] filterBitSets) {
-        if (baseBitSets.length != filterBitSets.length) {
-            LOG.warn("Different bitset array sizes detected. Results may be inaccurate.");
+    /**
+     * Returns the number of result documents that belong to the facet class.
+     * 
+     * @param bitsets
+     *            the result bitsets
+     * @param docIds
+     *            the ids of the result documents if the sparse strategy is
+     *            used, otherwise null
+     * @param fc
+     * @param sampleMoments
+     *            receives the moments of the hit counts of the sampled words
+     *            (see {@link #getSampleMoments(int[][], IFacetBitSet[], long[])})
+     *            if the docIds are a sample, otherwise null
+     * @param context
+     * @return the number of documents or -1 if the deadline expired
+     */
+    private static long getFacetHitCount(OpenBitSet[] bitsets, int[][] docIds, FacetClass fc,
+            long[] sampleMoments, FacetCountContext context) {
+        if (context.isExpired()) {
+            return -1;
         }
+        if (sampleMoments != null) {
+            getSampleMoments(docIds, fc.getFacetBitSets(), sampleMoments);
+            return sampleMoments[0];
+        }
+        if (docIds != null) {
+            return FacetUtils.memberCount(docIds, fc.getFacetBitSets());
+        }
+        return FacetUtils.intersectionCount(bitsets, fc.getFacetBitSets());
+    }
 
-        int minArraySize = (baseBitSets.length > filterBitSets.length) ? filterBitSets.length : baseBitSets.length;
-        long result = 0;
-
+    /**
+     * Computes the moments of the hit counts of the sampled words of a facet
+     * class: the sum of the hit counts, the sum of the squared hit counts and
+     * the sum of the hit counts times the number of sampled documents of the
+     * word.
+     * 
+     * @param docIds
+     *            the sampled document ids in ascending order, one array per
+     *            index reader
+     * @param facetBitSets
+     * @param moments
+     *            receives the moments
+     */
+    private static void getSampleMoments(int[][] docIds, IFacetBitSet[] facetBitSets, long[] moments) {
+        int minArraySize = Math.min(docIds.length, facetBitSets.length);
         for (int i = 0; i < minArraySize; i++) {
-            if (filterBitSets[i] != null) {
-                OpenBitSet clone = (OpenBitSet) filterBitSets[i].clone();
-                clone.and(baseBitSets[i]);
-                result += clone.cardinality();
+            IFacetBitSet facetBitSet = facetBitSets[i];
+            if (facetBitSet == null) {
+                continue;
+            }
+            int[] ids = docIds[i];
+            int j = 0;
+            while (j < ids.length) {
+                int word = ids[j] >>> 6;
+                long docs = 0;
+                long hits = 0;
+                for (; j < ids.length && (ids[j] >>> 6) == word; j++) {
+                    docs++;
+                    if (facetBitSet.get(ids[j])) {
+                        hits++;
+                    }
+                }
+                moments[0] += hits;
+                moments[1] += hits * hits;
+                moments[2] += hits * docs;
             }
         }
-        return result;
+    }
+
+    /**
+     * Scales the hit count of a sample up to the result and sets the
+     * confidence bound (95%) of the estimated hit count.
+     * <p/>
+     * The sampled words are clusters of up to 64 documents, so the hit count
+     * is estimated with the ratio of the hits to the documents of the sampled
+     * words, and its variance is computed from the differences of the hit
+     * counts of the sampled words to that ratio. The bound covers the sampling
+     * error of the estimate only. It assumes that the systematic sample of
+     * every <code>1/samplingRate</code>-th word is as good as a random sample
+     * of the words, which does not hold if the facet classes repeat with the
+     * same period in the index.
+     */
+    private static void estimate(FacetCountContext context, String facetClassName, long[] hitCounts, int idx,
+            long[] moments, WordSample sample, long resultCardinality) {
+        double ratio = ((double) moments[0]) / sample.numDocs;
+        // sum of the squared residuals of the sampled words
+        double residuals = Math.max(0, moments[1] - 2 * ratio * moments[2] + ratio * ratio
+                * sample.sumSquaredDocs);
+        double n = sample.numSampledWords;
+        double standardError = (n > 1) ? Math.sqrt(Math.max(0, 1 - n / sample.numWords) * n / (n - 1)
+                * residuals) / sample.numDocs : 1;
+        hitCounts[idx] = Math.round(ratio * resultCardinality);
+        context.setErrorBound(facetClassName, (long) Math.ceil(Z_95 * standardError * resultCardinality));
+    }
+
+    /**
+     * Returns the pool used for parallel counting. If no pool was set, a pool
+     * with <code>parallelism</code> threads is created.
+     * 
+     * @return
+     */
+    public ForkJoinPool getForkJoinPool() {
+        ForkJoinPool pool = forkJoinPool;
+        if (pool == null) {
+            synchronized (this) {
+                if (forkJoinPool == null) {
+                    forkJoinPool = new ForkJoinPool(Math.max(1, parallelism));
+                    ownsForkJoinPool = true;
+                }
+                pool = forkJoinPool;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Shuts down the pool if it was created by this counter, a new one is
+     * created on next use. Pools set from outside are left to their owner.
+     * Running tasks are finished.
+     */
+    private void shutdownOwnedForkJoinPool() {
+        if (ownsForkJoinPool && forkJoinPool != null) {
+            forkJoinPool.shutdown();
+            forkJoinPool = null;
+        }
+        ownsForkJoinPool = false;
     }
 
     public FacetClassRegistry getFacetClassRegistry() {
@@ -126,9 +411,219 @@ public class IndexFacetCounter implements IFacetCounter {
         _facetClassRegistry = facetClassRegistry;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads used to count the facet classes of a request.
+     * Values &lt;= 1 disable parallel counting. A pool created by this
+     * counter is shut down and created again with the new parallelism.
+     * 
+     * @param parallelism
+     */
+    public synchronized void setParallelism(int parallelism) {
+        if (parallelism != this.parallelism) {
+            shutdownOwnedForkJoinPool();
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Sets the minimum number of facet classes of a request that are counted
+     * in parallel. Requests with less facet classes are counted sequentially on
+     * the request thread.
+     * 
+     * @param parallelThreshold
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Sets the pool used for parallel counting. If not set, a pool with
+     * <code>parallelism</code> threads will be created on first use. The pool
+     * is not shut down by this counter.
+     * 
+     * @param forkJoinPool
+     */
+    public synchronized void setForkJoinPool(ForkJoinPool forkJoinPool) {
+        shutdownOwnedForkJoinPool();
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    public double getSparseDensityThreshold() {
+        return sparseDensityThreshold;
+    }
+
+    /**
+     * Sets the density (fraction of matching documents) of the result below
+     * which the facet classes are counted by testing every result document
+     * instead of intersecting the complete bitsets. Values &lt;= 0 disable the
+     * sparse counting strategy.
+     * 
+     * @param sparseDensityThreshold
+     */
+    public void setSparseDensityThreshold(double sparseDensityThreshold) {
+        this.sparseDensityThreshold = sparseDensityThreshold;
+    }
+
+    public double getSamplingRate() {
+        return samplingRate;
+    }
+
+    /**
+     * Sets the fraction of the result words that are sampled to estimate the
+     * hit counts of results with at least <code>samplingThreshold</code>
+     * documents. The 95% confidence bounds of the sampling error of the
+     * estimated counts, computed from the variance of the hit counts across
+     * the sampled words, are reported with the context. Results are counted exactly, if the sample
+     * contains more documents than the result has words, since the exact
+     * intersection is cheaper then. Values &lt;= 0 or &gt;= 1 disable
+     * sampling, which is the default.
+     * 
+     * @param samplingRate
+     */
+    public void setSamplingRate(double samplingRate) {
+        this.samplingRate = samplingRate;
+    }
+
+    public long getSamplingThreshold() {
+        return samplingThreshold;
+    }
+
+    /**
+     * Sets the minimum number of result documents to estimate the hit counts
+     * from a sample. Smaller results are counted exactly. Defaults to
+     * 1,000,000.
+     * 
+     * @param samplingThreshold
+     */
+    public void setSamplingThreshold(long samplingThreshold) {
+        this.samplingThreshold = samplingThreshold;
+    }
+
+    /**
+     * Clears the facet class registry and shuts down the pool created by this
+     * counter, so no counting threads outlive a reinitialization.
+     */
     @Override
     public void initialize() {
         _facetClassRegistry.clear();
+        synchronized (this) {
+            shutdownOwnedForkJoinPool();
+        }
+    }
+
+    /**
+     * Counts the hits of a range of facet classes. Ranges larger than the batch
+     * size are split in halves and counted in parallel. Every task writes only
+     * to its own range of the hit count array.
+     */
+    private static class FacetHitCountTask extends RecursiveAction {
+
+        private static final long serialVersionUID = -2618473926204613092L;
+
+        private final OpenBitSet[] bitsets;
+
+        private final int[][] docIds;
+
+        private final List<FacetClass> facetClasses;
+
+        private final long[] hitCounts;
+
+        private final long[][] sampleMoments;
+
+        private final int from;
+
+        private final int to;
+
+        private final int batchSize;
+
+        private final FacetCountContext context;
+
+        public FacetHitCountTask(OpenBitSet[] bitsets, int[][] docIds, List<FacetClass> facetClasses,
+                long[] hitCounts, long[][] sampleMoments, int from, int to, int batchSize, FacetCountContext context) {
+            this.bitsets = bitsets;
+            this.docIds = docIds;
+            this.facetClasses = facetClasses;
+            this.hitCounts = hitCounts;
+            this.sampleMoments = sampleMoments;
+            this.from = from;
+            this.to = to;
+            this.batchSize = batchSize;
+            this.context = context;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= batchSize) {
+                for (int i = from; i < to; i++) {
+                    hitCounts[i] = getFacetHitCount(bitsets, docIds, facetClasses.get(i),
+                            (sampleMoments == null) ? null : sampleMoments[i], context);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new FacetHitCountTask(bitsets, docIds, facetClasses, hitCounts, sampleMoments, from, mid,
+                        batchSize, context), new FacetHitCountTask(bitsets, docIds, facetClasses, hitCounts,
+                        sampleMoments, mid, to, batchSize, context));
+            }
+        }
+    }
+
+    /**
+     * The sizes of a sample of the result words.
+     */
+    private static class WordSample {
+
+        /**
+         * the number of words of the result bitsets
+         */
+        private final long numWords;
+
+        /**
+         * the number of sampled words, including words without result
+         * documents
+         */
+        private final long numSampledWords;
+
+        /**
+         * the number of sampled documents
+         */
+        private final long numDocs;
+
+        /**
+         * the sum of the squared numbers of sampled documents per word
+         */
+        private final long sumSquaredDocs;
+
+        public WordSample(OpenBitSet[] bitsets, int[][] docIds, int stride) {
+            long numWords = 0;
+            long numSampledWords = 0;
+            long numDocs = 0;
+            long sumSquaredDocs = 0;
+            for (int i = 0; i < bitsets.length; i++) {
+                if (bitsets[i] == null) {
+                    continue;
+                }
+                numWords += bitsets[i].getNumWords();
+                numSampledWords += (bitsets[i].getNumWords() + stride - 1) / stride;
+                numDocs += docIds[i].length;
+                long[] bits = bitsets[i].getBits();
+                for (int w = 0; w < bitsets[i].getNumWords(); w += stride) {
+                    long docs = Long.bitCount(bits[w]);
+                    sumSquaredDocs += docs * docs;
+                }
+            }
+            this.numWords = numWords;
+            this.numSampledWords = numSampledWords;
+            this.numDocs = numDocs;
+            this.sumSquaredDocs = sumSquaredDocs;
+        }
     }
 
 }
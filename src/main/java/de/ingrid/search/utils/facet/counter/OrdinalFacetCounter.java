@@ -0,0 +1,478 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet.counter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.WeakHashMap;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.OpenBitSet;
+
+import de.ingrid.search.utils.LuceneIndexReaderWrapper;
+import de.ingrid.search.utils.facet.FacetCountContext;
+import de.ingrid.search.utils.facet.FacetDefinition;
+import de.ingrid.search.utils.facet.FieldOrdinals;
+import de.ingrid.utils.IngridDocument;
+import de.ingrid.utils.query.IngridQuery;
+
+/**
+ * Extends the IndexFacetCounter to count facets of single valued index fields
+ * (like partner, provider, datatype or metaclass) in one pass over the result
+ * documents.
+ * <p/>
+ * Facet definitions that have no classes and no query fragment and whose
+ * field is configured in <code>ordinalFields</code> are counted with a
+ * document to ordinal column per index reader, built from the term dictionary
+ * of the field. No facet class bitsets are produced for these facets. The
+ * facet classes are the <code>maxValues</code> most frequent values of the
+ * field and are named like the classes produced by the FacetClassProducer
+ * (&lt;field&gt;:&lt;value&gt;).
+ * <p/>
+ * Fields that contain documents with more than one value cannot be counted
+ * with one ordinal per document, their facet definitions are counted by the
+ * IndexFacetCounter like all other facet definitions.
+ * 
+ */
+public class OrdinalFacetCounter extends IndexFacetCounter {
+
+    private static final int DEFAULT_MAX_VALUES = 300;
+
+    private static Logger LOG = Logger.getLogger(OrdinalFacetCounter.class);
+
+    private LuceneIndexReaderWrapper indexReaderWrapper = null;
+
+    private List<String> ordinalFields = new ArrayList<String>();
+
+    private int maxValues = DEFAULT_MAX_VALUES;
+
+    /**
+     * index reader -&gt; (field -&gt; ordinals), guarded by this
+     */
+    private Map<IndexReader, Map<String, FieldOrdinals>> readerOrdinals =
+            new WeakHashMap<IndexReader, Map<String, FieldOrdinals>>();
+
+    /**
+     * field -&gt; selected values of the current index readers, guarded by
+     * this. Selections of other index readers are removed, so they do not
+     * keep replaced index readers and their ordinals.
+     */
+    private Map<String, ValueSelection> valueSelections = new HashMap<String, ValueSelection>();
+
+    public OrdinalFacetCounter() {
+        super();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * de.ingrid.search.utils.facet.counter.IndexFacetCounter#count(de.ingrid
+     * .utils.IngridDocument, de.ingrid.utils.query.IngridQuery,
+     * de.ingrid.search.utils.facet.FacetCountContext, java.util.List)
+     */
+    @Override
+    public IngridDocument count(IngridDocument result, IngridQuery query, FacetCountContext context,
+            List<FacetDefinition> facetDefs) {
+        if (result == null || facetDefs == null) {
+            return super.count(result, query, context, facetDefs);
+        }
+        List<FacetDefinition> indexFacetDefs = new ArrayList<FacetDefinition>();
+        for (FacetDefinition def : facetDefs) {
+            if (context.isExpired()) {
+                break;
+            }
+            if (def.getClasses() == null && def.getQueryFragment() == null && ordinalFields.contains(def.getField())) {
+                try {
+                    if (!countOrdinals(result, context, def)) {
+                        indexFacetDefs.add(def);
+                    }
+                } catch (IOException e) {
+                    LOG.error("Error counting ordinals of facet '" + def.getName() + "', use facet classes instead.",
+                            e);
+                    indexFacetDefs.add(def);
+                }
+            } else {
+                indexFacetDefs.add(def);
+            }
+        }
+        return super.count(result, query, context, indexFacetDefs);
+    }
+
+    /**
+     * Counts the facets like
+     * {@link #count(IngridDocument, IngridQuery, FacetCountContext, List)},
+     * but adds the counts collected while searching (see
+     * {@link #createOrdinalCounts(FacetDefinition, IndexReader[])}) instead of
+     * counting these facets again.
+     *
+     * @param result
+     * @param query
+     * @param context
+     * @param facetDefs
+     * @param collectedCounts
+     *            the counts collected while searching
+     * @return
+     */
+    public IngridDocument count(IngridDocument result, IngridQuery query, FacetCountContext context,
+            List<FacetDefinition> facetDefs, OrdinalCounts[] collectedCounts) {
+        if (result == null || facetDefs == null) {
+            return count(result, query, context, facetDefs);
+        }
+        List<FacetDefinition> remainingDefs = new ArrayList<FacetDefinition>(facetDefs);
+        for (OrdinalCounts counts : collectedCounts) {
+            if (remainingDefs.remove(counts.getFacetDefinition())) {
+                counts.addTo(result);
+            }
+        }
+        return count(result, query, context, remainingDefs);
+    }
+
+    /**
+     * Counts a facet using ordinals.
+     * 
+     * @return false if the field of the facet is multi valued and the facet
+     *         must be counted using facet classes
+     */
+    private boolean countOrdinals(IngridDocument result, FacetCountContext context, FacetDefinition def)
+            throws IOException {
+        OpenBitSet[] bitsets = context.getBitSets();
+        long start = 0;
+        if (LOG.isDebugEnabled()) {
+            start = System.currentTimeMillis();
+        }
+        IndexReader[] indexReaders = context.getIndexReaders();
+        if (indexReaders == null) {
+            indexReaders = indexReaderWrapper.getIndexReader();
+        }
+        ValueSelection selection = getValueSelection(indexReaders, def.getField());
+        if (selection.multiValued) {
+            return false;
+        }
+        OrdinalCounts counts = new OrdinalCounts(def, selection);
+        if (bitsets.length != indexReaders.length) {
+            LOG.warn("Different bitset array sizes detected. Results may be inaccurate.");
+        }
+        int minArraySize = Math.min(bitsets.length, indexReaders.length);
+
+        // the document ids of sparse results are shared with the other facets
+        // and counters of the request
+        int[][] docIds = (context.getDensity() < getSparseDensityThreshold()) ? context.getDocIds() : null;
+        for (int i = 0; i < minArraySize; i++) {
+            if (docIds != null) {
+                for (int doc : docIds[i]) {
+                    counts.collect(i, doc);
+                }
+                continue;
+            }
+            OpenBitSet bitset = bitsets[i];
+            if (bitset == null) {
+                continue;
+            }
+            for (int doc = bitset.nextSetBit(0); doc >= 0; doc = bitset.nextSetBit(doc + 1)) {
+                counts.collect(i, doc);
+            }
+        }
+        counts.addTo(result);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Count " + counts.counts.length + " facet classes of facet '" + def.getName()
+                    + "' from ordinals in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+        return true;
+    }
+
+    /**
+     * Returns the counts of a facet definition, that can be updated document
+     * by document, e.g. while collecting the hits of a query.
+     * 
+     * @param def
+     * @param indexReaders
+     *            the index readers the collected documents belong to
+     * @return the counts or null if the facet is not counted using ordinals,
+     *         e.g. because its field is multi valued
+     */
+    public OrdinalCounts createOrdinalCounts(FacetDefinition def, IndexReader[] indexReaders) {
+        if (def.getClasses() != null || def.getQueryFragment() != null || !ordinalFields.contains(def.getField())) {
+            return null;
+        }
+        try {
+            ValueSelection selection = getValueSelection(indexReaders, def.getField());
+            if (!selection.multiValued) {
+                return new OrdinalCounts(def, selection);
+            }
+        } catch (IOException e) {
+            LOG.error("Error reading ordinals of facet '" + def.getName() + "', use facet classes instead.", e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the most frequent values of a field over all index readers and
+     * the mapping of the ordinals of each index reader to these values.
+     * Selections of other index readers are removed.
+     */
+    private synchronized ValueSelection getValueSelection(IndexReader[] indexReaders, String field)
+            throws IOException {
+        ValueSelection selection = valueSelections.get(field);
+        if (selection != null && Arrays.equals(selection.indexReaders, indexReaders)) {
+            return selection;
+        }
+        for (Iterator<ValueSelection> it = valueSelections.values().iterator(); it.hasNext();) {
+            if (!Arrays.equals(it.next().indexReaders, indexReaders)) {
+                it.remove();
+            }
+        }
+
+        FieldOrdinals[] ordinals = new FieldOrdinals[indexReaders.length];
+        for (int i = 0; i < indexReaders.length; i++) {
+            ordinals[i] = getOrdinals(indexReaders[i], field);
+            if (ordinals[i].isMultiValued()) {
+                // counts would contain only one value per document, the
+                // ordinals are not needed
+                for (IndexReader indexReader : indexReaders) {
+                    Map<String, FieldOrdinals> fieldOrdinals = readerOrdinals.get(indexReader);
+                    if (fieldOrdinals != null) {
+                        fieldOrdinals.remove(field);
+                    }
+                }
+                LOG.warn("Field '" + field + "' contains documents with more than one value, its facets are "
+                        + "counted using facet classes instead of ordinals.");
+                selection = new ValueSelection(indexReaders, null, null, null);
+                valueSelections.put(field, selection);
+                return selection;
+            }
+        }
+
+        Map<String, Long> docFreqs = new HashMap<String, Long>();
+        for (int i = 0; i < indexReaders.length; i++) {
+            for (int ord = 1; ord < ordinals[i].getNumOrdinals(); ord++) {
+                Long docFreq = docFreqs.get(ordinals[i].getValue(ord));
+                docFreqs.put(ordinals[i].getValue(ord), ((docFreq == null) ? 0 : docFreq)
+                        + ordinals[i].getDocFreq(ord));
+            }
+        }
+
+        // select the most frequent values
+        PriorityQueue<Map.Entry<String, Long>> queue = new PriorityQueue<Map.Entry<String, Long>>(maxValues + 1,
+                new Comparator<Map.Entry<String, Long>>() {
+                    @Override
+                    public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2) {
+                        return e1.getValue().compareTo(e2.getValue());
+                    }
+                });
+        for (Map.Entry<String, Long> entry : docFreqs.entrySet()) {
+            queue.add(entry);
+            if (queue.size() > maxValues) {
+                queue.poll();
+            }
+        }
+        Map<String, Integer> valueSlots = new HashMap<String, Integer>();
+        String[] values = new String[queue.size()];
+        for (int slot = 0; !queue.isEmpty(); slot++) {
+            values[slot] = queue.poll().getKey();
+            valueSlots.put(values[slot], slot);
+        }
+
+        int[][] slots = new int[indexReaders.length][];
+        for (int i = 0; i < indexReaders.length; i++) {
+            slots[i] = new int[ordinals[i].getNumOrdinals()];
+            slots[i][0] = -1;
+            for (int ord = 1; ord < slots[i].length; ord++) {
+                Integer slot = valueSlots.get(ordinals[i].getValue(ord));
+                slots[i][ord] = (slot == null) ? -1 : slot;
+            }
+        }
+
+        selection = new ValueSelection(indexReaders, ordinals, values, slots);
+        valueSelections.put(field, selection);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Select " + values.length + " of " + docFreqs.size() + " values of field '" + field
+                    + "' for counting ordinals.");
+        }
+        return selection;
+    }
+
+    private FieldOrdinals getOrdinals(IndexReader indexReader, String field) throws IOException {
+        Map<String, FieldOrdinals> fieldOrdinals = readerOrdinals.get(indexReader);
+        if (fieldOrdinals == null) {
+            fieldOrdinals = new HashMap<String, FieldOrdinals>();
+            readerOrdinals.put(indexReader, fieldOrdinals);
+        }
+        FieldOrdinals ordinals = fieldOrdinals.get(field);
+        if (ordinals == null) {
+            ordinals = FieldOrdinals.create(indexReader, field);
+            fieldOrdinals.put(field, ordinals);
+        }
+        return ordinals;
+    }
+
+    public LuceneIndexReaderWrapper getIndexReaderWrapper() {
+        return indexReaderWrapper;
+    }
+
+    public void setIndexReaderWrapper(LuceneIndexReaderWrapper indexReaderWrapper) {
+        this.indexReaderWrapper = indexReaderWrapper;
+    }
+
+    public List<String> getOrdinalFields() {
+        return ordinalFields;
+    }
+
+    /**
+     * Sets the single valued index fields that are counted using ordinals.
+     * Fields that turn out to be multi valued are counted using facet
+     * classes.
+     * 
+     * @param ordinalFields
+     */
+    public void setOrdinalFields(List<String> ordinalFields) {
+        this.ordinalFields = ordinalFields;
+    }
+
+    public int getMaxValues() {
+        return maxValues;
+    }
+
+    /**
+     * Sets the maximum number of values (facet classes) of a field.
+     * 
+     * @param maxValues
+     */
+    public void setMaxValues(int maxValues) {
+        this.maxValues = maxValues;
+    }
+
+    @Override
+    public void initialize() {
+        super.initialize();
+        synchronized (this) {
+            valueSelections.clear();
+            readerOrdinals.clear();
+        }
+    }
+
+    /**
+     * The hit counts of the selected values of a facet.
+     */
+    public static class OrdinalCounts {
+
+        private final FacetDefinition facetDefinition;
+
+        private final ValueSelection selection;
+
+        /**
+         * slot -&gt; count
+         */
+        private final long[] counts;
+
+        private OrdinalCounts(FacetDefinition facetDefinition, ValueSelection selection) {
+            this.facetDefinition = facetDefinition;
+            this.selection = selection;
+            this.counts = new long[selection.values.length];
+        }
+
+        /**
+         * Counts a result document.
+         * 
+         * @param readerIdx
+         *            the index of the index reader of the document
+         * @param doc
+         *            the document id within the index reader
+         */
+        public void collect(int readerIdx, int doc) {
+            if (readerIdx >= selection.ordinals.length) {
+                return;
+            }
+            FieldOrdinals ordinals = selection.ordinals[readerIdx];
+            if (doc < ordinals.getMaxDoc()) {
+                int slot = selection.slots[readerIdx][ordinals.getOrdinal(doc)];
+                if (slot >= 0) {
+                    counts[slot]++;
+                }
+            }
+        }
+
+        /**
+         * Adds the counts of the facet classes to the result. Facet classes
+         * that have already been set by another facet counter are ignored.
+         * 
+         * @param result
+         */
+        public void addTo(IngridDocument result) {
+            for (int i = 0; i < counts.length; i++) {
+                String facetClassName = facetDefinition.getField() + ":" + selection.values[i];
+                if (!result.containsKey(facetClassName)) {
+                    result.put(facetClassName, counts[i]);
+                }
+            }
+        }
+
+        public FacetDefinition getFacetDefinition() {
+            return facetDefinition;
+        }
+    }
+
+    /**
+     * The selected values of a field for an array of index readers.
+     */
+    private static class ValueSelection {
+
+        private final IndexReader[] indexReaders;
+
+        private final FieldOrdinals[] ordinals;
+
+        /**
+         * slot -&gt; value
+         */
+        private final String[] values;
+
+        /**
+         * index reader -&gt; (ordinal -&gt; slot), -1 if the value was not
+         * selected
+         */
+        private final int[][] slots;
+
+        /**
+         * true if the field is multi valued in one of the index readers, no
+         * values are selected then
+         */
+        private final boolean multiValued;
+
+        public ValueSelection(IndexReader[] indexReaders, FieldOrdinals[] ordinals, String[] values, int[][] slots) {
+            this.indexReaders = indexReaders;
+            this.ordinals = ordinals;
+            this.values = values;
+            this.slots = slots;
+            this.multiValued = (values == null);
+        }
+    }
+
+}
@@ -24,23 +24,38 @@ package de.ingrid.search.utils.facet;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
 
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.store.RAMDirectory;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
 
 import de.ingrid.search.utils.IQueryParser;
 import de.ingrid.search.utils.LuceneIndexReaderWrapper;
@@ -126,6 +141,214 @@ public class FacetClassProducerTest {
 
     }
 
+    @Test
+    final void testProduceClassesParallel() {
+        FacetDefinition fcd = new FacetDefinition("partner", "partner");
+        List<FacetClass> expected = fcp.produceClasses(fcd);
+
+        fcp.setProductionParallelism(4);
+        final List<FacetClass> produced = Collections.synchronizedList(new ArrayList<FacetClass>());
+        List<FacetClass> fcs = fcp.produceClasses(fcd, new IFacetClassListener() {
+            @Override
+            public void facetClassProduced(FacetClass facetClass) {
+                produced.add(facetClass);
+            }
+        });
+        assertEquals(expected.size(), fcs.size());
+        assertEquals(expected.size(), produced.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getFacetClassName(), fcs.get(i).getFacetClassName());
+            assertEquals(expected.get(i).getBitSets()[0], fcs.get(i).getBitSets()[0]);
+            assertTrue(produced.contains(fcs.get(i)));
+        }
+        fcp.getProductionExecutor().shutdown();
+    }
+
+    @Test
+    final void testProduceClassesFromPostings() {
+        FacetDefinition fcd = new FacetDefinition("partner", "partner");
+        List<FacetClass> expected = fcp.produceClasses(fcd);
+        fcp.setDirectTermProduction(true);
+        assertEqualClasses(expected, fcp.produceClasses(fcd));
+    }
+
+    /**
+     * Compares the production from postings with the production by queries on
+     * an index with many documents and values.
+     */
+    @Test
+    final void testProduceClassesFromPostingsBenchmark() throws IOException {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+        Random random = new Random(1);
+        for (int i = 0; i < 200000; i++) {
+            Document doc = new Document();
+            // skewed distribution of 2000 values
+            int value = (int) (2000 * Math.pow(random.nextDouble(), 3));
+            doc.add(new Field("provider", "p" + value, Field.Store.NO, Field.Index.NOT_ANALYZED));
+            writer.addDocument(doc);
+        }
+        writer.close();
+        IndexReader reader = IndexReader.open(dir, true);
+        fcp.setIndexReaderWrapper(new LuceneIndexReaderWrapper(new IndexReader[] { reader }));
+
+        FacetDefinition fcd = new FacetDefinition("provider", "provider");
+        // warm up both paths
+        fcp.produceClasses(fcd);
+        fcp.setDirectTermProduction(true);
+        fcp.produceClasses(fcd);
+        fcp.setDirectTermProduction(false);
+
+        long start = System.currentTimeMillis();
+        List<FacetClass> expected = fcp.produceClasses(fcd);
+        long queryTime = System.currentTimeMillis() - start;
+
+        fcp.setDirectTermProduction(true);
+        start = System.currentTimeMillis();
+        List<FacetClass> fcs = fcp.produceClasses(fcd);
+        long postingsTime = System.currentTimeMillis() - start;
+
+        System.out.println("Produce " + fcs.size() + " facet classes of 200000 documents by queries in " + queryTime
+                + " ms, from postings in " + postingsTime + " ms.");
+        assertEquals(300, fcs.size());
+        assertEqualClasses(expected, fcs);
+        reader.close();
+    }
+
+    @Test
+    final void testMaxClassesPerFacet() {
+        Map<String, Integer> maxClasses = new HashMap<String, Integer>();
+        maxClasses.put("partner_top", 1);
+        fcp.setMaxClassesPerFacet(maxClasses);
+
+        List<FacetClass> fcs = fcp.produceClasses(new FacetDefinition("partner_top", "partner"));
+        assertEquals(1, fcs.size());
+        assertEquals("partner:bund", fcs.get(0).getFacetClassName());
+        assertEquals(2, fcp.getDistinctValueCount("partner_top"));
+
+        fcs = fcp.produceClasses(new FacetDefinition("partner", "partner"));
+        assertEquals(2, fcs.size());
+        // ascending by number of documents
+        assertEquals("partner:ni", fcs.get(0).getFacetClassName());
+        assertEquals("partner:bund", fcs.get(1).getFacetClassName());
+    }
+
+    @Test
+    final void testInvalidMaxClasses() {
+        assertThrows(IllegalArgumentException.class, new Executable() {
+            @Override
+            public void execute() {
+                fcp.setMaxClasses(0);
+            }
+        });
+        final Map<String, Integer> maxClasses = new HashMap<String, Integer>();
+        maxClasses.put("partner", -1);
+        assertThrows(IllegalArgumentException.class, new Executable() {
+            @Override
+            public void execute() {
+                fcp.setMaxClassesPerFacet(maxClasses);
+            }
+        });
+        assertEquals(300, fcp.getMaxClasses());
+        assertNull(fcp.getMaxClassesPerFacet());
+
+        // values changed after setting the map produce no facet classes
+        maxClasses.put("partner", 1);
+        fcp.setMaxClassesPerFacet(maxClasses);
+        maxClasses.put("partner", 0);
+        assertTrue(fcp.produceClasses(new FacetDefinition("partner", "partner")).isEmpty());
+    }
+
+    @Test
+    final void testProduceClassesOfFragmentFromPostings() {
+        FacetDefinition fcd = new FacetDefinition("partner_bund", "provider");
+        fcd.setQueryFragment("partner:bund");
+        for (FacetClass fc : fcp.produceClasses(fcd)) {
+            FacetClass expected = fcp.produceClass(new FacetClassDefinition(fc.getFacetClassName(), "partner:bund "
+                    + fc.getFacetClassName()));
+            assertEquals(expected.getBitSets()[0], fc.getBitSets()[0]);
+        }
+    }
+
+    @Test
+    final void testProduceClassesFromSegmentPostings() {
+        FacetDefinition fcd = new FacetDefinition("partner", "partner");
+        FacetDefinition fragmentFcd = new FacetDefinition("partner_bund", "provider");
+        fragmentFcd.setQueryFragment("partner:bund");
+        List<FacetClass> expected = fcp.produceClasses(fcd);
+        List<FacetClass> expectedFragment = fcp.produceClasses(fragmentFcd);
+
+        SegmentFacetBitSetCache cache = new SegmentFacetBitSetCache();
+        fcp.setSegmentBitSetCache(cache);
+        fcp.setDirectTermProduction(true);
+        assertEqualClasses(expected, fcp.produceClasses(fcd));
+        assertEqualClasses(expectedFragment, fcp.produceClasses(fragmentFcd));
+        long misses = cache.getMisses();
+        assertTrue(cache.getSizeInBytes() > 0);
+
+        // produced again from the cached segment bitsets
+        assertEqualClasses(expected, fcp.produceClasses(fcd));
+        assertEqualClasses(expectedFragment, fcp.produceClasses(fragmentFcd));
+        assertEquals(misses, cache.getMisses());
+    }
+
+    @Test
+    final void testCancelProduction() {
+        final AtomicInteger produced = new AtomicInteger();
+        List<FacetClass> fcs = fcp.produceClasses(new FacetDefinition("partner", "partner"),
+                new IFacetClassListener() {
+                    @Override
+                    public void facetClassProduced(FacetClass facetClass) {
+                        produced.incrementAndGet();
+                        throw new CancellationException();
+                    }
+                });
+        assertEquals(1, produced.get());
+        assertTrue(fcs.isEmpty());
+    }
+
+    @Test
+    final void testQueryCache() {
+        FacetClass fc = fcp.produceClass(new FacetClassDefinition("partner:ni", "wasser partner:ni"));
+        assertEquals(0, fcp.getQueryCacheHits());
+        assertEquals(1, fcp.getQueryCacheMisses());
+
+        FacetClass cached = fcp.produceClass(new FacetClassDefinition("partner:ni", " wasser  partner:ni"));
+        assertEquals(1, fcp.getQueryCacheHits());
+        assertEquals(1, fcp.getQueryCacheMisses());
+        assertEquals(fc.getBitSets()[0], cached.getBitSets()[0]);
+
+        fcp.setQueryCacheSize(0);
+        fcp.produceClass(new FacetClassDefinition("partner:ni", "wasser partner:ni"));
+        assertEquals(1, fcp.getQueryCacheHits());
+    }
+
+    @Test
+    final void testMergeTermsOfIndexReaders() throws IOException {
+        IndexReader reader = fcp.getIndexReaderWrapper().getIndexReader()[0];
+        IndexReader secondReader = IndexReader.open(indexDir);
+        fcp.setIndexReaderWrapper(new LuceneIndexReaderWrapper(new IndexReader[] { reader, secondReader }));
+
+        FacetDefinition fcd = new FacetDefinition("partner_bund", "provider");
+        fcd.setQueryFragment("partner:bund");
+        List<FacetClass> fcs = fcp.produceClasses(fcd);
+        // every value once, not once per index reader
+        assertEquals(2, fcs.size());
+        assertEquals("provider:bund_1", fcs.get(0).getFacetClassName());
+        assertEquals("provider:bund_2", fcs.get(1).getFacetClassName());
+        assertEquals(fcs.get(1).getBitSets()[0], fcs.get(1).getBitSets()[1]);
+        assertEquals(2, fcp.getDistinctValueCount("partner_bund"));
+        secondReader.close();
+    }
+
+    private void assertEqualClasses(List<FacetClass> expected, List<FacetClass> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getFacetClassName(), actual.get(i).getFacetClassName());
+            assertEquals(expected.get(i).getBitSets()[0], actual.get(i).getBitSets()[0]);
+        }
+    }
+
     @Test
     final void testProduceClassFromQuery() throws IOException {
         BooleanQuery bq = new BooleanQuery();
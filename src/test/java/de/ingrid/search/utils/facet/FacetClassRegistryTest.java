@@ -0,0 +1,290 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import de.ingrid.search.utils.IQueryParser;
+import de.ingrid.search.utils.LuceneIndexReaderWrapper;
+
+public class FacetClassRegistryTest {
+
+    RAMDirectory dir;
+
+    IndexWriter writer;
+
+    IndexReader reader;
+
+    LuceneIndexReaderWrapper wrapper;
+
+    FacetClassRegistry registry;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        dir = new RAMDirectory();
+        writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+        addDocuments("a", 10);
+        addDocuments("b", 5);
+        reader = IndexReader.open(dir, true);
+
+        DummyQueryParsers qp = new DummyQueryParsers();
+        List<IQueryParser> parsers = new ArrayList<IQueryParser>();
+        parsers.add(new DummyTermQueryParser("content", null));
+        qp.setQueryParsers(parsers);
+
+        wrapper = new LuceneIndexReaderWrapper(new IndexReader[] { reader });
+        FacetClassProducer fcp = new FacetClassProducer();
+        fcp.setIndexReaderWrapper(wrapper);
+        fcp.setQueryParsers(qp);
+
+        registry = new FacetClassRegistry();
+        registry.setFacetClassStore(new OffHeapFacetClassStore());
+        registry.setFacetClassProducer(fcp);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        writer.close();
+        wrapper.getIndexReader()[0].close();
+    }
+
+    @Test
+    void testRebuild() throws Exception {
+        FacetDefinition facetDef = new FacetDefinition("partner", "partner");
+        assertCounts(facetDef, 10, 5);
+
+        addDocuments("b", 7);
+        IndexReader newReader = reader.reopen();
+
+        // block the rebuild until the current generation was checked
+        final CountDownLatch latch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws InterruptedException {
+                latch.await();
+                return null;
+            }
+        });
+        registry.setRebuildExecutor(executor);
+        Future<Boolean> rebuild = registry.rebuild(new IndexReader[] { newReader });
+
+        assertCounts(facetDef, 10, 5);
+        assertSame(reader, wrapper.getIndexReader()[0]);
+
+        latch.countDown();
+        assertTrue(rebuild.get());
+        assertSame(newReader, wrapper.getIndexReader()[0]);
+        assertCounts(facetDef, 10, 12);
+        reader.close();
+        executor.shutdown();
+    }
+
+    @Test
+    void testRebuildKeepsReplacedGeneration() throws Exception {
+        FacetDefinition facetDef = new FacetDefinition("partner", "partner");
+        assertCounts(facetDef, 10, 5);
+
+        addDocuments("b", 7);
+        IndexReader newReader = reader.reopen();
+        assertTrue(registry.rebuild(new IndexReader[] { newReader }).get());
+
+        // requests still searching the replaced index reader get the facet
+        // classes of their index reader
+        assertCounts(facetDef, new IndexReader[] { reader }, 10, 5);
+        assertCounts(facetDef, new IndexReader[] { newReader }, 10, 12);
+        assertCounts(facetDef, null, 10, 12);
+
+        // after the retire delay the current facet classes are used
+        registry.setRetireDelay(0);
+        assertCounts(facetDef, new IndexReader[] { reader }, 10, 12);
+        reader.close();
+    }
+
+    @Test
+    void testRebuildMemoryBudget() throws Exception {
+        FacetDefinition facetDef = new FacetDefinition("partner", "partner");
+        assertCounts(facetDef, 10, 5);
+        assertTrue(registry.getSizeInBytes() > 0);
+
+        // the facet classes of the new index reader need more memory
+        addDocuments("a", 300);
+        IndexReader newReader = reader.reopen();
+        long memoryBudget = 2 * registry.getSizeInBytes() + 1;
+        registry.setMemoryBudget(memoryBudget);
+
+        assertFalse(registry.rebuild(new IndexReader[] { newReader }).get());
+        assertSame(newReader, wrapper.getIndexReader()[0]);
+        assertTrue(registry.getSizeInBytes() <= memoryBudget / 2);
+        assertTrue(registry.getStoredSizeInBytes() <= memoryBudget);
+        // facet classes exceeding the budget are produced on request
+        assertCounts(facetDef, 310, 5);
+        assertCounts(facetDef, new IndexReader[] { reader }, 10, 5);
+        reader.close();
+    }
+
+    @Test
+    void testMemoryBudgetAfterPartialRebuild() throws Exception {
+        FacetDefinition partner = new FacetDefinition("partner", "partner");
+        FacetDefinition provider = new FacetDefinition("provider", "provider");
+        assertCounts(partner, 10, 5);
+        long memoryBudget = 3 * registry.getSizeInBytes();
+        registry.setMemoryBudget(memoryBudget);
+
+        addDocuments("a", 300);
+        addDocuments("provider", "p", 200);
+        IndexReader newReader = reader.reopen();
+        assertFalse(registry.rebuild(new IndexReader[] { newReader }).get());
+        assertTrue(registry.getStoredSizeInBytes() <= memoryBudget);
+
+        // requests of both index readers fill the registry within the budget
+        for (int i = 0; i < 3; i++) {
+            assertCounts(partner, new IndexReader[] { newReader }, 310, 5);
+            assertTrue(registry.getStoredSizeInBytes() <= memoryBudget);
+            assertCounts(partner, new IndexReader[] { reader }, 10, 5);
+            assertTrue(registry.getStoredSizeInBytes() <= memoryBudget);
+            List<FacetClass> facetClasses = registry.getFacetClasses(provider, new IndexReader[] { newReader });
+            assertEquals(1, facetClasses.size());
+            assertEquals(200, facetClasses.get(0).getFacetBitSets()[0].cardinality());
+            assertTrue(registry.getStoredSizeInBytes() <= memoryBudget);
+        }
+        assertTrue(registry.getStoredSizeInBytes() > 0);
+        reader.close();
+    }
+
+    @Test
+    void testConcurrentProduction() throws Exception {
+        final AtomicInteger produced = new AtomicInteger();
+        FacetClassProducer fcp = new FacetClassProducer() {
+            @Override
+            public List<FacetClass> produceClasses(FacetDefinition facetDef, IFacetClassListener listener) {
+                produced.incrementAndGet();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.produceClasses(facetDef, listener);
+            }
+        };
+        fcp.setIndexReaderWrapper(wrapper);
+        fcp.setQueryParsers(registry.getFacetClassProducer().get_queryParsers());
+        registry.setFacetClassProducer(fcp);
+
+        final FacetDefinition facetDef = new FacetDefinition("partner", "partner");
+        ExecutorService executor = Executors.newFixedThreadPool(20);
+        List<Future<List<FacetClass>>> results = new ArrayList<Future<List<FacetClass>>>();
+        for (int i = 0; i < 20; i++) {
+            results.add(executor.submit(new Callable<List<FacetClass>>() {
+                @Override
+                public List<FacetClass> call() {
+                    return registry.getFacetClasses(facetDef);
+                }
+            }));
+        }
+        for (Future<List<FacetClass>> result : results) {
+            assertEquals(2, result.get().size());
+        }
+        executor.shutdown();
+        assertEquals(1, produced.get());
+    }
+
+    @Test
+    void testProductionDeadline() throws Exception {
+        final AtomicInteger produced = new AtomicInteger();
+        FacetClassProducer fcp = new FacetClassProducer() {
+            @Override
+            public List<FacetClass> produceClasses(FacetDefinition facetDef, IFacetClassListener listener) {
+                produced.incrementAndGet();
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.produceClasses(facetDef, listener);
+            }
+        };
+        fcp.setIndexReaderWrapper(wrapper);
+        fcp.setQueryParsers(registry.getFacetClassProducer().get_queryParsers());
+        registry.setFacetClassProducer(fcp);
+
+        // the request stops waiting when the deadline expires
+        FacetDefinition facetDef = new FacetDefinition("partner", "partner");
+        long start = System.currentTimeMillis();
+        assertEquals(0, registry.getFacetClasses(facetDef, null, start + 50).size());
+        assertTrue(System.currentTimeMillis() - start < 400);
+
+        // the production continues and is shared with later requests
+        assertCounts(facetDef, 10, 5);
+        assertEquals(1, produced.get());
+    }
+
+    private void assertCounts(FacetDefinition facetDef, int a, int b) {
+        assertCounts(facetDef, null, a, b);
+    }
+
+    private void assertCounts(FacetDefinition facetDef, IndexReader[] indexReaders, int a, int b) {
+        List<FacetClass> facetClasses = registry.getFacetClasses(facetDef, indexReaders);
+        assertEquals(2, facetClasses.size());
+        for (FacetClass fc : facetClasses) {
+            long expected = fc.getFacetClassName().equals("partner:a") ? a : b;
+            assertEquals(expected, fc.getFacetBitSets()[0].cardinality());
+        }
+    }
+
+    private void addDocuments(String value, int numDocs) throws IOException {
+        addDocuments("partner", value, numDocs);
+    }
+
+    private void addDocuments(String field, String value, int numDocs) throws IOException {
+        for (int i = 0; i < numDocs; i++) {
+            Document doc = new Document();
+            doc.add(new Field(field, value, Field.Store.NO, Field.Index.NOT_ANALYZED));
+            writer.addDocument(doc);
+        }
+        writer.commit();
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.OpenBitSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import de.ingrid.search.utils.IQueryParser;
+import de.ingrid.search.utils.LuceneIndexReaderWrapper;
+import de.ingrid.search.utils.facet.bitset.CompressedFacetBitSet;
+import de.ingrid.search.utils.facet.bitset.IFacetBitSet;
+import de.ingrid.search.utils.facet.bitset.OffHeapFacetBitSet;
+
+public class FacetClassSnapshotTest {
+
+    @TempDir
+    File snapshotDir;
+
+    IndexReader reader;
+
+    int produced;
+
+    ExecutorService executor;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        reader = IndexReader.open(DummyIndex.getTestIndex());
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        executor.shutdown();
+        reader.close();
+    }
+
+    @Test
+    void testLoadSnapshot() throws Exception {
+        FacetDefinition facetDef = new FacetDefinition("partner", "partner");
+        FacetClassDefinition classDef = new FacetClassDefinition("wasser_ni", "wasser partner:ni");
+
+        FacetClassRegistry registry = createRegistry();
+        List<FacetClass> facetClasses = registry.getFacetClasses(facetDef);
+        FacetClass facetClass = registry.getFacetClasses(createFacetDefinition(classDef)).get(0);
+        assertEquals(2, produced);
+        awaitSnapshot();
+
+        // simulate a restart
+        registry = createRegistry();
+        List<FacetClass> loaded = registry.getFacetClasses(facetDef);
+        FacetClass loadedClass = registry.getFacetClasses(createFacetDefinition(classDef)).get(0);
+        assertEquals(0, produced);
+        assertEqualClasses(facetClasses, loaded);
+        assertEquals(facetClass.getBitSets()[0], loadedClass.getBitSets()[0]);
+        assertTrue(loadedClass.getFacetBitSets()[0] instanceof OffHeapFacetBitSet);
+    }
+
+    @Test
+    void testCorruptSnapshot() throws Exception {
+        FacetDefinition facetDef = new FacetDefinition("partner", "partner");
+        List<FacetClass> facetClasses = createRegistry().getFacetClasses(facetDef);
+        awaitSnapshot();
+
+        File[] snapshots = snapshotDir.listFiles();
+        assertEquals(1, snapshots.length);
+        for (File file : snapshots[0].listFiles()) {
+            if (file.getName().startsWith("c_")) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                raf.seek(raf.length() / 2);
+                int b = raf.read();
+                raf.seek(raf.length() / 2);
+                raf.write(b ^ 0xFF);
+                raf.close();
+                break;
+            }
+        }
+
+        FacetClassRegistry registry = createRegistry();
+        assertEqualClasses(facetClasses, registry.getFacetClasses(facetDef));
+        assertEquals(1, produced);
+        awaitSnapshot();
+
+        // the corrupt file was replaced
+        registry = createRegistry();
+        assertEqualClasses(facetClasses, registry.getFacetClasses(facetDef));
+        assertEquals(0, produced);
+    }
+
+    @Test
+    void testCompressedSnapshot() throws IOException {
+        IndexReader[] readers = new IndexReader[] { reader };
+        OpenBitSet bitSet = new OpenBitSet(200000);
+        bitSet.set(70000, 70100);
+        bitSet.fastSet(3);
+        bitSet.fastSet(150000);
+        FacetClass facetClass = new FacetClass("partner:ni", new IFacetBitSet[] { new CompressedFacetBitSet(bitSet) });
+
+        FacetClassSnapshot snapshot = new FacetClassSnapshot(snapshotDir);
+        snapshot.storeClass(readers, facetClass);
+        // storing again replaces the existing file
+        snapshot.storeClass(readers, facetClass);
+        FacetClass loaded = snapshot.loadClass(readers, "partner:ni");
+        assertTrue(loaded.getFacetBitSets()[0] instanceof CompressedFacetBitSet);
+        assertEquals(bitSet, loaded.getBitSets()[0]);
+        assertEquals(1, snapshotDir.listFiles()[0].listFiles().length);
+    }
+
+    @Test
+    void testPrune() throws IOException {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+        writer.addDocument(new Document());
+        writer.close();
+        IndexReader otherReader = IndexReader.open(dir, true);
+        IndexReader[] readers = new IndexReader[] { reader };
+        IndexReader[] otherReaders = new IndexReader[] { otherReader };
+        OpenBitSet bitSet = new OpenBitSet(1);
+        bitSet.fastSet(0);
+        FacetClass facetClass = new FacetClass("partner:ni", new OpenBitSet[] { bitSet });
+
+        // snapshots of different index readers do not remove each other
+        FacetClassSnapshot snapshot = new FacetClassSnapshot(snapshotDir);
+        snapshot.storeClass(readers, facetClass);
+        snapshot.storeClass(otherReaders, facetClass);
+        assertEquals(2, snapshotDir.listFiles().length);
+        assertNotNull(snapshot.loadClass(readers, "partner:ni"));
+
+        List<IndexReader[]> keep = new ArrayList<IndexReader[]>();
+        keep.add(otherReaders);
+        snapshot.prune(keep);
+        assertEquals(1, snapshotDir.listFiles().length);
+        assertNull(snapshot.loadClass(readers, "partner:ni"));
+        assertEquals(bitSet, snapshot.loadClass(otherReaders, "partner:ni").getBitSets()[0]);
+        otherReader.close();
+    }
+
+    /**
+     * Waits until the snapshot writes submitted so far are done.
+     */
+    private void awaitSnapshot() throws Exception {
+        executor.submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return null;
+            }
+        }).get();
+    }
+
+    private FacetDefinition createFacetDefinition(FacetClassDefinition classDef) {
+        FacetDefinition facetDef = new FacetDefinition("partner_ni", null);
+        List<FacetClassDefinition> classes = new ArrayList<FacetClassDefinition>();
+        classes.add(classDef);
+        facetDef.setClasses(classes);
+        return facetDef;
+    }
+
+    private void assertEqualClasses(List<FacetClass> expected, List<FacetClass> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getFacetClassName(), actual.get(i).getFacetClassName());
+            assertEquals(expected.get(i).getBitSets()[0], actual.get(i).getBitSets()[0]);
+        }
+    }
+
+    private FacetClassRegistry createRegistry() {
+        produced = 0;
+        DummyQueryParsers qp = new DummyQueryParsers();
+        List<IQueryParser> parsers = new ArrayList<IQueryParser>();
+        parsers.add(new DummyTermQueryParser("content", null));
+        qp.setQueryParsers(parsers);
+
+        FacetClassProducer fcp = new FacetClassProducer() {
+            @Override
+            public List<FacetClass> produceClasses(FacetDefinition facetDef, IFacetClassListener listener) {
+                produced++;
+                return super.produceClasses(facetDef, listener);
+            }
+
+            @Override
+            public FacetClass produceClass(FacetClassDefinition facetClassDef) {
+                produced++;
+                return super.produceClass(facetClassDef);
+            }
+        };
+        fcp.setIndexReaderWrapper(new LuceneIndexReaderWrapper(new IndexReader[] { reader }));
+        fcp.setQueryParsers(qp);
+
+        FacetClassRegistry registry = new FacetClassRegistry();
+        registry.setFacetClassProducer(fcp);
+        registry.setFacetClassStore(new OffHeapFacetClassStore());
+        registry.setSnapshot(new FacetClassSnapshot(snapshotDir));
+        registry.setRebuildExecutor(executor);
+        return registry;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import de.ingrid.search.utils.IQueryParser;
+import de.ingrid.search.utils.LuceneIndexReaderWrapper;
+import de.ingrid.search.utils.facet.counter.ConfigurableFacetCounter;
+import de.ingrid.search.utils.facet.counter.IFacetCounter;
+import de.ingrid.search.utils.facet.counter.OrdinalFacetCounter;
+import de.ingrid.utils.IngridDocument;
+import de.ingrid.utils.IngridHits;
+import de.ingrid.utils.query.IngridQuery;
+import de.ingrid.utils.queryparser.QueryStringParser;
+
+public class FacetCollectorTest {
+
+    private IndexReader[] indexReaders;
+
+    private DummyQueryParsers qps;
+
+    private FacetManager fm;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        indexReaders = new IndexReader[] { IndexReader.open(DummyIndex.getTestIndex()),
+                IndexReader.open(DummyIndex.getTestIndex()) };
+        LuceneIndexReaderWrapper indexReaderWrapper = new LuceneIndexReaderWrapper(indexReaders);
+
+        qps = new DummyQueryParsers();
+        List<IQueryParser> parsers = new ArrayList<IQueryParser>();
+        parsers.add(new DummyTermQueryParser("content", null));
+        qps.setQueryParsers(parsers);
+
+        FacetClassProducer fp = new FacetClassProducer();
+        fp.setIndexReaderWrapper(indexReaderWrapper);
+        fp.setQueryParsers(qps);
+        FacetClassRegistry fr = new FacetClassRegistry();
+        fr.setFacetClassProducer(fp);
+
+        OrdinalFacetCounter fc = new OrdinalFacetCounter();
+        fc.setFacetClassRegistry(fr);
+        fc.setIndexReaderWrapper(indexReaderWrapper);
+        fc.setOrdinalFields(Arrays.asList(new String[] { "partner", "provider" }));
+
+        fm = new FacetManager();
+        fm.setIndexReaderWrapper(indexReaderWrapper);
+        fm.setQueryParsers(qps);
+        fm.setFacetCounters(Arrays.asList(new IFacetCounter[] { fc }));
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        for (IndexReader indexReader : indexReaders) {
+            indexReader.close();
+        }
+    }
+
+    @Test
+    void testCollectEqualsAddFacets() throws Exception {
+        IngridQuery ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+        IngridHits expected = new IngridHits();
+        fm.addFacets(expected, ingridQuery);
+
+        TopScoreDocCollector topDocs = TopScoreDocCollector.create(10, true);
+        FacetCollector collector = fm.createCollector(ingridQuery, topDocs);
+        IndexSearcher searcher = new IndexSearcher(new MultiReader(indexReaders, false));
+        searcher.search(qps.parse(ingridQuery), collector);
+        IngridHits hits = new IngridHits();
+        fm.addFacets(hits, ingridQuery, collector);
+
+        IngridDocument facets = (IngridDocument) hits.get("FACETS");
+        assertEquals(expected.get("FACETS"), facets);
+        assertEquals(4, facets.getLong("partner:bund"));
+        assertTrue(facets.containsKey("datatype:myBundWaldbrand"));
+        assertEquals(topDocs.getTotalHits(), collector.getTotalHits());
+        assertTrue(collector.getTotalHits() > 0);
+    }
+
+    @Test
+    void testCollectKeepsCounterOrder() throws Exception {
+        // the configured counter sets the partner class before the ordinals
+        // are counted
+        ConfigurableFacetCounter cfc = new ConfigurableFacetCounter();
+        Map<String, List<String>> facetDefinitions = new HashMap<String, List<String>>();
+        facetDefinitions.put("partner", Arrays.asList(new String[] { "partner:bund" }));
+        cfc.setFacetDefinitions(facetDefinitions);
+        List<IFacetCounter> facetCounters = new ArrayList<IFacetCounter>();
+        facetCounters.add(cfc);
+        facetCounters.addAll(fm.getFacetCounters());
+        fm.setFacetCounters(facetCounters);
+
+        IngridQuery ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+        IngridHits expected = new IngridHits();
+        fm.addFacets(expected, ingridQuery);
+
+        FacetCollector collector = fm.createCollector(ingridQuery, null);
+        new IndexSearcher(new MultiReader(indexReaders, false)).search(qps.parse(ingridQuery), collector);
+        IngridHits hits = new IngridHits();
+        fm.addFacets(hits, ingridQuery, collector);
+
+        IngridDocument facets = (IngridDocument) hits.get("FACETS");
+        assertEquals(expected.get("FACETS"), facets);
+        assertEquals(collector.getTotalHits(), facets.getLong("partner:bund"));
+        assertTrue(collector.getTotalHits() > 4);
+    }
+
+    @Test
+    void testResultDocIdSets() throws Exception {
+        IngridQuery ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+
+        FacetCollector collector = fm.createCollector(ingridQuery, null);
+        new IndexSearcher(new MultiReader(indexReaders, false)).search(qps.parse(ingridQuery), collector);
+
+        IngridHits expected = new IngridHits();
+        fm.addFacets(expected, ingridQuery);
+        IngridHits hits = new IngridHits();
+        fm.addFacets(hits, ingridQuery, collector.getResultDocIdSets());
+        assertEquals(expected.get("FACETS"), hits.get("FACETS"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addFacets(IngridQuery ingridQuery) {
+        Map f1 = new HashMap();
+        f1.put("id", "partner");
+
+        Map f2 = new HashMap();
+        f2.put("id", "datatype");
+        Map classes = new HashMap();
+        classes.put("id", "myBundWaldbrand");
+        classes.put("query", "partner:bund AND (Waldbrand OR Auto)");
+        f2.put("classes", Arrays.asList(new Object[] { classes }));
+
+        ingridQuery.put("FACETS", Arrays.asList(new Object[] { f1, f2 }));
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.lucene.util.OpenBitSet;
+import org.junit.jupiter.api.Test;
+
+public class FacetCountContextTest {
+
+    @Test
+    void testResultValues() {
+        OpenBitSet bitSet = new OpenBitSet(128);
+        bitSet.set(3);
+        bitSet.set(64);
+        bitSet.set(100);
+        FacetCountContext context = new FacetCountContext(new OpenBitSet[] { bitSet, null });
+
+        assertEquals(3, context.getCardinality());
+        assertEquals(3, context.getCardinality(0));
+        assertEquals(0, context.getCardinality(1));
+        assertEquals(3.0 / 128, context.getDensity(0), 0.0001);
+        assertEquals(0, context.getDensity(1), 0.0001);
+        assertEquals(3.0 / 128, context.getDensity(), 0.0001);
+
+        int[][] docIds = context.getDocIds();
+        assertArrayEquals(new int[] { 3, 64, 100 }, docIds[0]);
+        assertEquals(0, docIds[1].length);
+        // the values are computed once per request
+        assertSame(docIds, context.getDocIds());
+    }
+
+    @Test
+    void testDeadline() {
+        FacetCountContext context = new FacetCountContext(new OpenBitSet[0]);
+        assertFalse(context.isExpired());
+        assertEquals(Long.MAX_VALUE, context.getRemainingTime());
+
+        context = new FacetCountContext(new OpenBitSet[0], System.currentTimeMillis() + 60000);
+        assertFalse(context.isExpired());
+        assertTrue(context.getRemainingTime() > 0);
+
+        context = new FacetCountContext(new OpenBitSet[0], System.currentTimeMillis() - 1);
+        assertTrue(context.isExpired());
+        assertTrue(context.isIncomplete());
+        assertEquals(0, context.getRemainingTime());
+    }
+
+}
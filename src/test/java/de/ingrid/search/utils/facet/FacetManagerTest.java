@@ -23,6 +23,7 @@
 package de.ingrid.search.utils.facet;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
@@ -30,22 +31,29 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.SortedVIntList;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import de.ingrid.search.utils.ConfigurablePlugDescriptionWrapper;
 import de.ingrid.search.utils.IQueryParser;
 import de.ingrid.search.utils.LuceneIndexReaderWrapper;
+import de.ingrid.search.utils.facet.counter.IContextFacetCounter;
 import de.ingrid.search.utils.facet.counter.IFacetCounter;
 import de.ingrid.search.utils.facet.counter.IndexFacetCounter;
 import de.ingrid.utils.IngridDocument;
+import de.ingrid.utils.IngridHits;
+import de.ingrid.utils.PlugDescription;
 import de.ingrid.utils.query.IngridQuery;
 import de.ingrid.utils.queryparser.ParseException;
 import de.ingrid.utils.queryparser.QueryStringParser;
@@ -232,6 +240,309 @@ public class FacetManagerTest {
         assertEquals("changed2", defs.get(2).getClasses().get(0).getFragment());
     }
 
+    @Test
+    void filterFacetDefinitionExactFragmentTest() throws Exception {
+        IngridQuery ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+
+        // only the configured fragment of a class is substituted, not a part
+        // of it
+        ConfigurableFacetClassProcessor facetClassProcessor = new ConfigurableFacetClassProcessor();
+        Map<String, Map<String, String>> config = new HashMap<String, Map<String, String>>();
+        Map<String, String> configValue = new HashMap<String, String>();
+        configValue.put("datatype:csw", "changed");
+        config.put("datatype:iso", configValue);
+        configValue = new HashMap<String, String>();
+        configValue.put("partner:bund AND (Waldbrand OR Auto)", "changed2");
+        config.put("datatype:myBundWaldbrand", configValue);
+        facetClassProcessor.setFacetFilterDefinitions(config);
+        List<FacetDefinition> defs = FacetUtils.getFacetDefinitions(ingridQuery);
+        facetClassProcessor.process(defs);
+        assertEquals("datatype:csw AND metaclass:1 OR metaclass:3", defs.get(1).getClasses().get(0).getFragment());
+        assertEquals("changed2", defs.get(2).getClasses().get(0).getFragment());
+    }
+
+    @Test
+    void filterFacetDefinitionChainedTest() throws Exception {
+        IngridQuery ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+
+        // a substituted fragment is not substituted again
+        ConfigurableFacetClassProcessor facetClassProcessor = new ConfigurableFacetClassProcessor();
+        Map<String, Map<String, String>> config = new HashMap<String, Map<String, String>>();
+        Map<String, String> configValue = new LinkedHashMap<String, String>();
+        configValue.put("datatype:csw AND metaclass:1 OR metaclass:3", "changed");
+        configValue.put("changed", "changed again");
+        config.put("datatype:iso", configValue);
+        facetClassProcessor.setFacetFilterDefinitions(config);
+        List<FacetDefinition> defs = FacetUtils.getFacetDefinitions(ingridQuery);
+        facetClassProcessor.process(defs);
+        assertEquals("changed", defs.get(1).getClasses().get(0).getFragment());
+    }
+
+    @Test
+    void resultBitSetCacheTest() throws Exception {
+        ResultBitSetCache cache = new ResultBitSetCache();
+        fm.setResultBitSetCache(cache);
+
+        IngridQuery ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+        IngridHits hits = new IngridHits();
+        fm.addFacets(hits, ingridQuery);
+        assertEquals(2, ((IngridDocument) hits.get("FACETS")).getLong("partner:bund"));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.size());
+
+        // same query, other paging
+        ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+        hits = new IngridHits();
+        fm.addFacets(hits, ingridQuery);
+        assertEquals(2, ((IngridDocument) hits.get("FACETS")).getLong("partner:bund"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+
+        // changed index readers clear the cache
+        IndexReader reopened = IndexReader.open(indexDir);
+        fm.getIndexReaderWrapper().setIndexReader(new IndexReader[] { reopened });
+        fm.addFacets(new IngridHits(), ingridQuery);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+
+        // least recently used queries are removed
+        cache.setMaxElements(1);
+        ingridQuery = QueryStringParser.parse("umwelt");
+        addFacets(ingridQuery);
+        fm.addFacets(new IngridHits(), ingridQuery);
+        assertEquals(1, cache.size());
+        assertTrue(cache.getSizeInBytes() > 0);
+
+        cache.setMaxSizeInBytes(0);
+        ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+        fm.addFacets(new IngridHits(), ingridQuery);
+        assertEquals(1, cache.size());
+        reopened.close();
+    }
+
+    @Test
+    void facetCountCacheTest() throws Exception {
+        FacetCountCache cache = new FacetCountCache();
+        fm.setFacetCountCache(cache);
+
+        IngridQuery ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+        IngridHits hits = new IngridHits();
+        fm.addFacets(hits, ingridQuery);
+        assertEquals(2, ((IngridDocument) hits.get("FACETS")).getLong("partner:bund"));
+        assertEquals(0, cache.getHits());
+
+        // identical request
+        ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+        hits = new IngridHits();
+        fm.addFacets(hits, ingridQuery);
+        IngridDocument facets = (IngridDocument) hits.get("FACETS");
+        assertEquals(2, facets.getLong("partner:bund"));
+        assertEquals(1, cache.getHits());
+
+        // changes of the returned facets do not change the cache
+        facets.clear();
+        hits = new IngridHits();
+        fm.addFacets(hits, ingridQuery);
+        assertEquals(2, ((IngridDocument) hits.get("FACETS")).getLong("partner:bund"));
+        assertEquals(2, cache.getHits());
+
+        // other facets
+        ingridQuery = QueryStringParser.parse("wasser");
+        addLotsOfFacets(ingridQuery);
+        fm.addFacets(new IngridHits(), ingridQuery);
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.size());
+
+        // changed index readers clear the cache
+        IndexReader reopened = IndexReader.open(indexDir);
+        fm.getIndexReaderWrapper().setIndexReader(new IndexReader[] { reopened });
+        fm.addFacets(new IngridHits(), ingridQuery);
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.size());
+
+        // expired entries
+        cache.setTimeToLive(1);
+        Thread.sleep(10);
+        fm.addFacets(new IngridHits(), ingridQuery);
+        assertEquals(2, cache.getHits());
+
+        // least recently used entries are removed
+        cache.setTimeToLive(0);
+        cache.setMaxElements(1);
+        ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+        fm.addFacets(new IngridHits(), ingridQuery);
+        assertEquals(1, cache.size());
+        fm.addFacets(new IngridHits(), ingridQuery);
+        assertEquals(3, cache.getHits());
+        reopened.close();
+    }
+
+    @Test
+    void noIndexFacetCountCacheTest() throws Exception {
+        ConfigurablePlugDescriptionWrapper wrapper = new ConfigurablePlugDescriptionWrapper();
+        NoIndexFacetManager noIndexFm = new NoIndexFacetManager();
+        noIndexFm.setQueryParsers(qps);
+        noIndexFm.setFacetCounters(fm.getFacetCounters());
+        noIndexFm.setPlugDescriptionWrapper(wrapper);
+        FacetCountCache cache = new FacetCountCache();
+        noIndexFm.setFacetCountCache(cache);
+
+        IngridQuery ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+        noIndexFm.addFacets(new IngridHits(), ingridQuery);
+        noIndexFm.addFacets(new IngridHits(), ingridQuery);
+        assertEquals(1, cache.getHits());
+
+        // a changed plugdescription invalidates the cached facet counts
+        wrapper.setPlugDescription(new PlugDescription());
+        noIndexFm.addFacets(new IngridHits(), ingridQuery);
+        assertEquals(1, cache.getHits());
+        noIndexFm.addFacets(new IngridHits(), ingridQuery);
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    void facetCountCacheConfigurationTest() throws Exception {
+        ConfigurablePlugDescriptionWrapper wrapper = new ConfigurablePlugDescriptionWrapper();
+        fm.setPlugDescriptionWrapper(wrapper);
+        FacetCountCache cache = new FacetCountCache();
+        fm.setFacetCountCache(cache);
+
+        IngridQuery ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+        fm.addFacets(new IngridHits(), ingridQuery);
+        fm.addFacets(new IngridHits(), ingridQuery);
+        assertEquals(1, cache.getHits());
+
+        // plugdescription driven counters may count differently after a
+        // reconfiguration of the same index readers
+        wrapper.setPlugDescription(new PlugDescription());
+        fm.addFacets(new IngridHits(), ingridQuery);
+        assertEquals(1, cache.getHits());
+        fm.addFacets(new IngridHits(), ingridQuery);
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    void addFacetsWithResultDocIdSetsTest() throws Exception {
+        IngridQuery ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+        OpenBitSet[] queryBitSets = FacetUtils.getBitSetsFromQuery(qps.parse(ingridQuery),
+                new LuceneIndexReaderWrapper(new IndexReader[] { indexReader }));
+
+        IngridHits hits = new IngridHits();
+        fm.addFacets(hits, ingridQuery, queryBitSets);
+        assertEquals(2, ((IngridDocument) hits.get("FACETS")).getLong("partner:bund"));
+
+        // doc id sets that are no bitsets
+        int[] docIds = new int[(int) queryBitSets[0].cardinality()];
+        int pos = 0;
+        for (int doc = queryBitSets[0].nextSetBit(0); doc >= 0; doc = queryBitSets[0].nextSetBit(doc + 1)) {
+            docIds[pos++] = doc;
+        }
+        hits = new IngridHits();
+        fm.addFacets(hits, ingridQuery, new DocIdSet[] { new SortedVIntList(docIds) });
+        assertEquals(2, ((IngridDocument) hits.get("FACETS")).getLong("partner:bund"));
+
+        // the supplied doc id sets are used instead of the query
+        hits = new IngridHits();
+        fm.addFacets(hits, ingridQuery, new DocIdSet[] { null });
+        assertEquals(0, ((IngridDocument) hits.get("FACETS")).getLong("partner:bund"));
+    }
+
+    @Test
+    void timeBudgetTest() throws Exception {
+        IFacetCounter slowCounter = new IContextFacetCounter() {
+            @Override
+            public IngridDocument count(IngridDocument result, IngridQuery query, OpenBitSet[] bitsets,
+                    List<FacetDefinition> facetDefs) {
+                return count(result, query, new FacetCountContext(bitsets), facetDefs);
+            }
+
+            @Override
+            public IngridDocument count(IngridDocument result, IngridQuery query, FacetCountContext context,
+                    List<FacetDefinition> facetDefs) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                result.put("slow:class", 1L);
+                return result;
+            }
+
+            @Override
+            public void initialize() {
+            }
+        };
+        List<IFacetCounter> counters = new ArrayList<IFacetCounter>();
+        counters.add(slowCounter);
+        counters.addAll(fm.getFacetCounters());
+        fm.setFacetCounters(counters);
+        FacetCountCache cache = new FacetCountCache();
+        fm.setFacetCountCache(cache);
+
+        IngridQuery ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+        fm.setTimeBudget(50);
+        IngridHits hits = new IngridHits();
+        fm.addFacets(hits, ingridQuery);
+        IngridDocument facets = (IngridDocument) hits.get("FACETS");
+        assertEquals(Boolean.TRUE, hits.get(AbstractFacetManager.FACETS_INCOMPLETE));
+        assertEquals(1L, facets.getLong("slow:class"));
+        assertFalse(facets.containsKey("partner:bund"));
+        // incomplete facets are not cached
+        assertEquals(0, cache.size());
+
+        fm.setTimeBudget(0);
+        hits = new IngridHits();
+        fm.addFacets(hits, ingridQuery);
+        assertFalse(hits.containsKey(AbstractFacetManager.FACETS_INCOMPLETE));
+        assertEquals(2, ((IngridDocument) hits.get("FACETS")).getLong("partner:bund"));
+    }
+
+    @Test
+    void bitSetFacetCounterTest() throws Exception {
+        // counters not implementing IContextFacetCounter get the result
+        // bitsets
+        IFacetCounter bitSetCounter = new IFacetCounter() {
+            @Override
+            public IngridDocument count(IngridDocument result, IngridQuery query, OpenBitSet[] bitsets,
+                    List<FacetDefinition> facetDefs) {
+                long cardinality = 0;
+                for (OpenBitSet bitset : bitsets) {
+                    cardinality += bitset.cardinality();
+                }
+                result.put("bitsets:class", cardinality);
+                return result;
+            }
+
+            @Override
+            public void initialize() {
+            }
+        };
+        List<IFacetCounter> counters = new ArrayList<IFacetCounter>();
+        counters.add(bitSetCounter);
+        counters.addAll(fm.getFacetCounters());
+        fm.setFacetCounters(counters);
+
+        IngridQuery ingridQuery = QueryStringParser.parse("wasser");
+        addFacets(ingridQuery);
+        IngridHits hits = new IngridHits();
+        fm.addFacets(hits, ingridQuery);
+        IngridDocument facets = (IngridDocument) hits.get("FACETS");
+        assertTrue(facets.getLong("bitsets:class") > 0);
+        assertEquals(2, facets.getLong("partner:bund"));
+    }
+
     @SuppressWarnings("unchecked")
     private void addFacets(IngridQuery ingridQuery) {
         Map f1 = new HashMap();
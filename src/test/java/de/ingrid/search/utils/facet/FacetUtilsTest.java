@@ -22,10 +22,25 @@
  */
 package de.ingrid.search.utils.facet;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.OpenBitSet;
 import org.junit.jupiter.api.Test;
 
+import de.ingrid.search.utils.LuceneIndexReaderWrapper;
+import de.ingrid.search.utils.facet.bitset.DenseFacetBitSet;
+import de.ingrid.search.utils.facet.bitset.IFacetBitSet;
+
 public class FacetUtilsTest {
 
     @Test
@@ -35,4 +50,70 @@ public class FacetUtilsTest {
 
     }
 
+    @Test
+    void testDocIdsAndCounts() {
+        OpenBitSet result = new OpenBitSet(256);
+        result.set(3);
+        result.set(64);
+        result.set(130);
+        OpenBitSet facet = new OpenBitSet(256);
+        facet.set(3);
+        facet.set(100);
+        facet.set(130);
+        OpenBitSet[] results = new OpenBitSet[] { result, null };
+        IFacetBitSet[] facets = new IFacetBitSet[] { new DenseFacetBitSet(facet), null };
+
+        int[][] docIds = FacetUtils.getDocIds(results);
+        assertArrayEquals(new int[] { 3, 64, 130 }, docIds[0]);
+        assertEquals(0, docIds[1].length);
+        assertEquals(2, FacetUtils.memberCount(docIds, facets));
+        assertEquals(2, FacetUtils.intersectionCount(results, facets));
+
+        // every second word is sampled
+        int[][] sampleDocIds = FacetUtils.getSampleDocIds(results, 0.5);
+        assertEquals(2, FacetUtils.getSampleStride(0.5));
+        assertArrayEquals(new int[] { 3, 130 }, sampleDocIds[0]);
+        assertEquals(0, sampleDocIds[1].length);
+    }
+
+    @Test
+    void testGetBitSetsFromQueryInParallel() throws Exception {
+        IndexReader[] readers = new IndexReader[] { IndexReader.open(DummyIndex.getTestIndex()),
+                IndexReader.open(DummyIndex.getTestIndex()), IndexReader.open(DummyIndex.getTestIndex()) };
+        TermQuery query = new TermQuery(new Term("partner", "bund"));
+
+        OpenBitSet[] expected = FacetUtils.getBitSetsFromQuery(query, new LuceneIndexReaderWrapper(readers));
+
+        LuceneIndexReaderWrapper wrapper = new LuceneIndexReaderWrapper(readers);
+        wrapper.setParallelism(3);
+        long[] timings = new long[] { -1, -1, -1 };
+        OpenBitSet[] result = FacetUtils.getBitSetsFromQuery(query, wrapper, timings);
+
+        assertEquals(expected.length, result.length);
+        for (int i = 0; i < readers.length; i++) {
+            assertEquals(expected[i], result[i]);
+            assertEquals(5, result[i].cardinality());
+            assertTrue(timings[i] >= 0);
+        }
+        // replacing the executor service shuts down the created one only
+        ExecutorService created = wrapper.getExecutorService();
+        ExecutorService external = Executors.newFixedThreadPool(2);
+        wrapper.setExecutorService(external);
+        assertTrue(created.isShutdown());
+        wrapper.setParallelism(0);
+        assertFalse(external.isShutdown());
+        assertNull(wrapper.getExecutorService());
+
+        // a shut down executor service falls back to sequential processing
+        wrapper.setExecutorService(external);
+        external.shutdown();
+        result = FacetUtils.getBitSetsFromQuery(query, wrapper);
+        for (int i = 0; i < readers.length; i++) {
+            assertEquals(expected[i], result[i]);
+        }
+        for (IndexReader reader : readers) {
+            reader.close();
+        }
+    }
+
 }
@@ -0,0 +1,93 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.apache.lucene.util.OpenBitSet;
+import org.junit.jupiter.api.Test;
+
+import de.ingrid.search.utils.facet.bitset.CompressedFacetBitSet;
+import de.ingrid.search.utils.facet.bitset.IFacetBitSet;
+import de.ingrid.search.utils.facet.bitset.OffHeapFacetBitSet;
+
+public class OffHeapFacetClassStoreTest {
+
+    private static final int NUM_DOCS = 100000;
+
+    @Test
+    void testCounts() {
+        Random random = new Random(1);
+        OpenBitSet dense = randomBitSet(random, 0.3);
+        OpenBitSet sparse = randomBitSet(random, 0.001);
+        OpenBitSet result = randomBitSet(random, 0.2);
+
+        FacetClass fc = new FacetClass("dense", new OpenBitSet[] { dense });
+        FacetClass compressed = new FacetClass("sparse", new OpenBitSet[] { sparse });
+        compressed.compressBitSets(0.05);
+
+        OffHeapFacetClassStore store = new OffHeapFacetClassStore();
+        store.put("dense", fc);
+        store.put("sparse", compressed);
+
+        IFacetBitSet offHeap = store.get("dense").getFacetBitSets()[0];
+        assertTrue(offHeap instanceof OffHeapFacetBitSet);
+        assertEquals(dense.cardinality(), offHeap.cardinality());
+        assertEquals(OpenBitSet.intersectionCount(dense, result), offHeap.intersectionCount(result));
+        assertEquals(dense, offHeap.toOpenBitSet());
+        assertTrue(store.get("sparse").getFacetBitSets()[0] instanceof CompressedFacetBitSet);
+        assertEquals(fc.getSizeInBytes() + compressed.getSizeInBytes(), store.getSizeInBytes());
+    }
+
+    @Test
+    void testEviction() {
+        Random random = new Random(2);
+        OffHeapFacetClassStore store = new OffHeapFacetClassStore();
+        store.setMaxElements(2);
+        store.put("a", new FacetClass("a", new OpenBitSet[] { randomBitSet(random, 0.1) }));
+        store.put("b", new FacetClass("b", new OpenBitSet[] { randomBitSet(random, 0.1) }));
+        // "a" is used more recently than "b"
+        store.get("a");
+        store.put("c", new FacetClass("c", new OpenBitSet[] { randomBitSet(random, 0.1) }));
+
+        assertEquals(2, store.size());
+        assertNull(store.get("b"));
+        assertEquals(store.get("a").getSizeInBytes() + store.get("c").getSizeInBytes(), store.getSizeInBytes());
+
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, store.getSizeInBytes());
+    }
+
+    private OpenBitSet randomBitSet(Random random, double density) {
+        OpenBitSet bitSet = new OpenBitSet(NUM_DOCS);
+        for (int i = 0; i < NUM_DOCS * density; i++) {
+            bitSet.fastSet(random.nextInt(NUM_DOCS));
+        }
+        return bitSet;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.OpenBitSet;
+import org.junit.jupiter.api.Test;
+
+import de.ingrid.search.utils.LuceneIndexReaderWrapper;
+import de.ingrid.search.utils.facet.bitset.IFacetBitSet;
+
+public class SegmentFacetBitSetCacheTest {
+
+    private static final String[] VALUES = new String[] { "a", "b", "c" };
+
+    private Random random = new Random(1);
+
+    private int nextId = 0;
+
+    @Test
+    void testReopen() throws IOException {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+        writer.setMergeFactor(1000);
+        // segment sizes are no multiples of 64, so segments start inside of
+        // a bitset word
+        addDocuments(writer, 100);
+        addDocuments(writer, 333);
+        addDocuments(writer, 77);
+        IndexReader reader = IndexReader.open(dir, true);
+        assertEquals(3, reader.getSequentialSubReaders().length);
+
+        SegmentFacetBitSetCache cache = new SegmentFacetBitSetCache();
+        assertEqualBitSets(cache, reader);
+        assertEquals(3 * VALUES.length, cache.getMisses());
+        assertEquals(0, cache.getHits());
+
+        // delete from the first segment and add a new segment
+        writer.deleteDocuments(new Term("id", "5"));
+        addDocuments(writer, 50);
+        writer.close();
+
+        IndexReader newReader = reader.reopen();
+        reader.close();
+        assertEquals(4, newReader.getSequentialSubReaders().length);
+        assertEqualBitSets(cache, newReader);
+        // changed first and new last segment
+        assertEquals(5 * VALUES.length, cache.getMisses());
+        assertEquals(2 * VALUES.length, cache.getHits());
+        newReader.close();
+    }
+
+    @Test
+    void testMaxSizeInBytes() throws IOException {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+        addDocuments(writer, 1000);
+        writer.close();
+        IndexReader reader = IndexReader.open(dir, true);
+        IndexReader[] readers = new IndexReader[] { reader };
+
+        SegmentFacetBitSetCache cache = new SegmentFacetBitSetCache();
+        // room for the bitsets of two values
+        cache.setMaxSizeInBytes(2 * 8 * OpenBitSet.bits2words(reader.maxDoc()));
+        for (String value : VALUES) {
+            cache.getFacetBitSets("value:" + value, new TermQuery(new Term("value", value)), readers);
+        }
+        assertEquals(VALUES.length, cache.getMisses());
+        assertTrue(cache.getSizeInBytes() <= cache.getMaxSizeInBytes());
+
+        // the least recently used bitset of the first value was removed
+        cache.getFacetBitSets("value:" + VALUES[2], new TermQuery(new Term("value", VALUES[2])), readers);
+        assertEquals(1, cache.getHits());
+        IFacetBitSet bitSet = cache.getFacetBitSets("value:" + VALUES[0], new TermQuery(new Term("value",
+                VALUES[0])), readers)[0];
+        assertEquals(VALUES.length + 1, cache.getMisses());
+        assertEquals(FacetUtils.getBitSetsFromQuery(new TermQuery(new Term("value", VALUES[0])),
+                new LuceneIndexReaderWrapper(readers))[0], bitSet.toOpenBitSet());
+        reader.close();
+    }
+
+    private void assertEqualBitSets(SegmentFacetBitSetCache cache, IndexReader reader) throws IOException {
+        IndexReader[] readers = new IndexReader[] { reader };
+        OpenBitSet result = new OpenBitSet(reader.maxDoc());
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if (random.nextBoolean()) {
+                result.fastSet(i);
+            }
+        }
+        for (String value : VALUES) {
+            Query query = new TermQuery(new Term("value", value));
+            OpenBitSet expected = FacetUtils.getBitSetsFromQuery(query, new LuceneIndexReaderWrapper(readers))[0];
+            IFacetBitSet actual = cache.getFacetBitSets("value:" + value, query, readers)[0];
+            assertEquals(expected, actual.toOpenBitSet());
+            assertEquals(expected.cardinality(), actual.cardinality());
+            assertEquals(OpenBitSet.intersectionCount(expected, result), actual.intersectionCount(result));
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                assertEquals(expected.get(i), actual.get(i));
+            }
+        }
+    }
+
+    private void addDocuments(IndexWriter writer, int numDocs) throws IOException {
+        for (int i = 0; i < numDocs; i++) {
+            Document doc = new Document();
+            doc.add(new Field("id", String.valueOf(nextId++), Field.Store.NO, Field.Index.NOT_ANALYZED));
+            doc.add(new Field("value", VALUES[random.nextInt(VALUES.length)], Field.Store.NO,
+                    Field.Index.NOT_ANALYZED));
+            writer.addDocument(doc);
+        }
+        writer.commit();
+    }
+}
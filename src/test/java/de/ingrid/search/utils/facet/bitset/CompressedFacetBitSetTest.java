@@ -0,0 +1,206 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet.bitset;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.lucene.util.OpenBitSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+public class CompressedFacetBitSetTest {
+
+    private static final int NUM_DOCS = 300000;
+
+    @Test
+    void testSparse() {
+        Random random = new Random(1);
+        assertEqualsBitSet(randomBitSet(random, NUM_DOCS, 0.001), randomBitSet(random, NUM_DOCS, 0.3));
+    }
+
+    @Test
+    void testDenseChunks() {
+        Random random = new Random(2);
+        assertEqualsBitSet(randomBitSet(random, NUM_DOCS, 0.4), randomBitSet(random, NUM_DOCS, 0.3));
+    }
+
+    @Test
+    void testRuns() {
+        Random random = new Random(3);
+        OpenBitSet bitSet = new OpenBitSet(NUM_DOCS);
+        for (int i = 0; i < 50; i++) {
+            int start = random.nextInt(NUM_DOCS - 5000);
+            bitSet.set(start, start + random.nextInt(5000));
+        }
+        // runs crossing word and chunk borders
+        bitSet.set(65530, 65600);
+        bitSet.set(NUM_DOCS - 10, NUM_DOCS);
+        assertEqualsBitSet(bitSet, randomBitSet(random, NUM_DOCS, 0.3));
+    }
+
+    @Test
+    void testShorterResultBitSet() {
+        Random random = new Random(4);
+        OpenBitSet bitSet = randomBitSet(random, NUM_DOCS, 0.01);
+        bitSet.set(NUM_DOCS - 1000, NUM_DOCS);
+        assertEqualsBitSet(bitSet, randomBitSet(random, NUM_DOCS / 3, 0.5));
+    }
+
+    @Test
+    void testCompress() {
+        Random random = new Random(5);
+        assertTrue(CompressedFacetBitSet.compress(randomBitSet(random, NUM_DOCS, 0.001), 0.05)
+                instanceof CompressedFacetBitSet);
+        assertTrue(CompressedFacetBitSet.compress(randomBitSet(random, NUM_DOCS, 0.3), 0.05)
+                instanceof DenseFacetBitSet);
+        // dense enough to be stored in bitmap containers only
+        assertTrue(CompressedFacetBitSet.compress(randomBitSet(random, NUM_DOCS, 0.3), 1)
+                instanceof DenseFacetBitSet);
+    }
+
+    @Test
+    void testWriteAndRead() throws IOException {
+        Random random = new Random(7);
+        OpenBitSet bitSet = randomBitSet(random, NUM_DOCS, 0.001);
+        // one chunk of each container type
+        bitSet.set(65536, 65536 + 5000);
+        OpenBitSet dense = randomBitSet(random, 65536, 0.5);
+        for (int doc = dense.nextSetBit(0); doc >= 0; doc = dense.nextSetBit(doc + 1)) {
+            bitSet.fastSet(2 * 65536 + doc);
+        }
+        byte[] bytes = write(new CompressedFacetBitSet(bitSet));
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        CompressedFacetBitSet read = CompressedFacetBitSet.readFrom(buffer);
+        assertEquals(0, buffer.remaining());
+        assertEquals(bitSet.cardinality(), read.cardinality());
+        assertEquals(bitSet, read.toOpenBitSet());
+    }
+
+    @Test
+    void testReadInvalid() throws IOException {
+        OpenBitSet bitSet = new OpenBitSet(1000);
+        bitSet.fastSet(10);
+        bitSet.fastSet(20);
+        final byte[] bytes = write(new CompressedFacetBitSet(bitSet));
+        // wrong cardinality
+        bytes[15]++;
+        assertThrows(IOException.class, new Executable() {
+            public void execute() throws Throwable {
+                CompressedFacetBitSet.readFrom(ByteBuffer.wrap(bytes));
+            }
+        });
+        bytes[15]--;
+        // array container values not sorted, header (20 bytes), key (2), type (1) and length (4)
+        bytes[28] = 30;
+        assertThrows(IOException.class, new Executable() {
+            public void execute() throws Throwable {
+                CompressedFacetBitSet.readFrom(ByteBuffer.wrap(bytes));
+            }
+        });
+        // document beyond the number of bits
+        bytes[28] = 0;
+        bytes[29] = 0x10;
+        assertThrows(IOException.class, new Executable() {
+            public void execute() throws Throwable {
+                CompressedFacetBitSet.readFrom(ByteBuffer.wrap(bytes));
+            }
+        });
+    }
+
+    /**
+     * Memory report: a provider facet with 300 classes of very different
+     * sizes where documents of the same provider are mostly indexed
+     * together, plus a datatype facet with a few large classes.
+     */
+    @Test
+    void memoryReport() {
+        int numDocs = 2000000;
+        Random random = new Random(6);
+        OpenBitSet[] providers = new OpenBitSet[300];
+        for (int i = 0; i < providers.length; i++) {
+            providers[i] = new OpenBitSet(numDocs);
+        }
+        int doc = 0;
+        while (doc < numDocs) {
+            // zipf like distribution of the provider of the next block of documents
+            int provider = (int) (providers.length * Math.pow(random.nextDouble(), 3));
+            int end = Math.min(numDocs, doc + 1 + random.nextInt(2000));
+            for (; doc < end; doc++) {
+                providers[(random.nextInt(10) == 0) ? random.nextInt(providers.length) : provider].fastSet(doc);
+            }
+        }
+        OpenBitSet[] datatypes = new OpenBitSet[] { randomBitSet(random, numDocs, 0.6),
+                randomBitSet(random, numDocs, 0.3), randomBitSet(random, numDocs, 0.05),
+                randomBitSet(random, numDocs, 0.01) };
+
+        long denseBytes = 0;
+        long compressedBytes = 0;
+        for (OpenBitSet[] facet : new OpenBitSet[][] { providers, datatypes }) {
+            for (OpenBitSet bitSet : facet) {
+                IFacetBitSet compressed = CompressedFacetBitSet.compress(bitSet, 1.0 / 16);
+                denseBytes += new DenseFacetBitSet(bitSet).getSizeInBytes();
+                compressedBytes += compressed.getSizeInBytes();
+                assertEquals(bitSet.cardinality(), compressed.cardinality());
+            }
+        }
+        System.out.println("Facet class memory for " + (providers.length + datatypes.length) + " classes and "
+                + numDocs + " documents: uncompressed " + denseBytes + " bytes, compressed " + compressedBytes
+                + " bytes.");
+        assertTrue(compressedBytes < denseBytes / 4);
+    }
+
+    private static void assertEqualsBitSet(OpenBitSet bitSet, OpenBitSet result) {
+        CompressedFacetBitSet compressed = new CompressedFacetBitSet(bitSet);
+        assertEquals(bitSet.cardinality(), compressed.cardinality());
+        assertEquals(OpenBitSet.intersectionCount(bitSet, result), compressed.intersectionCount(result));
+        assertEquals(bitSet, compressed.toOpenBitSet());
+        for (int doc = 0; doc < bitSet.size() + 100; doc++) {
+            assertEquals(bitSet.get(doc), compressed.get(doc));
+        }
+    }
+
+    private static byte[] write(CompressedFacetBitSet bitSet) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        bitSet.writeTo(out);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static OpenBitSet randomBitSet(Random random, int numDocs, double density) {
+        OpenBitSet bitSet = new OpenBitSet(numDocs);
+        for (int i = (int) (numDocs * density); i > 0; i--) {
+            bitSet.fastSet(random.nextInt(numDocs));
+        }
+        return bitSet;
+    }
+
+}
@@ -122,5 +122,102 @@ public class DscPlugdescriptionFacetCounterTest {
         assertEquals(true, result.getLong("provider:he_p1") == bs.cardinality());
 
     }
-    
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void testConfigure() throws ParseException {
+        DscPlugdescriptionFacetCounter fc = new DscPlugdescriptionFacetCounter();
+        PlugDescription pd = new PlugDescription();
+        pd.addPartner("he");
+        pd.addProvider("he_p1");
+        ConfigurablePlugDescriptionWrapper wrapper = new ConfigurablePlugDescriptionWrapper(pd);
+        fc.setPlugDescriptionWrapper(wrapper);
+
+        OpenBitSet bs = new OpenBitSet();
+        bs.set(3L);
+        bs.set(5L);
+
+        IngridQuery query = QueryStringParser.parse("wasser");
+        Map f1 = new HashMap();
+        f1.put("id", "partner");
+        Map f2 = new HashMap();
+        f2.put("id", "provider_ni");
+        Map class1 = new HashMap();
+        class1.put("id", "ni_p2");
+        Map class2 = new HashMap();
+        class2.put("id", "ni_p3");
+        f2.put("classes", Arrays.asList(new Object[] { class1, class2 }));
+        query.put("FACETS", Arrays.asList(new Object[] { f1, f2 }));
+        List<FacetDefinition> fDefs = FacetUtils.getFacetDefinitions(query);
+
+        IngridDocument result = fc.count(new IngridDocument(), null, new OpenBitSet[] { bs }, fDefs);
+        assertEquals(1, result.size());
+        assertEquals(2L, result.getLong("partner:he"));
+
+        // the new plugdescription is used after configuring the wrapper
+        pd = new PlugDescription();
+        pd.addPartner("ni");
+        pd.addProvider("ni_p2");
+        wrapper.configure(pd);
+
+        result = fc.count(new IngridDocument(), null, new OpenBitSet[] { bs }, fDefs);
+        assertEquals(2, result.size());
+        assertEquals(2L, result.getLong("partner:ni"));
+        assertEquals(2L, result.getLong("provider_ni:ni_p2"));
+    }
+
+    @Test
+    void testResetPlugDescriptionWrapper() throws ParseException {
+        DscPlugdescriptionFacetCounter fc = new DscPlugdescriptionFacetCounter();
+        PlugDescription pd = new PlugDescription();
+        pd.addPartner("he");
+        fc.setPlugDescriptionWrapper(new ConfigurablePlugDescriptionWrapper(pd));
+
+        OpenBitSet bs = new OpenBitSet();
+        bs.set(3L);
+        IngridQuery query = QueryStringParser.parse("wasser");
+        Map<String, Object> f1 = new HashMap<String, Object>();
+        f1.put("id", "partner");
+        query.put("FACETS", Arrays.asList(new Object[] { f1 }));
+        List<FacetDefinition> fDefs = FacetUtils.getFacetDefinitions(query);
+        assertEquals(1L, fc.count(new IngridDocument(), null, new OpenBitSet[] { bs }, fDefs).getLong("partner:he"));
+
+        // without wrapper no facet classes are added
+        fc.setPlugDescriptionWrapper(null);
+        assertEquals(0, fc.count(new IngridDocument(), null, new OpenBitSet[] { bs }, fDefs).size());
+    }
+
+    @Test
+    void testConfigureInPlaceChanges() throws ParseException {
+        DscPlugdescriptionFacetCounter fc = new DscPlugdescriptionFacetCounter();
+        PlugDescription pd = new PlugDescription();
+        pd.addPartner("he");
+        ConfigurablePlugDescriptionWrapper wrapper = new ConfigurablePlugDescriptionWrapper(pd);
+        fc.setPlugDescriptionWrapper(wrapper);
+        fc.setPlugDescriptionWrapper(wrapper);
+
+        OpenBitSet bs = new OpenBitSet();
+        bs.set(3L);
+        IngridQuery query = QueryStringParser.parse("wasser");
+        Map<String, Object> f1 = new HashMap<String, Object>();
+        f1.put("id", "partner");
+        query.put("FACETS", Arrays.asList(new Object[] { f1 }));
+        List<FacetDefinition> fDefs = FacetUtils.getFacetDefinitions(query);
+
+        // partners added in place are counted after configuring
+        pd.addPartner("ni");
+        assertEquals(1, fc.count(new IngridDocument(), null, new OpenBitSet[] { bs }, fDefs).size());
+        wrapper.configure(pd);
+        assertEquals(2, fc.count(new IngridDocument(), null, new OpenBitSet[] { bs }, fDefs).size());
+
+        // a replaced wrapper does not configure the counter any more
+        PlugDescription other = new PlugDescription();
+        other.addPartner("by");
+        fc.setPlugDescriptionWrapper(new ConfigurablePlugDescriptionWrapper(other));
+        wrapper.configure(pd);
+        IngridDocument result = fc.count(new IngridDocument(), null, new OpenBitSet[] { bs }, fDefs);
+        assertEquals(1, result.size());
+        assertEquals(1L, result.getLong("partner:by"));
+    }
+
 }
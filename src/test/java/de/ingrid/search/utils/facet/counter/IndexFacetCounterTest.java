@@ -0,0 +1,337 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet.counter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.OpenBitSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import de.ingrid.search.utils.facet.FacetClass;
+import de.ingrid.search.utils.facet.FacetClassRegistry;
+import de.ingrid.search.utils.facet.FacetCountContext;
+import de.ingrid.search.utils.facet.FacetDefinition;
+import de.ingrid.utils.IngridDocument;
+
+public class IndexFacetCounterTest {
+
+    private static final int NUM_DOCS = 1 << 20;
+
+    private static final int NUM_CLASSES = 300;
+
+    private OpenBitSet[] resultBitSets;
+
+    private List<FacetClass> facetClasses;
+
+    private IndexFacetCounter counter;
+
+    @BeforeEach
+    public void setUp() {
+        Random random = new Random(42);
+        resultBitSets = new OpenBitSet[] { randomBitSet(random, 0.3), randomBitSet(random, 0.3) };
+        facetClasses = new ArrayList<FacetClass>();
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            facetClasses.add(new FacetClass("field:value" + i, new OpenBitSet[] { randomBitSet(random, 0.01),
+                    randomBitSet(random, 0.01) }));
+        }
+        counter = new IndexFacetCounter();
+        counter.setFacetClassRegistry(new StaticFacetClassRegistry(facetClasses));
+    }
+
+    @Test
+    void testCount() {
+        IngridDocument result = counter.count(new IngridDocument(), null, resultBitSets, facetDefinitions());
+        assertEquals(NUM_CLASSES, result.size());
+        for (FacetClass fc : facetClasses) {
+            long expected = 0;
+            for (int i = 0; i < resultBitSets.length; i++) {
+                OpenBitSet clone = (OpenBitSet) fc.getBitSets()[i].clone();
+                clone.and(resultBitSets[i]);
+                expected += clone.cardinality();
+            }
+            assertEquals(expected, result.getLong(fc.getFacetClassName()));
+        }
+    }
+
+    @Test
+    void testCountSkipsClassesAlreadySet() {
+        IngridDocument result = new IngridDocument();
+        result.put("field:value0", -1L);
+        counter.count(result, null, resultBitSets, facetDefinitions());
+        assertEquals(-1L, result.getLong("field:value0"));
+        assertEquals(NUM_CLASSES, result.size());
+    }
+
+    @Test
+    void testParallelCount() {
+        IngridDocument expected = counter.count(new IngridDocument(), null, resultBitSets, facetDefinitions());
+
+        counter.setParallelism(4);
+        counter.setParallelThreshold(10);
+        IngridDocument result = new IngridDocument();
+        result.put("field:value7", -1L);
+        counter.count(result, null, resultBitSets, facetDefinitions());
+
+        assertEquals(NUM_CLASSES, result.size());
+        assertEquals(-1L, result.getLong("field:value7"));
+        for (FacetClass fc : facetClasses) {
+            if (!fc.getFacetClassName().equals("field:value7")) {
+                assertEquals(expected.getLong(fc.getFacetClassName()), result.getLong(fc.getFacetClassName()));
+            }
+        }
+    }
+
+    @Test
+    void testForkJoinPoolLifecycle() {
+        counter.setParallelism(4);
+        counter.setParallelThreshold(10);
+        IngridDocument expected = counter.count(new IngridDocument(), null, resultBitSets, facetDefinitions());
+        ForkJoinPool pool = counter.getForkJoinPool();
+        assertEquals(4, pool.getParallelism());
+
+        // a new parallelism replaces the pool
+        counter.setParallelism(2);
+        assertTrue(pool.isShutdown());
+        pool = counter.getForkJoinPool();
+        assertEquals(2, pool.getParallelism());
+
+        counter.initialize();
+        assertTrue(pool.isShutdown());
+        assertNotSame(pool, counter.getForkJoinPool());
+        assertEquals(expected, counter.count(new IngridDocument(), null, resultBitSets, facetDefinitions()));
+
+        // pools set from outside are not shut down
+        ForkJoinPool external = new ForkJoinPool(3);
+        counter.setForkJoinPool(external);
+        counter.setParallelism(3);
+        counter.initialize();
+        assertFalse(external.isShutdown());
+        assertEquals(expected, counter.count(new IngridDocument(), null, resultBitSets, facetDefinitions()));
+        external.shutdown();
+    }
+
+    @Test
+    void testSparseCount() {
+        counter.setSparseDensityThreshold(0);
+        Random random = new Random(7);
+        OpenBitSet[] sparseBitSets = new OpenBitSet[] { randomBitSet(random, 0.0005), randomBitSet(random, 0.0005) };
+        IngridDocument expected = counter.count(new IngridDocument(), null, sparseBitSets, facetDefinitions());
+
+        counter.setSparseDensityThreshold(0.001);
+        IngridDocument result = counter.count(new IngridDocument(), null, sparseBitSets, facetDefinitions());
+        assertEquals(expected, result);
+
+        counter.setParallelism(4);
+        counter.setParallelThreshold(10);
+        result = counter.count(new IngridDocument(), null, sparseBitSets, facetDefinitions());
+        assertEquals(expected, result);
+    }
+
+    @Test
+    void testCountExpiredDeadline() {
+        FacetCountContext context = new FacetCountContext(resultBitSets, System.currentTimeMillis() - 1);
+        IngridDocument result = counter.count(new IngridDocument(), null, context, facetDefinitions());
+        assertTrue(context.isIncomplete());
+        assertEquals(0, result.size());
+
+        context = new FacetCountContext(resultBitSets, System.currentTimeMillis() + 60000);
+        result = counter.count(new IngridDocument(), null, context, facetDefinitions());
+        assertFalse(context.isIncomplete());
+        assertEquals(NUM_CLASSES, result.size());
+    }
+
+    @Test
+    void testSampledCount() {
+        long start = System.currentTimeMillis();
+        IngridDocument expected = counter.count(new IngridDocument(), null, resultBitSets, facetDefinitions());
+        System.out.println("exact count: " + (System.currentTimeMillis() - start) + " ms");
+
+        counter.setSamplingRate(0.01);
+        counter.setSamplingThreshold(0);
+        FacetCountContext context = new FacetCountContext(resultBitSets);
+        start = System.currentTimeMillis();
+        IngridDocument result = counter.count(new IngridDocument(), null, context, facetDefinitions());
+        System.out.println("sampled count: " + (System.currentTimeMillis() - start) + " ms");
+
+        assertTrue(context.isApproximate());
+        assertEquals(NUM_CLASSES, result.size());
+        Map<String, Long> errorBounds = context.getErrorBounds();
+        for (FacetClass fc : facetClasses) {
+            String name = fc.getFacetClassName();
+            long bound = errorBounds.get(name);
+            assertTrue(bound > 0);
+            assertTrue(Math.abs(expected.getLong(name) - result.getLong(name)) <= 2 * bound, name + ": expected "
+                    + expected.getLong(name) + ", estimated " + result.getLong(name) + " +/- " + bound);
+        }
+
+        // samples larger than the number of result words are counted exactly
+        counter.setSamplingRate(0.5);
+        context = new FacetCountContext(resultBitSets);
+        assertEquals(expected, counter.count(new IngridDocument(), null, context, facetDefinitions()));
+        assertFalse(context.isApproximate());
+
+        // results below the threshold are counted exactly
+        counter.setSamplingRate(0.01);
+        counter.setSamplingThreshold(new FacetCountContext(resultBitSets).getCardinality() + 1);
+        context = new FacetCountContext(resultBitSets);
+        assertEquals(expected, counter.count(new IngridDocument(), null, context, facetDefinitions()));
+        assertFalse(context.isApproximate());
+    }
+
+    @Test
+    void testSampledCountClustered() {
+        // facet classes of whole words, the sampled words must be treated as
+        // clusters of documents
+        Random random = new Random(42);
+        facetClasses = new ArrayList<FacetClass>();
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            facetClasses.add(new FacetClass("field:value" + i, new OpenBitSet[] { randomWordBitSet(random, 0.01),
+                    randomWordBitSet(random, 0.01) }));
+        }
+        counter.setFacetClassRegistry(new StaticFacetClassRegistry(facetClasses));
+        IngridDocument expected = counter.count(new IngridDocument(), null, resultBitSets, facetDefinitions());
+
+        counter.setSamplingRate(0.05);
+        counter.setSamplingThreshold(0);
+        FacetCountContext context = new FacetCountContext(resultBitSets);
+        IngridDocument result = counter.count(new IngridDocument(), null, context, facetDefinitions());
+        assertTrue(context.isApproximate());
+        Map<String, Long> errorBounds = context.getErrorBounds();
+        int outside = 0;
+        for (FacetClass fc : facetClasses) {
+            String name = fc.getFacetClassName();
+            if (Math.abs(expected.getLong(name) - result.getLong(name)) > errorBounds.get(name)) {
+                outside++;
+            }
+        }
+        // about 5% of the estimates are outside of the 95% bounds
+        assertTrue(outside < NUM_CLASSES / 10, outside + " estimates outside of the bounds");
+    }
+
+    @Test
+    void testCountCompressed() {
+        IngridDocument expected = counter.count(new IngridDocument(), null, resultBitSets, facetDefinitions());
+        for (FacetClass fc : facetClasses) {
+            fc.compressBitSets(0.05);
+        }
+        assertEquals(expected, counter.count(new IngridDocument(), null, resultBitSets, facetDefinitions()));
+
+        counter.setSparseDensityThreshold(1);
+        assertEquals(expected, counter.count(new IngridDocument(), null, resultBitSets, facetDefinitions()));
+    }
+
+    /**
+     * Benchmark: memory allocated by one count call. Counting must not copy
+     * the bitsets of the facet classes, so the allocated bytes must be far
+     * below the size of a single class bitset.
+     */
+    @Test
+    void benchmarkAllocationPerCount() {
+        List<FacetDefinition> defs = facetDefinitions();
+        // warm up
+        for (int i = 0; i < 5; i++) {
+            counter.count(new IngridDocument(), null, resultBitSets, defs);
+        }
+
+        long cloneBytes = allocatedBytes();
+        long start = System.currentTimeMillis();
+        for (FacetClass fc : facetClasses) {
+            for (int i = 0; i < resultBitSets.length; i++) {
+                OpenBitSet clone = (OpenBitSet) fc.getBitSets()[i].clone();
+                clone.and(resultBitSets[i]);
+                clone.cardinality();
+            }
+        }
+        cloneBytes = allocatedBytes() - cloneBytes;
+        System.out.println("clone and count: " + cloneBytes + " bytes allocated in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        long countBytes = allocatedBytes();
+        start = System.currentTimeMillis();
+        counter.count(new IngridDocument(), null, resultBitSets, defs);
+        countBytes = allocatedBytes() - countBytes;
+        System.out.println("intersection count: " + countBytes + " bytes allocated in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        assertTrue(countBytes < NUM_DOCS / 8, "Counting must not allocate bitset sized memory, allocated: "
+                + countBytes);
+    }
+
+    private List<FacetDefinition> facetDefinitions() {
+        return Arrays.asList(new FacetDefinition[] { new FacetDefinition("field", "field") });
+    }
+
+    private static OpenBitSet randomBitSet(Random random, double density) {
+        OpenBitSet bitSet = new OpenBitSet(NUM_DOCS);
+        for (int i = (int) (NUM_DOCS * density); i > 0; i--) {
+            bitSet.fastSet(random.nextInt(NUM_DOCS));
+        }
+        return bitSet;
+    }
+
+    private static OpenBitSet randomWordBitSet(Random random, double density) {
+        OpenBitSet bitSet = new OpenBitSet(NUM_DOCS);
+        for (int i = (int) (NUM_DOCS / 64 * density); i > 0; i--) {
+            int word = random.nextInt(NUM_DOCS / 64);
+            bitSet.set(word * 64L, word * 64L + 64);
+        }
+        return bitSet;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread
+                .currentThread().getId());
+    }
+
+    /**
+     * Registry that returns a fixed list of facet classes without producing
+     * them from an index.
+     */
+    static class StaticFacetClassRegistry extends FacetClassRegistry {
+
+        private List<FacetClass> facetClasses;
+
+        public StaticFacetClassRegistry(List<FacetClass> facetClasses) {
+            this.facetClasses = facetClasses;
+        }
+
+        @Override
+        public List<FacetClass> getFacetClasses(FacetDefinition facDef, IndexReader[] indexReaders, long deadline) {
+            return facetClasses;
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * **************************************************-
+ * ingrid-search-utils
+ * ==================================================
+ * Copyright (C) 2014 - 2025 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.search.utils.facet.counter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.OpenBitSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import de.ingrid.search.utils.IQueryParser;
+import de.ingrid.search.utils.LuceneIndexReaderWrapper;
+import de.ingrid.search.utils.facet.DummyIndex;
+import de.ingrid.search.utils.facet.DummyQueryParsers;
+import de.ingrid.search.utils.facet.DummyTermQueryParser;
+import de.ingrid.search.utils.facet.FacetClassProducer;
+import de.ingrid.search.utils.facet.FacetClassRegistry;
+import de.ingrid.search.utils.facet.FacetDefinition;
+import de.ingrid.search.utils.facet.FacetUtils;
+import de.ingrid.utils.IngridDocument;
+
+public class OrdinalFacetCounterTest {
+
+    private IndexReader[] indexReaders;
+
+    private LuceneIndexReaderWrapper indexReaderWrapper;
+
+    private IndexFacetCounter indexFacetCounter;
+
+    private OrdinalFacetCounter ordinalFacetCounter;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        indexReaders = new IndexReader[] { IndexReader.open(DummyIndex.getTestIndex()),
+                IndexReader.open(DummyIndex.getTestIndex()) };
+        indexReaderWrapper = new LuceneIndexReaderWrapper(indexReaders);
+
+        indexFacetCounter = new IndexFacetCounter();
+        indexFacetCounter.setFacetClassRegistry(createRegistry());
+
+        ordinalFacetCounter = new OrdinalFacetCounter();
+        ordinalFacetCounter.setFacetClassRegistry(createRegistry());
+        ordinalFacetCounter.setIndexReaderWrapper(indexReaderWrapper);
+        ordinalFacetCounter.setOrdinalFields(Arrays.asList(new String[] { "partner", "provider", "datatype",
+                "metaclass" }));
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        for (IndexReader indexReader : indexReaders) {
+            indexReader.close();
+        }
+    }
+
+    @Test
+    void testCountEqualsIndexFacetCounter() {
+        OpenBitSet[] bitsets = FacetUtils.getBitSetsFromQuery(new TermQuery(new Term("title", "wasser")),
+                indexReaderWrapper);
+
+        IngridDocument expected = indexFacetCounter.count(new IngridDocument(), null, bitsets, facetDefinitions());
+        IngridDocument result = ordinalFacetCounter.count(new IngridDocument(), null, bitsets, facetDefinitions());
+
+        assertEquals(expected, result);
+        assertEquals(10L, result.getLong("partner:bund"));
+        assertEquals(4L, result.getLong("partner:ni"));
+
+        result = ordinalFacetCounter.count(new IngridDocument(), null, bitsets, Arrays
+                .asList(new FacetDefinition[] { new FacetDefinition("metaclass", "metaclass") }));
+        assertEquals(6L, result.getLong("metaclass:1"));
+        assertEquals(6L, result.getLong("metaclass:2"));
+        assertEquals(2L, result.getLong("metaclass:3"));
+    }
+
+    @Test
+    void testCountSkipsClassesAlreadySet() {
+        OpenBitSet[] bitsets = FacetUtils.getBitSetsFromQuery(new TermQuery(new Term("title", "wasser")),
+                indexReaderWrapper);
+        IngridDocument result = new IngridDocument();
+        result.put("partner:bund", -1L);
+        ordinalFacetCounter.count(result, null, bitsets, facetDefinitions());
+        assertEquals(-1L, result.getLong("partner:bund"));
+        assertTrue(result.containsKey("partner:ni"));
+    }
+
+    @Test
+    void testMaxValues() {
+        ordinalFacetCounter.setMaxValues(1);
+        OpenBitSet[] bitsets = FacetUtils.getBitSetsFromQuery(new TermQuery(new Term("title", "wasser")),
+                indexReaderWrapper);
+        IngridDocument result = ordinalFacetCounter.count(new IngridDocument(), null, bitsets, Arrays
+                .asList(new FacetDefinition[] { new FacetDefinition("partner", "partner") }));
+        assertEquals(1, result.size());
+        assertEquals(10L, result.getLong("partner:bund"));
+    }
+
+    @Test
+    void testMultiValuedField() {
+        // facet classes of the analyzed field are produced from its postings
+        indexFacetCounter.setFacetClassRegistry(createRegistry(true));
+        ordinalFacetCounter.setFacetClassRegistry(createRegistry(true));
+        ordinalFacetCounter.setOrdinalFields(Arrays.asList(new String[] { "partner", "content" }));
+        OpenBitSet[] bitsets = FacetUtils.getBitSetsFromQuery(new TermQuery(new Term("title", "wasser")),
+                indexReaderWrapper);
+        List<FacetDefinition> defs = Arrays.asList(new FacetDefinition[] { new FacetDefinition("content", "content") });
+
+        // documents with more than one value are counted for every value
+        IngridDocument expected = indexFacetCounter.count(new IngridDocument(), null, bitsets, defs);
+        IngridDocument result = ordinalFacetCounter.count(new IngridDocument(), null, bitsets, defs);
+        assertEquals(expected, result);
+        assertEquals(8L, result.getLong("content:wasser"));
+
+        assertNull(ordinalFacetCounter.createOrdinalCounts(new FacetDefinition("content", "content"), indexReaders));
+        assertNotNull(ordinalFacetCounter.createOrdinalCounts(new FacetDefinition("partner", "partner"),
+                indexReaders));
+    }
+
+    private List<FacetDefinition> facetDefinitions() {
+        List<FacetDefinition> defs = new ArrayList<FacetDefinition>();
+        defs.add(new FacetDefinition("partner", "partner"));
+        defs.add(new FacetDefinition("provider", "provider"));
+        defs.add(new FacetDefinition("datatype", "datatype"));
+        return defs;
+    }
+
+    private FacetClassRegistry createRegistry() {
+        return createRegistry(false);
+    }
+
+    private FacetClassRegistry createRegistry(boolean directTermProduction) {
+        DummyQueryParsers qp = new DummyQueryParsers();
+        List<IQueryParser> parsers = new ArrayList<IQueryParser>();
+        parsers.add(new DummyTermQueryParser("content", null));
+        qp.setQueryParsers(parsers);
+
+        FacetClassProducer fcp = new FacetClassProducer();
+        fcp.setIndexReaderWrapper(indexReaderWrapper);
+        fcp.setQueryParsers(qp);
+        fcp.setDirectTermProduction(directTermProduction);
+
+        FacetClassRegistry registry = new FacetClassRegistry();
+        registry.setFacetClassProducer(fcp);
+        return registry;
+    }
+
+}